@@ -0,0 +1,45 @@
+package top.weixiansen574.hybridfilexfer;
+
+import org.openjdk.jmh.annotations.*;
+import top.weixiansen574.hybridfilexfer.TransferStatusStore.TransferStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * /transfers 与SSE快照的JSON生成。
+ * 存储最多只保留 {@link TransferStatusStore#MAX_RECENT_FILES} 个文件，这里直接测生成方法，
+ * 以便观察条目数增长时的开销（放在同一个包里以访问包内可见的类）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransferStatusJsonBenchmark {
+    private static final int FILES_PER_FOLDER = 100;
+
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    private List<TransferStatus> transfers;
+
+    @Setup
+    public void setup() {
+        transfers = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            double totalSize = 1024.0 * (i % 4096 + 1);
+            //最后几个文件还在传输中
+            double progress = i >= entries - 8 ? 50.0 : 100.0;
+            transfers.add(new TransferStatus("D:\\Backup\\Phone\\DCIM\\album" + (i / FILES_PER_FOLDER) + "\\IMG_" + i + ".jpg",
+                    progress, totalSize * progress / 100.0, totalSize, i % 2 == 0 ? "upload" : "download"));
+        }
+    }
+
+    @Benchmark
+    public String transferStatusJson() {
+        return TransferStatusServer.getTransferStatusJson(transfers);
+    }
+}
@@ -0,0 +1,15 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+/**
+ * 运行基准测试，参数与JMH命令行相同，例如：
+ * <pre>
+ * BenchmarkMain                          运行全部
+ * BenchmarkMain WriteFileCall -p channels=4   只运行名称匹配的，并指定参数
+ * BenchmarkMain -rf json -rff before.json     结果保存为JSON，便于修改前后对比
+ * </pre>
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+}
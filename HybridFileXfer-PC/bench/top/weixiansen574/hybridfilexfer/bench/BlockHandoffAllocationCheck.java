@@ -0,0 +1,185 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import top.weixiansen574.hybridfilexfer.core.FileBlock;
+import top.weixiansen574.hybridfilexfer.core.ReadFileCall;
+import top.weixiansen574.hybridfilexfer.core.bean.Directory;
+import top.weixiansen574.hybridfilexfer.core.bean.RemoteFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * 检查读取线程到发送线程的块交接在稳定传输时不分配对象：
+ * 分别传输 {@link #SMALL_BLOCKS} 块和 {@link #LARGE_BLOCKS} 块的文件（稀疏文件，不真正读硬盘），
+ * 用 ThreadMXBean 统计读取线程与各发送线程分配的字节数，两者之差除以多出的块数即为每块的分配量。
+ * 每块分配超过 {@link #MAX_BYTES_PER_BLOCK} 字节时以状态码1退出。
+ * <p>
+ * 需要 HotSpot（com.sun.management.ThreadMXBean）。用法：BlockHandoffAllocationCheck [发送线程数，默认3]
+ */
+public class BlockHandoffAllocationCheck {
+    private static final int SMALL_BLOCKS = 64;
+    private static final int LARGE_BLOCKS = 4096;
+    private static final int BUFFER_COUNT = 8;
+    private static final int WARMUP_ROUNDS = 20;
+    //统计本身的误差（TLAB边界等）远小于1字节/块，有任何每块分配都会超过
+    private static final double MAX_BYTES_PER_BLOCK = 0.5;
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int senders = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        File dir = new File(System.getProperty("java.io.tmpdir"), "hfx-alloc-check");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File small = sparseFile(dir, "small.bin", SMALL_BLOCKS);
+        File large = sparseFile(dir, "large.bin", LARGE_BLOCKS);
+        LinkedBlockingDeque<ByteBuffer> buffers = new LinkedBlockingDeque<>();
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            buffers.add(ByteBuffer.allocateDirect(FileBlock.BLOCK_SIZE));
+        }
+        try {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                transfer(small, buffers, senders);
+                transfer(large, buffers, senders);
+            }
+            long[] smallBytes = transfer(small, buffers, senders);
+            long[] largeBytes = transfer(large, buffers, senders);
+            double readerPerBlock = (largeBytes[0] - smallBytes[0]) / (double) (LARGE_BLOCKS - SMALL_BLOCKS);
+            double sendersPerBlock = (largeBytes[1] - smallBytes[1]) / (double) (LARGE_BLOCKS - SMALL_BLOCKS);
+            System.out.printf("reader : %d B for %d blocks, %d B for %d blocks, %.3f B/block%n",
+                    smallBytes[0], SMALL_BLOCKS, largeBytes[0], LARGE_BLOCKS, readerPerBlock);
+            System.out.printf("senders: %d B for %d blocks, %d B for %d blocks, %.3f B/block%n",
+                    smallBytes[1], SMALL_BLOCKS, largeBytes[1], LARGE_BLOCKS, sendersPerBlock);
+            if (buffers.size() != BUFFER_COUNT) {
+                System.out.println("FAIL: " + (BUFFER_COUNT - buffers.size()) + " buffers not returned to the pool");
+                System.exit(1);
+            }
+            if (readerPerBlock > MAX_BYTES_PER_BLOCK || sendersPerBlock > MAX_BYTES_PER_BLOCK) {
+                System.out.println("FAIL: block handoff allocates per block");
+                System.exit(1);
+            }
+            System.out.println("OK: no per-block allocation");
+        } finally {
+            small.delete();
+            large.delete();
+            dir.delete();
+        }
+    }
+
+    private static File sparseFile(File dir, String name, int blocks) throws IOException {
+        File file = new File(dir, name);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength((long) blocks * FileBlock.BLOCK_SIZE);
+        }
+        return file;
+    }
+
+    /**
+     * @return {读取线程分配的字节数, 所有发送线程分配的字节数之和}
+     */
+    private static long[] transfer(File file, LinkedBlockingDeque<ByteBuffer> buffers, int senders) throws Exception {
+        Directory local = new Directory(file.getParent(), Directory.FILE_SYSTEM_UNIX);
+        Directory remote = new Directory("/storage/emulated/0/Backup", Directory.FILE_SYSTEM_UNIX);
+        NoDiskReadFileCall readFileCall = new NoDiskReadFileCall(buffers,
+                Collections.singletonList(new RemoteFile(file)), local, remote, senders);
+        long[] allocated = new long[senders + 1];
+        Throwable[] failures = new Throwable[senders + 1];
+        Thread[] threads = new Thread[senders + 1];
+        threads[0] = new Thread(() -> {
+            long start = allocatedBytes();
+            try {
+                readFileCall.call();
+            } catch (Throwable e) {
+                failures[0] = e;
+            }
+            allocated[0] = allocatedBytes() - start;
+        }, "FileRead");
+        for (int i = 1; i <= senders; i++) {
+            int slot = i;
+            threads[i] = new Thread(() -> {
+                long start = allocatedBytes();
+                try {
+                    //与SendFileCall相同的取块、归还，只是不写套接字
+                    while (true) {
+                        FileBlock block = readFileCall.takeBlock();
+                        if (block.fileIndex == -1) {
+                            break;
+                        }
+                        readFileCall.recycle(block);
+                    }
+                } catch (Throwable e) {
+                    failures[slot] = e;
+                }
+                allocated[slot] = allocatedBytes() - start;
+            }, "UL_" + i);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable failure : failures) {
+            if (failure != null) {
+                throw new IllegalStateException(failure);
+            }
+        }
+        long senderBytes = 0;
+        for (int i = 1; i <= senders; i++) {
+            senderBytes += allocated[i];
+        }
+        return new long[]{allocated[0], senderBytes};
+    }
+
+    private static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * 只打开文件取得长度，读取时直接把缓冲区块标记为已读满，排除文件IO本身的开销
+     */
+    private static class NoDiskReadFileCall extends ReadFileCall {
+        private RandomAccessFile file;
+
+        NoDiskReadFileCall(LinkedBlockingDeque<ByteBuffer> buffers, List<RemoteFile> files, Directory localDir, Directory remoteDir, int operateThreadCount) {
+            super(buffers, files, localDir, remoteDir, operateThreadCount);
+        }
+
+        @Override
+        protected boolean fileExists(String path) {
+            return true;
+        }
+
+        @Override
+        protected List<RemoteFile> listFiles(String path) {
+            return null;
+        }
+
+        @Override
+        protected FileChannel openFile(String path) throws Exception {
+            file = new RandomAccessFile(path, "r");
+            return file.getChannel();
+        }
+
+        @Override
+        protected void readBlock(FileChannel channel, ByteBuffer buffer) {
+            buffer.position(buffer.limit());
+        }
+
+        @Override
+        protected void closeFile() throws Exception {
+            file.close();
+        }
+    }
+}
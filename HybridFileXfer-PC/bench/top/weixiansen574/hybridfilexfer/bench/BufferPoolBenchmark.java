@@ -0,0 +1,72 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import org.openjdk.jmh.annotations.*;
+import top.weixiansen574.hybridfilexfer.core.FileBlock;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓冲区块池（LinkedBlockingDeque）的取出与回收。
+ * 传输时读线程、发送/接收线程、写线程都在同一个池上取还，线程数越多争用越明显
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BufferPoolBenchmark {
+    //池中的块数要不少于线程数，否则take会阻塞
+    @Param({"16", "128"})
+    public int bufferCount;
+
+    private LinkedBlockingDeque<ByteBuffer> buffers;
+
+    @Setup
+    public void setup() {
+        buffers = new LinkedBlockingDeque<>();
+        for (int i = 0; i < bufferCount; i++) {
+            //只测池本身，不需要真正的1MB
+            buffers.add(ByteBuffer.allocate(FileBlock.BLOCK_SIZE / 1024));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ByteBuffer takeRecycle1Thread() throws InterruptedException {
+        return takeRecycle();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer takeRecycle4Threads() throws InterruptedException {
+        return takeRecycle();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public ByteBuffer takeRecycle8Threads() throws InterruptedException {
+        return takeRecycle();
+    }
+
+    /**
+     * 选择器模式下的非阻塞取出
+     */
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer pollRecycle4Threads() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            buffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    private ByteBuffer takeRecycle() throws InterruptedException {
+        ByteBuffer buffer = buffers.take();
+        buffers.add(buffer);
+        return buffer;
+    }
+}
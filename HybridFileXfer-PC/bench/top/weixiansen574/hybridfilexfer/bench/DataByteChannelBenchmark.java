@@ -0,0 +1,163 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import org.openjdk.jmh.annotations.*;
+import top.weixiansen574.nio.DataByteChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DataByteChannel 基本类型的编码与解码。
+ * 底层是内存中的回环通道，测得的是DataByteChannel自身的开销（临时缓冲区、每个值一次write/read调用）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataByteChannelBenchmark {
+    @Param({"/storage/emulated/0/DCIM/Camera/IMG_20250208_171025.jpg"})
+    public String path;
+
+    private LoopbackChannel loopback;
+    private DataByteChannel channel;
+    //解码用的数据：int、long、UTF、块帧头（文件序号、块序号、长度）
+    private int intOffset;
+    private int longOffset;
+    private int utfOffset;
+    private int headerOffset;
+
+    @Setup
+    public void setup() throws IOException {
+        loopback = new LoopbackChannel(64 * 1024);
+        channel = new DataByteChannel(loopback);
+        intOffset = loopback.size();
+        channel.writeInt(0x12345678);
+        longOffset = loopback.size();
+        channel.writeLong(0x123456789ABCDEFL);
+        utfOffset = loopback.size();
+        channel.writeUTF(path);
+        headerOffset = loopback.size();
+        writeHeader(42, 1024, 1024 * 1024);
+    }
+
+    @Benchmark
+    public int encodeInt() throws IOException {
+        loopback.reset();
+        channel.writeInt(0x12345678);
+        return loopback.size();
+    }
+
+    @Benchmark
+    public int encodeLong() throws IOException {
+        loopback.reset();
+        channel.writeLong(0x123456789ABCDEFL);
+        return loopback.size();
+    }
+
+    @Benchmark
+    public int encodeUTF() throws IOException {
+        loopback.reset();
+        channel.writeUTF(path);
+        return loopback.size();
+    }
+
+    @Benchmark
+    public int encodeBlockHeader() throws IOException {
+        loopback.reset();
+        writeHeader(42, 1024, 1024 * 1024);
+        return loopback.size();
+    }
+
+    @Benchmark
+    public int decodeInt() throws IOException {
+        loopback.seek(intOffset);
+        return channel.readInt();
+    }
+
+    @Benchmark
+    public long decodeLong() throws IOException {
+        loopback.seek(longOffset);
+        return channel.readLong();
+    }
+
+    @Benchmark
+    public String decodeUTF() throws IOException {
+        loopback.seek(utfOffset);
+        return channel.readUTF();
+    }
+
+    @Benchmark
+    public long decodeBlockHeader() throws IOException {
+        loopback.seek(headerOffset);
+        int fileIndex = channel.readInt();
+        int index = channel.readInt();
+        int length = channel.readInt();
+        return ((long) fileIndex << 32) + index + length;
+    }
+
+    private void writeHeader(int fileIndex, int index, int length) throws IOException {
+        channel.writeInt(fileIndex);
+        channel.writeInt(index);
+        channel.writeInt(length);
+    }
+
+    /**
+     * 内存中的通道：写入追加到末尾，读取从读位置开始
+     */
+    static class LoopbackChannel implements ByteChannel {
+        private final ByteBuffer buffer;
+        private int readPosition;
+
+        LoopbackChannel(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        void reset() {
+            buffer.clear();
+            readPosition = 0;
+        }
+
+        void seek(int position) {
+            readPosition = position;
+        }
+
+        int size() {
+            return buffer.position();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            int available = buffer.position() - readPosition;
+            if (available <= 0) {
+                return -1;
+            }
+            int length = Math.min(available, dst.remaining());
+            ByteBuffer src = buffer.duplicate();
+            src.limit(readPosition + length);
+            src.position(readPosition);
+            dst.put(src);
+            readPosition += length;
+            return length;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            buffer.put(src);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * 生成传输测试用的数据集，内容为随机数据（不含全零块）。
+ * <pre>
+ * tiny   大量小文件：10000个 1~16KB，每个文件夹100个          （scale调整文件数）
+ * mixed  混合：500个，70% 1~64KB，25% 64KB~4MB，5% 4~64MB，对数均匀分布 （scale调整文件数）
+ * huge   少量大文件：2个 512MB                              （scale调整文件大小）
+ * </pre>
+ * 同样的参数与种子生成的内容相同；已生成过的数据集直接复用（以同级的 .properties 文件为标记）
+ */
+public class DatasetGenerator {
+    public static final String TINY = "tiny";
+    public static final String MIXED = "mixed";
+    public static final String HUGE = "huge";
+
+    private static final int FILES_PER_FOLDER = 100;
+    private static final int KB = 1024;
+    private static final int MB = 1024 * 1024;
+    private static final int POOL_SIZE = 4 * MB;
+
+    public static class Dataset {
+        public final File root;
+        public final int fileCount;
+        public final long totalBytes;
+
+        Dataset(File root, int fileCount, long totalBytes) {
+            this.root = root;
+            this.fileCount = fileCount;
+            this.totalBytes = totalBytes;
+        }
+    }
+
+    private final Random random;
+    //随机内容池，每个文件从池中不同位置开始写，避免逐字节生成随机数
+    private final ByteBuffer pool;
+
+    private DatasetGenerator(long seed) {
+        random = new Random(seed);
+        byte[] bytes = new byte[POOL_SIZE];
+        random.nextBytes(bytes);
+        //保证任意1MB块都不是全零
+        for (int i = 0; i < bytes.length; i += 4096) {
+            bytes[i] |= 1;
+        }
+        pool = ByteBuffer.wrap(bytes);
+    }
+
+    public static Dataset generate(File parent, String kind, double scale, long seed) throws IOException {
+        File root = new File(parent, kind);
+        File marker = new File(parent, kind + ".properties");
+        String descriptor = String.format(Locale.ROOT, "%s scale=%s seed=%d", kind, scale, seed);
+        Properties properties = new Properties();
+        if (marker.isFile() && root.isDirectory()) {
+            try (InputStream in = new FileInputStream(marker)) {
+                properties.load(in);
+            }
+            if (descriptor.equals(properties.getProperty("descriptor"))) {
+                return new Dataset(root, Integer.parseInt(properties.getProperty("files")),
+                        Long.parseLong(properties.getProperty("bytes")));
+            }
+        }
+        deleteRecursively(root);
+        marker.delete();
+        Dataset dataset = new DatasetGenerator(seed).generate(root, kind, scale);
+        properties.setProperty("descriptor", descriptor);
+        properties.setProperty("files", String.valueOf(dataset.fileCount));
+        properties.setProperty("bytes", String.valueOf(dataset.totalBytes));
+        try (OutputStream out = new FileOutputStream(marker)) {
+            properties.store(out, null);
+        }
+        return dataset;
+    }
+
+    private Dataset generate(File root, String kind, double scale) throws IOException {
+        int count;
+        switch (kind) {
+            case TINY:
+                count = (int) Math.max(1, 10000 * scale);
+                break;
+            case MIXED:
+                count = (int) Math.max(1, 500 * scale);
+                break;
+            case HUGE:
+                count = 2;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown dataset: " + kind);
+        }
+        long totalBytes = 0;
+        for (int i = 0; i < count; i++) {
+            long size;
+            if (TINY.equals(kind)) {
+                size = KB + random.nextInt(15 * KB + 1);
+            } else if (MIXED.equals(kind)) {
+                int bucket = random.nextInt(100);
+                if (bucket < 70) {
+                    size = logUniform(KB, 64 * KB);
+                } else if (bucket < 95) {
+                    size = logUniform(64 * KB, 4 * MB);
+                } else {
+                    size = logUniform(4 * MB, 64 * MB);
+                }
+            } else {
+                size = (long) (512L * MB * scale);
+            }
+            File folder = new File(root, String.format(Locale.ROOT, "dir%03d", i / FILES_PER_FOLDER));
+            if (!folder.isDirectory() && !folder.mkdirs()) {
+                throw new IOException("Cannot create " + folder);
+            }
+            writeFile(new File(folder, String.format(Locale.ROOT, "file%05d.bin", i)), size);
+            totalBytes += size;
+        }
+        return new Dataset(root, count, totalBytes);
+    }
+
+    private long logUniform(long min, long max) {
+        return (long) Math.exp(Math.log(min) + random.nextDouble() * (Math.log(max) - Math.log(min)));
+    }
+
+    private void writeFile(File file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int offset = random.nextInt(POOL_SIZE);
+            long remaining = size;
+            while (remaining > 0) {
+                ByteBuffer slice = pool.duplicate();
+                slice.position(offset);
+                slice.limit((int) Math.min(POOL_SIZE, offset + remaining));
+                remaining -= slice.remaining();
+                while (slice.hasRemaining()) {
+                    channel.write(slice);
+                }
+                offset = 0;
+            }
+        }
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
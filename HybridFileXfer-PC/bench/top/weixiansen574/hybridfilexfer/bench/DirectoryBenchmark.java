@@ -0,0 +1,66 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import top.weixiansen574.hybridfilexfer.core.bean.Directory;
+import top.weixiansen574.hybridfilexfer.core.bean.TransferPathTranslator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 传输路径转换，每个要传输的文件都会调用一次。
+ * generateTransferPath 为单次转换，translator 为读取任务使用的带文件夹缓存的 TransferPathTranslator。
+ * 路径约四分之一含有需要替换的字符（时间格式的冒号）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DirectoryBenchmark {
+    private static final int PATH_COUNT = 1024;
+
+    @Param({"UNIX_TO_WINDOWS", "UNIX_TO_UNIX", "WINDOWS_TO_UNIX"})
+    public String direction;
+
+    private Directory local;
+    private Directory remote;
+    private String[] paths;
+    private TransferPathTranslator translator;
+
+    @Setup
+    public void setup() {
+        boolean fromWindows = direction.startsWith("WINDOWS");
+        boolean toWindows = direction.endsWith("WINDOWS");
+        local = fromWindows ? new Directory("D:\\Photos", Directory.FILE_SYSTEM_WINDOWS)
+                : new Directory("/storage/emulated/0/DCIM", Directory.FILE_SYSTEM_UNIX);
+        remote = toWindows ? new Directory("D:\\Backup\\Phone", Directory.FILE_SYSTEM_WINDOWS)
+                : new Directory("/storage/emulated/0/Backup", Directory.FILE_SYSTEM_UNIX);
+        String separator = fromWindows ? "\\" : "/";
+        translator = new TransferPathTranslator(local, remote);
+        paths = new String[PATH_COUNT];
+        for (int i = 0; i < PATH_COUNT; i++) {
+            String name = (i % 4 == 0 && !fromWindows)
+                    ? "2025-2-8 17:" + (i % 60) + ":25.jpg"
+                    : "IMG_20250208_" + i + ".jpg";
+            paths[i] = local.path + "Camera" + separator + "album" + (i % 16) + separator + name;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATH_COUNT)
+    public void generateTransferPath(Blackhole blackhole) {
+        for (String path : paths) {
+            blackhole.consume(local.generateTransferPath(path, remote));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATH_COUNT)
+    public void translator(Blackhole blackhole) {
+        for (String path : paths) {
+            blackhole.consume(translator.translate(path));
+        }
+    }
+}
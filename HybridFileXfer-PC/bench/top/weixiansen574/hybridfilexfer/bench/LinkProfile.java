@@ -0,0 +1,88 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 模拟链路的带宽与单向延迟
+ */
+public class LinkProfile {
+    public final String name;
+    //字节/秒，0为不限速
+    public final long bytesPerSecond;
+    public final long latencyNanos;
+
+    public LinkProfile(String name, long bytesPerSecond, long latencyNanos) {
+        this.name = name;
+        this.bytesPerSecond = bytesPerSecond;
+        this.latencyNanos = latencyNanos;
+    }
+
+    /**
+     * 解析逗号分隔的链路列表，每项为预设名或 名称:MB每秒:延迟毫秒，例如 "usb,wifi" 或 "USB_ADB:35:0.5,WLAN:60:3"
+     * <pre>
+     * usb        USB_ADB  40MB/s   1ms   （USB2.0 ADB转发）
+     * usb3       USB_ADB  120MB/s  1ms
+     * wifi       WLAN     30MB/s   3ms   （Wi-Fi 5 实际速率）
+     * wifi6      WLAN     80MB/s   2ms
+     * unlimited  LOOPBACK 不限速   0ms
+     * </pre>
+     * 名称相同的链路会加上序号以便区分
+     */
+    public static List<LinkProfile> parseList(String spec) {
+        List<LinkProfile> profiles = new ArrayList<>();
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            LinkProfile profile = parse(item);
+            int sameName = 0;
+            for (LinkProfile other : profiles) {
+                if (other.name.equals(profile.name) || other.name.startsWith(profile.name + "_")) {
+                    sameName++;
+                }
+            }
+            if (sameName > 0) {
+                profile = new LinkProfile(profile.name + "_" + (sameName + 1), profile.bytesPerSecond, profile.latencyNanos);
+            }
+            profiles.add(profile);
+        }
+        if (profiles.isEmpty()) {
+            throw new IllegalArgumentException("No link specified");
+        }
+        return profiles;
+    }
+
+    public static LinkProfile parse(String spec) {
+        switch (spec.toLowerCase(Locale.ROOT)) {
+            case "usb":
+                return of("USB_ADB", 40, 1);
+            case "usb3":
+                return of("USB_ADB", 120, 1);
+            case "wifi":
+                return of("WLAN", 30, 3);
+            case "wifi6":
+                return of("WLAN", 80, 2);
+            case "unlimited":
+                return of("LOOPBACK", 0, 0);
+        }
+        String[] parts = spec.split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Bad link spec: " + spec);
+        }
+        return of(parts[0], Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+    }
+
+    private static LinkProfile of(String name, double megabytesPerSecond, double latencyMillis) {
+        return new LinkProfile(name, (long) (megabytesPerSecond * 1024 * 1024), (long) (latencyMillis * 1_000_000));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s(%s, %.1fms)", name,
+                bytesPerSecond == 0 ? "unlimited" : String.format(Locale.ROOT, "%.0fMB/s", bytesPerSecond / 1048576.0),
+                latencyNanos / 1_000_000.0);
+    }
+}
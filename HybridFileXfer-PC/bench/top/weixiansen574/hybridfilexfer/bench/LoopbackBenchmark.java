@@ -0,0 +1,436 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import top.weixiansen574.hybridfilexfer.core.ChannelSecurity;
+import top.weixiansen574.hybridfilexfer.core.ProtocolFeatures;
+import top.weixiansen574.hybridfilexfer.core.ReadFileCall;
+import top.weixiansen574.hybridfilexfer.core.TransferMetrics;
+import top.weixiansen574.hybridfilexfer.core.WriteFileCall;
+import top.weixiansen574.hybridfilexfer.core.bean.TrafficInfo;
+import top.weixiansen574.hybridfilexfer.core.callback.ClientCallBack;
+import top.weixiansen574.hybridfilexfer.core.callback.ConnectServerCallback;
+import top.weixiansen574.hybridfilexfer.jdkcore.JdkHFXClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 端到端的回环基准测试：电脑端（JdkHFXClient，被测对象）连接同一进程中的 {@link LoopbackServer}，
+ * 每条传输通道经过一个 {@link ShapedLink} 模拟USB_ADB或Wi-Fi链路。
+ * 传输通道地址为127.0.0.2、127.0.0.3……，Linux下无需配置即可使用。
+ * <pre>
+ * -dataset       tiny|mixed|huge     数据集，见DatasetGenerator（默认mixed）
+ * -scale         1.0                 数据集规模
+ * -links         usb,wifi            链路，见LinkProfile.parseList
+ * -direction     download|upload|both  download为手机发送电脑接收（默认both）
+ * -rounds        3                   每个方向的轮数
+ * -engine        blocking|selector   电脑端的传输引擎
+ * -server_engine blocking|selector   服务端的传输引擎
+ * -buffers       64                  缓冲区块数（1MB每块）
+ * -durability    none|file|group     电脑端接收文件的落盘方式
+ * -directio      MB                  电脑端大文件使用直接IO的阈值
+ * -holes         on|off              协商空洞块
+ * -manifest      on|off              协商目录清单（接收端先建好整个目录树）
+ * -encrypt       on|all|off          协商加密，on不加密USB_ADB链路，all全部加密（两端使用相同的策略）
+ * -archive       on|off              电脑端以归档模式接收（写进work/pc-archive下的tar文件，按索引核对）
+ * -writers       4                   电脑端并行创建小文件的线程数，0为由写线程逐个创建
+ * -order         walk|small|large|interleave  两端发送文件的顺序
+ * -work          目录                数据集与接收文件的存放位置（默认系统临时目录下的hfx-loopback）
+ * -metrics       on|off              结束时输出TransferMetrics（服务端与电脑端在同一进程，指标是两者之和）
+ * </pre>
+ * 每轮输出总速度、每秒文件数以及每条链路的速度与利用率（有带宽上限时为占上限的比例，否则为占总流量的比例）
+ */
+public class LoopbackBenchmark {
+    private static final double MB = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new HashMap<>();
+        parseArguments(params, args);
+        String kind = params.getOrDefault("-dataset", DatasetGenerator.MIXED);
+        double scale = Double.parseDouble(params.getOrDefault("-scale", "1"));
+        List<LinkProfile> profiles = LinkProfile.parseList(params.getOrDefault("-links", "usb,wifi"));
+        String direction = params.getOrDefault("-direction", "both");
+        int rounds = Integer.parseInt(params.getOrDefault("-rounds", "3"));
+        int bufferCount = Integer.parseInt(params.getOrDefault("-buffers", "64"));
+        File work = new File(params.getOrDefault("-work",
+                new File(System.getProperty("java.io.tmpdir"), "hfx-loopback").getPath()));
+
+        System.out.println("Generating dataset...");
+        DatasetGenerator.Dataset dataset = DatasetGenerator.generate(new File(work, "dataset"), kind, scale, 1);
+        System.out.printf(Locale.ROOT, "Dataset %s: %d files, %.1f MB; links %s; client engine %s, server engine %s, %d buffers%n",
+                kind, dataset.fileCount, dataset.totalBytes / MB, profiles,
+                params.getOrDefault("-engine", "blocking"), params.getOrDefault("-server_engine", "blocking"), bufferCount);
+
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+        int port = serverSocket.socket().getLocalPort();
+        List<ShapedLink> links = new ArrayList<>(profiles.size());
+        List<String> names = new ArrayList<>(profiles.size());
+        List<InetSocketAddress> addresses = new ArrayList<>(profiles.size());
+        for (int i = 0; i < profiles.size(); i++) {
+            InetSocketAddress address = new InetSocketAddress(
+                    InetAddress.getByAddress(new byte[]{127, 0, 0, (byte) (2 + i)}), port);
+            ShapedLink link = new ShapedLink(profiles.get(i), address, new InetSocketAddress("127.0.0.1", port));
+            link.start();
+            links.add(link);
+            names.add(profiles.get(i).name);
+            addresses.add(address);
+        }
+
+        int features = "on".equals(params.get("-holes")) ? ProtocolFeatures.HOLES : 0;
+        if ("on".equals(params.get("-manifest"))) {
+            features |= ProtocolFeatures.MANIFEST;
+        }
+        String encrypt = params.get("-encrypt");
+        int encryption = "on".equals(encrypt) ? ChannelSecurity.ENCRYPT_EXCEPT_USB
+                : "all".equals(encrypt) ? ChannelSecurity.ENCRYPT_ALL : ChannelSecurity.ENCRYPT_OFF;
+        if (encryption != ChannelSecurity.ENCRYPT_OFF) {
+            features |= ProtocolFeatures.ENCRYPTION;
+        }
+        LoopbackServer server = new LoopbackServer(serverSocket, names, addresses, bufferCount, features);
+        server.setUseSelectorEngine("selector".equals(params.get("-server_engine")));
+        server.setEncryption(encryption);
+        JdkHFXClient client = new JdkHFXClient("127.0.0.1", port, work.getPath());
+        client.setUseSelectorEngine("selector".equals(params.get("-engine")));
+        client.setEncryption(encryption);
+        String durability = params.get("-durability");
+        if ("file".equals(durability)) {
+            client.setDurability(WriteFileCall.DURABILITY_PER_FILE);
+        } else if ("group".equals(durability)) {
+            client.setDurability(WriteFileCall.DURABILITY_GROUP_COMMIT);
+        }
+        if (params.containsKey("-directio")) {
+            client.setDirectIoThreshold(Long.parseLong(params.get("-directio")) * 1024 * 1024);
+        }
+        int order = parseOrder(params.getOrDefault("-order", "walk"));
+        server.setSendOrder(order);
+        client.setSendOrder(order);
+        if (params.containsKey("-writers")) {
+            client.setSmallFileWorkers(Integer.parseInt(params.get("-writers")));
+        }
+        File archive = "on".equals(params.get("-archive")) ? new File(work, "pc-archive") : null;
+        if (archive != null) {
+            client.setArchiveDirectory(archive.getPath());
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Void> accepted = executor.submit(() -> {
+            server.accept();
+            return null;
+        });
+        if (!client.connect(connectCallback)) {
+            System.out.println("Client failed to connect");
+            accepted.cancel(true);
+            System.exit(1);
+        }
+        BenchCallback clientCallback = new BenchCallback();
+        Thread clientThread = new Thread(() -> {
+            try {
+                client.start(clientCallback);
+            } catch (Exception e) {
+                clientCallback.fail(e.toString());
+            }
+        }, "LoopbackClient");
+        clientThread.setDaemon(true);
+        clientThread.start();
+        //特性协商在客户端的控制循环中应答，所以握手要等控制循环启动后才能完成
+        accepted.get();
+        executor.shutdown();
+        if (server.getVerificationCode() != null) {
+            //客户端在应答握手后才回调，稍等片刻
+            long deadline = System.currentTimeMillis() + 5000;
+            while (clientCallback.verificationCode == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            if (!server.getVerificationCode().equals(clientCallback.verificationCode)) {
+                System.out.println("Verification code mismatch: server " + server.getVerificationCode()
+                        + ", client " + clientCallback.verificationCode);
+                System.exit(1);
+            }
+            System.out.println("Encrypted channels: " + clientCallback.encryptedChannels
+                    + ", verification code " + clientCallback.verificationCode);
+        }
+
+        List<Double> downloadSpeeds = new ArrayList<>();
+        List<Double> downloadFileRates = new ArrayList<>();
+        List<Double> uploadSpeeds = new ArrayList<>();
+        List<Double> uploadFileRates = new ArrayList<>();
+        boolean allOk = true;
+        for (int round = 1; round <= rounds; round++) {
+            if (!"upload".equals(direction)) {
+                allOk &= runRound(true, round, server, links, dataset, work, archive, clientCallback, downloadSpeeds, downloadFileRates);
+            }
+            if (!"download".equals(direction)) {
+                allOk &= runRound(false, round, server, links, dataset, work, null, clientCallback, uploadSpeeds, uploadFileRates);
+            }
+        }
+        if (!downloadSpeeds.isEmpty()) {
+            System.out.printf(Locale.ROOT, "download median: %.1f MB/s, %.1f files/s%n", median(downloadSpeeds), median(downloadFileRates));
+        }
+        if (!uploadSpeeds.isEmpty()) {
+            System.out.printf(Locale.ROOT, "upload   median: %.1f MB/s, %.1f files/s%n", median(uploadSpeeds), median(uploadFileRates));
+        }
+        if ("on".equals(params.get("-metrics"))) {
+            System.out.print(TransferMetrics.toPrometheusText());
+        }
+        server.shutdown();
+        for (ShapedLink link : links) {
+            link.close();
+        }
+        System.exit(allOk ? 0 : 1);
+    }
+
+    private static boolean runRound(boolean download, int round, LoopbackServer server, List<ShapedLink> links,
+                                    DatasetGenerator.Dataset dataset, File work, File archive, BenchCallback clientCallback,
+                                    List<Double> speeds, List<Double> fileRates) throws Exception {
+        File destination = new File(work, download ? "pc" : "phone");
+        DatasetGenerator.deleteRecursively(destination);
+        if (!destination.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + destination);
+        }
+        if (archive != null) {
+            DatasetGenerator.deleteRecursively(archive);
+        }
+        long[] before = new long[links.size()];
+        for (int i = 0; i < links.size(); i++) {
+            before[i] = download ? links.get(i).getToClientBytes() : links.get(i).getToServerBytes();
+        }
+        clientCallback.reset();
+        BenchCallback serverCallback = new BenchCallback();
+        long start = System.nanoTime();
+        boolean complete = download
+                ? server.download(dataset.root, destination.getPath(), serverCallback)
+                : server.upload(dataset.root.getPath(), dataset.root.getParent(), destination, serverCallback);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] received = archive != null ? countArchived(archive) : countFiles(new File(destination, dataset.root.getName()));
+        String error = serverCallback.error != null ? serverCallback.error : clientCallback.error;
+        boolean ok = complete && error == null && received[0] == dataset.fileCount && received[1] == dataset.totalBytes;
+        double speed = dataset.totalBytes / MB / seconds;
+        double fileRate = dataset.fileCount / seconds;
+        if (ok) {
+            speeds.add(speed);
+            fileRates.add(fileRate);
+        }
+
+        StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "%-8s #%d  %6d files  %8.1f MB  %7.2f s  %7.1f MB/s  %8.1f files/s ",
+                download ? "download" : "upload", round, dataset.fileCount, dataset.totalBytes / MB, seconds, speed, fileRate));
+        long[] carried = new long[links.size()];
+        long total = 0;
+        for (int i = 0; i < links.size(); i++) {
+            carried[i] = (download ? links.get(i).getToClientBytes() : links.get(i).getToServerBytes()) - before[i];
+            total += carried[i];
+        }
+        for (int i = 0; i < links.size(); i++) {
+            LinkProfile profile = links.get(i).profile;
+            double linkSpeed = carried[i] / seconds;
+            double utilization = profile.bytesPerSecond > 0 ? linkSpeed / profile.bytesPerSecond
+                    : (total == 0 ? 0 : (double) carried[i] / total);
+            line.append(String.format(Locale.ROOT, " | %s %.1f MB/s %3.0f%%", profile.name, linkSpeed / MB, utilization * 100));
+        }
+        if (!ok) {
+            line.append(String.format(Locale.ROOT, " | FAILED (%s, received %d files %d bytes)",
+                    error != null ? error : (complete ? "mismatch" : "incomplete"), received[0], received[1]));
+        }
+        System.out.println(line);
+        return ok;
+    }
+
+    //归档索引中的文件数与总大小，目录下应只有本轮的一个归档
+    private static long[] countArchived(File directory) throws IOException {
+        long[] result = new long[2];
+        File[] indexes = directory.listFiles((dir, name) -> name.endsWith(".tar.idx"));
+        if (indexes == null || indexes.length != 1) {
+            return result;
+        }
+        for (String line : Files.readAllLines(indexes[0].toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t", 5);
+            if ("f".equals(fields[3])) {
+                result[0]++;
+                result[1] += Long.parseLong(fields[1]);
+            }
+        }
+        return result;
+    }
+
+    //文件数与总大小
+    private static long[] countFiles(File file) {
+        long[] result = new long[2];
+        File[] children = file.listFiles();
+        if (children == null) {
+            return result;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                long[] sub = countFiles(child);
+                result[0] += sub[0];
+                result[1] += sub[1];
+            } else {
+                result[0]++;
+                result[1] += child.length();
+            }
+        }
+        return result;
+    }
+
+    private static double median(List<Double> values) {
+        List<Double> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        int middle = sorted.size() / 2;
+        return sorted.size() % 2 == 1 ? sorted.get(middle) : (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+    }
+
+    private static int parseOrder(String order) {
+        switch (order) {
+            case "walk":
+                return ReadFileCall.ORDER_WALK;
+            case "small":
+                return ReadFileCall.ORDER_SMALL_FIRST;
+            case "large":
+                return ReadFileCall.ORDER_LARGE_FIRST;
+            case "interleave":
+                return ReadFileCall.ORDER_INTERLEAVE;
+            default:
+                throw new IllegalArgumentException("Unknown order: " + order);
+        }
+    }
+
+    private static void parseArguments(Map<String, String> paramMap, String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-") && i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                paramMap.put(args[i], args[i + 1]);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * 只记录第一个错误，不输出传输过程
+     */
+    private static class BenchCallback implements ClientCallBack {
+        volatile String error;
+        volatile List<String> encryptedChannels;
+        volatile String verificationCode;
+
+        void reset() {
+            error = null;
+        }
+
+        void fail(String message) {
+            if (error == null) {
+                error = message;
+            }
+        }
+
+        @Override
+        public void onReceiving() {
+        }
+
+        @Override
+        public void onSending() {
+        }
+
+        @Override
+        public void onExit() {
+        }
+
+        @Override
+        public void onChannelsSecured(String verificationCode, List<String> encryptedChannels) {
+            this.encryptedChannels = encryptedChannels;
+            this.verificationCode = verificationCode;
+        }
+
+        @Override
+        public void onFileUploading(String iName, String path, long targetSize, long totalSize) {
+        }
+
+        @Override
+        public void onFileDownloading(String iName, String path, long targetSize, long totalSize) {
+        }
+
+        @Override
+        public void onSpeedInfo(List<TrafficInfo> trafficInfoList) {
+        }
+
+        @Override
+        public void onChannelComplete(String iName, long traffic, long time) {
+        }
+
+        @Override
+        public void onChannelError(String iName, int errorType, String message) {
+            fail(iName + ": " + message);
+        }
+
+        @Override
+        public void onReadFileError(String message) {
+            fail("read error: " + message);
+        }
+
+        @Override
+        public void onWriteFileError(String message) {
+            fail("write error: " + message);
+        }
+
+        @Override
+        public void onComplete(boolean isUpload, long traffic, long time) {
+        }
+
+        @Override
+        public void onIncomplete() {
+            fail("incomplete");
+        }
+    }
+
+    private static final ConnectServerCallback connectCallback = new ConnectServerCallback() {
+        @Override
+        public void onConnectingControlChannel(String address, int port) {
+        }
+
+        @Override
+        public void onVersionMismatch(int localVersion, int remoteVersion) {
+            System.out.println("Version mismatch: " + localVersion + " / " + remoteVersion);
+        }
+
+        @Override
+        public void onConnectControlFailed() {
+            System.out.println("Control channel failed");
+        }
+
+        @Override
+        public void onConnectingTransferChannel(String name, InetAddress inetAddress, InetAddress bindAddress) {
+        }
+
+        @Override
+        public void onConnectTransferChannelFailed(String name, InetAddress inetAddress, Exception e) {
+            System.out.println("Transfer channel " + name + " (" + inetAddress.getHostAddress() + ") failed: " + e);
+        }
+
+        @Override
+        public void onOOM(int createdBuffers, int requiredBuffers, long maxMemoryMB, String osArch) {
+            System.out.println("Out of memory: " + createdBuffers + "/" + requiredBuffers + " buffers, max " + maxMemoryMB + "MB");
+        }
+
+        @Override
+        public void onRemoteOOM() {
+            System.out.println("Server out of memory");
+        }
+
+        @Override
+        public void onConnectSuccess(List<String> channelNames) {
+            System.out.println("Connected: " + channelNames);
+        }
+    };
+}
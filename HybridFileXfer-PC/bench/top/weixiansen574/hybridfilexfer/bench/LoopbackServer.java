@@ -0,0 +1,195 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import top.weixiansen574.hybridfilexfer.core.ControllerIdentifiers;
+import top.weixiansen574.hybridfilexfer.core.FileBlock;
+import top.weixiansen574.hybridfilexfer.core.HFXService;
+import top.weixiansen574.hybridfilexfer.core.ProtocolFeatures;
+import top.weixiansen574.hybridfilexfer.core.ReadFileCall;
+import top.weixiansen574.hybridfilexfer.core.TransferConnection;
+import top.weixiansen574.hybridfilexfer.core.WriteFileCall;
+import top.weixiansen574.hybridfilexfer.core.bean.Directory;
+import top.weixiansen574.hybridfilexfer.core.bean.RemoteFile;
+import top.weixiansen574.hybridfilexfer.core.callback.TransferFileCallback;
+import top.weixiansen574.hybridfilexfer.jdkcore.JdkReadFileCall;
+import top.weixiansen574.hybridfilexfer.jdkcore.JdkWriteFileCall;
+import top.weixiansen574.nio.DataByteChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * 代替手机端的服务端，不需要安卓设备即可测试电脑端。
+ * <p>
+ * 与手机端一样在同一个端口上先接受控制通道，完成版本握手后下发网卡列表（名称与地址），
+ * 再按顺序接受每条传输通道，然后协商缓冲区块数。之后由服务端发起传输：
+ * {@link #download} 对应手机发送、电脑接收，{@link #upload} 对应电脑发送、手机接收，
+ * 传输过程复用 {@link HFXService} 中与手机端共享的代码。
+ * <p>
+ * 只协商不改变命令格式的特性（{@link ProtocolFeatures#HOLES}、{@link ProtocolFeatures#MANIFEST}、{@link ProtocolFeatures#ENCRYPTION}，
+ * 加密时由 {@link #setEncryption} 决定要求加密哪些通道），流模式与带请求ID的命令不在此模拟。
+ */
+public class LoopbackServer extends HFXService {
+    private final ServerSocketChannel serverSocket;
+    private final List<String> channelNames;
+    private final List<InetSocketAddress> channelAddresses;
+    private final int bufferCount;
+    private final int offeredFeatures;
+    private int clientFileSystem;
+    private String clientHomeDir;
+    private String verificationCode;
+
+    /**
+     * @param channelAddresses 下发给客户端的各传输通道地址，端口须与serverSocket相同（客户端总是连接控制通道的端口）
+     */
+    public LoopbackServer(ServerSocketChannel serverSocket, List<String> channelNames, List<InetSocketAddress> channelAddresses,
+                          int bufferCount, int offeredFeatures) {
+        this.serverSocket = serverSocket;
+        this.channelNames = channelNames;
+        this.channelAddresses = channelAddresses;
+        this.bufferCount = bufferCount;
+        this.offeredFeatures = offeredFeatures & (ProtocolFeatures.HOLES | ProtocolFeatures.MANIFEST | ProtocolFeatures.ENCRYPTION);
+    }
+
+    /**
+     * 接受客户端连接并完成握手，阻塞直到所有传输通道连接完成
+     */
+    public void accept() throws IOException {
+        ctChannel = new DataByteChannel(serverSocket.accept());
+        byte[] header = new byte[CLIENT_HEADER.length()];
+        ctChannel.readFully(header);
+        if (!CLIENT_HEADER.equals(new String(header, StandardCharsets.UTF_8))) {
+            throw new IOException("Not a HybridFileXfer client");
+        }
+        int clientVersion = ctChannel.readInt();
+        if (clientVersion != VERSION_CODE) {
+            ctChannel.writeBoolean(false);
+            ctChannel.writeInt(VERSION_CODE);
+            throw new IOException("Version mismatch, client: " + clientVersion + ", server: " + VERSION_CODE);
+        }
+        ctChannel.writeBoolean(true);
+
+        //| 网卡数 | 名称 | 地址长度 | 地址  | 绑定地址长度（0为不绑定） |
+        //| int   | UTF  | byte    | bytes | byte                   |
+        ctChannel.writeInt(channelNames.size());
+        for (int i = 0; i < channelNames.size(); i++) {
+            byte[] address = channelAddresses.get(i).getAddress().getAddress();
+            ctChannel.writeUTF(channelNames.get(i));
+            ctChannel.writeByte(address.length);
+            ctChannel.write(address);
+            ctChannel.writeByte(0);
+        }
+        connections = new ArrayList<>(channelNames.size());
+        for (int i = 0; i < channelNames.size(); i++) {
+            SocketChannel socketChannel = serverSocket.accept();
+            boolean connected = ctChannel.readBoolean();
+            String name = ctChannel.readUTF();
+            if (!connected) {
+                socketChannel.close();
+                throw new IOException("Client failed to connect transfer channel " + name);
+            }
+            socketChannel.socket().setTcpNoDelay(true);
+            connections.add(new TransferConnection(name, socketChannel));
+            ctChannel.writeBoolean(true);
+        }
+
+        ctChannel.writeInt(bufferCount);
+        if (!ctChannel.readBoolean()) {
+            throw new IOException("Client out of memory while allocating " + bufferCount + " buffers");
+        }
+        for (int i = 0; i < bufferCount; i++) {
+            buffers.add(ByteBuffer.allocateDirect(FileBlock.BLOCK_SIZE));
+        }
+        ctChannel.writeBoolean(true);
+        clientFileSystem = ctChannel.readInt();
+        clientHomeDir = ctChannel.readUTF();
+
+        if (offeredFeatures != 0) {
+            ctChannel.writeShort(ControllerIdentifiers.NEGOTIATE_FEATURES);
+            ctChannel.writeInt(offeredFeatures);
+            features = ctChannel.readInt();
+            if (ProtocolFeatures.has(features, ProtocolFeatures.ENCRYPTION)) {
+                verificationCode = secureChannels(true).verificationCode;
+            }
+        }
+    }
+
+    public List<TransferConnection> getConnections() {
+        return connections;
+    }
+
+    public String getClientHomeDir() {
+        return clientHomeDir;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    /**
+     * @return 协商出加密时的校验码，否则为null
+     */
+    public String getVerificationCode() {
+        return verificationCode;
+    }
+
+    /**
+     * 服务端发送source（文件或文件夹）到客户端的clientDir，相当于在手机上选择文件发送到电脑
+     *
+     * @return 传输是否完整（false表示通道断开）
+     */
+    public boolean download(File source, String clientDir, TransferFileCallback callback) throws IOException {
+        ctChannel.writeShort(ControllerIdentifiers.REQUEST_RECEIVE);
+        List<RemoteFile> files = Collections.singletonList(new RemoteFile(source));
+        return sendFiles(files, new Directory(source.getParent(), Directory.getCurrentFileSystem()),
+                new Directory(clientDir, clientFileSystem), callback);
+    }
+
+    /**
+     * 让客户端发送clientPath到服务端的destination，相当于在手机上选择电脑上的文件接收
+     *
+     * @param clientParent 客户端上clientPath所在的文件夹，传输路径相对于它生成
+     */
+    public boolean upload(String clientPath, String clientParent, File destination, TransferFileCallback callback) throws IOException {
+        //| REQUEST_SEND | 文件数 | 文件路径... | 服务端目标文件夹 | 服务端文件系统 | 客户端所在文件夹 |
+        ctChannel.writeShort(ControllerIdentifiers.REQUEST_SEND);
+        ctChannel.writeInt(1);
+        ctChannel.writeUTF(clientPath);
+        ctChannel.writeUTF(destination.getPath());
+        ctChannel.writeInt(Directory.getCurrentFileSystem());
+        ctChannel.writeUTF(clientParent);
+        return receiveFiles(callback);
+    }
+
+    public void shutdown() throws IOException {
+        try {
+            ctChannel.writeShort(ControllerIdentifiers.SHUTDOWN);
+        } finally {
+            ctChannel.close();
+            if (connections != null) {
+                for (TransferConnection connection : connections) {
+                    connection.close();
+                }
+            }
+            shutdownExecutor();
+        }
+    }
+
+    @Override
+    protected WriteFileCall createWriteFileCall(LinkedBlockingDeque<ByteBuffer> buffers, int dequeCount) {
+        return new JdkWriteFileCall(buffers, dequeCount);
+    }
+
+    @Override
+    protected ReadFileCall createReadFileCall(LinkedBlockingDeque<ByteBuffer> buffers, List<RemoteFile> files, Directory localDir, Directory remoteDir, int operateThreadCount) {
+        return new JdkReadFileCall(buffers, files, localDir, remoteDir, operateThreadCount);
+    }
+}
@@ -0,0 +1,71 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import top.weixiansen574.hybridfilexfer.core.Utils;
+import top.weixiansen574.hybridfilexfer.core.bean.RemoteFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 由文件列表构造RemoteFile。
+ * listDirectory 对应列出本地目录（Utils.listRemoteFiles），fromPaths 对应收到对方要求发送的路径列表
+ * （HFXClient对每个路径new RemoteFile(new File(path))），fromFields 为不访问文件系统的基准
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RemoteFileBenchmark {
+    @Param({"1000"})
+    public int fileCount;
+
+    private File directory;
+    private String[] paths;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("hfx-bench").toFile();
+        paths = new String[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            File file = new File(directory, "IMG_" + i + ".jpg");
+            Files.write(file.toPath(), new byte[i % 64]);
+            paths[i] = file.getPath();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public Object listDirectory() {
+        return Utils.listRemoteFiles(directory.getPath());
+    }
+
+    @Benchmark
+    public void fromPaths(Blackhole blackhole) {
+        for (String path : paths) {
+            blackhole.consume(new RemoteFile(new File(path)));
+        }
+    }
+
+    @Benchmark
+    public void fromFields(Blackhole blackhole) {
+        for (int i = 0; i < paths.length; i++) {
+            blackhole.consume(new RemoteFile("IMG_" + i + ".jpg", paths[i], 1738998625000L, i % 64, false));
+        }
+    }
+}
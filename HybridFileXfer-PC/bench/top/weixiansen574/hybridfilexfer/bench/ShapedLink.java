@@ -0,0 +1,185 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 带宽与延迟受限的TCP中转，模拟一条USB_ADB或Wi-Fi链路。
+ * <p>
+ * 在listenAddress上接受连接并转发到target，两个方向各有一个读线程与一个写线程：
+ * 读线程把数据切成块并记下到达时间，写线程在到达时间加上延迟之后、且按带宽排到的时刻才写出。
+ * 在途的块数有上限，写不出去时读线程停止读取，对端的TCP窗口随之关闭，和真实的慢链路一样产生背压。
+ */
+public class ShapedLink implements Closeable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CHUNKS_IN_FLIGHT = 32;
+
+    public final LinkProfile profile;
+    private final ServerSocketChannel listener;
+    private final InetSocketAddress target;
+    //客户端（电脑）→服务端（手机），即上传方向
+    private final AtomicLong toServerBytes = new AtomicLong();
+    //服务端→客户端，即下载方向
+    private final AtomicLong toClientBytes = new AtomicLong();
+    private final List<SocketChannel> sockets = new CopyOnWriteArrayList<>();
+
+    public ShapedLink(LinkProfile profile, InetSocketAddress listenAddress, InetSocketAddress target) throws IOException {
+        this.profile = profile;
+        this.target = target;
+        listener = ServerSocketChannel.open();
+        listener.bind(listenAddress);
+    }
+
+    public InetSocketAddress getListenAddress() throws IOException {
+        return (InetSocketAddress) listener.getLocalAddress();
+    }
+
+    public void start() {
+        startThread("Link-" + profile.name, () -> {
+            try {
+                while (true) {
+                    SocketChannel client = listener.accept();
+                    SocketChannel server = SocketChannel.open(target);
+                    client.socket().setTcpNoDelay(true);
+                    server.socket().setTcpNoDelay(true);
+                    sockets.add(client);
+                    sockets.add(server);
+                    new Pipe(client, server, toServerBytes, "up").start();
+                    new Pipe(server, client, toClientBytes, "down").start();
+                }
+            } catch (IOException e) {
+                //已关闭
+            }
+        });
+    }
+
+    public long getToServerBytes() {
+        return toServerBytes.get();
+    }
+
+    public long getToClientBytes() {
+        return toClientBytes.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        listener.close();
+        for (SocketChannel socket : sockets) {
+            socket.close();
+        }
+    }
+
+    private static void startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void sleepUntil(long deadlineNanos) {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static class Chunk {
+        final ByteBuffer buffer;
+        long arrivedNanos;
+
+        Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    //对端关闭写方向
+    private static final Chunk EOF = new Chunk(ByteBuffer.allocate(0));
+
+    private class Pipe {
+        private final SocketChannel from;
+        private final SocketChannel to;
+        private final AtomicLong counter;
+        private final String direction;
+        private final ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT);
+        private final ArrayBlockingQueue<Chunk> pending = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT + 1);
+
+        Pipe(SocketChannel from, SocketChannel to, AtomicLong counter, String direction) {
+            this.from = from;
+            this.to = to;
+            this.counter = counter;
+            this.direction = direction;
+            for (int i = 0; i < CHUNKS_IN_FLIGHT; i++) {
+                free.add(new Chunk(ByteBuffer.allocateDirect(CHUNK_SIZE)));
+            }
+        }
+
+        void start() {
+            startThread("Link-" + profile.name + "-" + direction + "-read", this::readLoop);
+            startThread("Link-" + profile.name + "-" + direction + "-write", this::writeLoop);
+        }
+
+        private void readLoop() {
+            try {
+                while (true) {
+                    Chunk chunk = free.take();
+                    chunk.buffer.clear();
+                    if (from.read(chunk.buffer) == -1) {
+                        pending.put(EOF);
+                        return;
+                    }
+                    chunk.buffer.flip();
+                    chunk.arrivedNanos = System.nanoTime();
+                    pending.put(chunk);
+                }
+            } catch (IOException | InterruptedException e) {
+                closeQuietly();
+            }
+        }
+
+        private void writeLoop() {
+            //链路下一次空闲的时刻
+            long nextFreeNanos = 0;
+            try {
+                while (true) {
+                    Chunk chunk = pending.take();
+                    if (chunk == EOF) {
+                        to.shutdownOutput();
+                        return;
+                    }
+                    long sendAt = chunk.arrivedNanos + profile.latencyNanos;
+                    if (profile.bytesPerSecond > 0 && nextFreeNanos > sendAt) {
+                        sendAt = nextFreeNanos;
+                    }
+                    sleepUntil(sendAt);
+                    int length = chunk.buffer.remaining();
+                    while (chunk.buffer.hasRemaining()) {
+                        to.write(chunk.buffer);
+                    }
+                    counter.addAndGet(length);
+                    if (profile.bytesPerSecond > 0) {
+                        nextFreeNanos = sendAt + length * 1_000_000_000L / profile.bytesPerSecond;
+                    }
+                    free.put(chunk);
+                }
+            } catch (IOException | InterruptedException e) {
+                closeQuietly();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                from.close();
+                to.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package top.weixiansen574.hybridfilexfer.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import top.weixiansen574.hybridfilexfer.core.FileBlock;
+import top.weixiansen574.hybridfilexfer.core.WriteFileCall;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WriteFileCall的重排队列：接收线程putBlock，写线程tryTakeBlockInternal按顺序取出。
+ * 块按发送端的方式轮流分到各通道，测得每个块一次放入加一次取出的耗时
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteFileCallBenchmark {
+    private static final int BLOCK_COUNT = 1024;
+    //每个文件的块数，跨文件时比较的是文件序号
+    private static final int BLOCKS_PER_FILE = 16;
+
+    @Param({"1", "2", "4", "8"})
+    public int channels;
+
+    private WriteFileCall writeFileCall;
+    private FileBlock[] blocks;
+
+    @Setup
+    public void setup() {
+        writeFileCall = new NoopWriteFileCall(new LinkedBlockingDeque<>(), channels);
+        blocks = new FileBlock[BLOCK_COUNT];
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            int fileIndex = i / BLOCKS_PER_FILE;
+            blocks[i] = new FileBlock(true, fileIndex, "/bench/" + fileIndex, 0,
+                    (long) BLOCKS_PER_FILE * FileBlock.BLOCK_SIZE, i % BLOCKS_PER_FILE, null);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_COUNT)
+    public void putThenTake(Blackhole blackhole) {
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            writeFileCall.putBlock(blocks[i], i % channels);
+        }
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            blackhole.consume(writeFileCall.tryTakeBlockInternal());
+        }
+    }
+
+    /**
+     * 每放入一个块就取出一个，队列几乎总是空的（接收和写入速度相当时的情况）
+     */
+    @Benchmark
+    @OperationsPerInvocation(BLOCK_COUNT)
+    public void interleaved(Blackhole blackhole) {
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            writeFileCall.putBlock(blocks[i], i % channels);
+            blackhole.consume(writeFileCall.tryTakeBlockInternal());
+        }
+    }
+
+    static class NoopWriteFileCall extends WriteFileCall {
+        NoopWriteFileCall(LinkedBlockingDeque<ByteBuffer> buffers, int dequeCount) {
+            super(buffers, dequeCount);
+        }
+
+        @Override
+        protected void createParentDirIfNotExists(String path) {
+        }
+
+        @Override
+        protected void tryMkdirs(String path) {
+        }
+
+        @Override
+        protected FileChannel createAndOpenFile(String path, long length, boolean truncate) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void closeFile() {
+        }
+
+        @Override
+        protected boolean setFileLastModified(String path, long time) {
+            return true;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package top.weixiansen574.hybridfilexfer;
 
+import top.weixiansen574.hybridfilexfer.core.ChannelSecurity;
 import top.weixiansen574.hybridfilexfer.core.Utils;
+import top.weixiansen574.hybridfilexfer.core.ReadFileCall;
+import top.weixiansen574.hybridfilexfer.core.WriteFileCall;
 import top.weixiansen574.hybridfilexfer.core.bean.TrafficInfo;
 import top.weixiansen574.hybridfilexfer.core.callback.ClientCallBack;
 import top.weixiansen574.hybridfilexfer.core.callback.ConnectServerCallback;
@@ -98,6 +101,15 @@ public class Main {
             Strings.printf("client_exit");
         }
 
+        @Override
+        public void onChannelsSecured(String verificationCode, List<String> encryptedChannels) {
+            if (verificationCode == null) {
+                Strings.printf("encryption_unsupported");
+            } else {
+                Strings.printf("channels_secured", String.join(", ", encryptedChannels), verificationCode);
+            }
+        }
+
         @Override
         public void onFileUploading(String iName, String path, long targetSize, long totalSize) {
             double progress = totalSize > 0 ? (double) targetSize / totalSize * 100 : 0;
@@ -122,7 +134,9 @@ public class Main {
                     System.out.printf("{Channel=`%s`, Upload=`%.2f MB/s`, Download=`%.2f MB/s`}|\n",
                             info.iName, uploadSpeed, downloadSpeed);
                     // 更新速度信息到服务器
-                    TransferStatusServer.updateSpeedInfo(info.iName, uploadSpeed, downloadSpeed);
+                    TransferStatusServer.updateSpeedInfo(info.iName, uploadSpeed, downloadSpeed,
+                            info.uploadAverageRate, info.uploadPeakRate,
+                            info.downloadAverageRate, info.downloadPeakRate);
                 }
             }
         }
@@ -221,10 +235,60 @@ public class Main {
         }
 
         JdkHFXClient hfxClient = new JdkHFXClient(serverAddress, 5740, homeDir);
+        //-engine selector 使用单线程Selector事件循环驱动所有传输通道
+        hfxClient.setUseSelectorEngine("selector".equals(paramMap.get("-engine")));
+        //-durability none|file|group 接收文件的落盘方式
+        String durability = paramMap.get("-durability");
+        if ("file".equals(durability)) {
+            hfxClient.setDurability(WriteFileCall.DURABILITY_PER_FILE);
+        } else if ("group".equals(durability)) {
+            hfxClient.setDurability(WriteFileCall.DURABILITY_GROUP_COMMIT);
+        }
+        //-order walk|small|large|interleave 发送文件的顺序
+        String order = paramMap.get("-order");
+        if ("small".equals(order)) {
+            hfxClient.setSendOrder(ReadFileCall.ORDER_SMALL_FIRST);
+        } else if ("large".equals(order)) {
+            hfxClient.setSendOrder(ReadFileCall.ORDER_LARGE_FIRST);
+        } else if ("interleave".equals(order)) {
+            hfxClient.setSendOrder(ReadFileCall.ORDER_INTERLEAVE);
+        }
+        //-directio <MB> 大文件使用直接IO读写
+        String directIo = paramMap.get("-directio");
+        if (directIo != null) {
+            try {
+                hfxClient.setDirectIoThreshold(Long.parseLong(directIo) * 1024 * 1024);
+            } catch (NumberFormatException e) {
+                System.out.println(Strings.get("usage"));
+                return;
+            }
+        }
+        //-writers <n> 并行创建小文件的线程数，0为由写线程逐个创建
+        String writers = paramMap.get("-writers");
+        if (writers != null) {
+            try {
+                hfxClient.setSmallFileWorkers(Integer.parseInt(writers));
+            } catch (NumberFormatException e) {
+                System.out.println(Strings.get("usage"));
+                return;
+            }
+        }
+        //-encrypt on|all|off 加密控制通道与传输通道（on不加密USB_ADB）
+        String encrypt = paramMap.get("-encrypt");
+        if ("on".equals(encrypt)) {
+            hfxClient.setEncryption(ChannelSecurity.ENCRYPT_EXCEPT_USB);
+        } else if ("all".equals(encrypt)) {
+            hfxClient.setEncryption(ChannelSecurity.ENCRYPT_ALL);
+        }
+        //-archive <dir> 以归档模式接收，每次传输写成该目录下的一个tar文件
+        hfxClient.setArchiveDirectory(paramMap.get("-archive"));
         if (hfxClient.connect(connectServerCallback)) {
             // 启动传输状态监控服务器
             try {
-                statusServer = new TransferStatusServer(STATUS_SERVER_PORT); // 保存实例
+                statusServer = new TransferStatusServer(STATUS_SERVER_PORT,
+                        new File(System.getProperty("user.dir"), "history")); // 保存实例
+                //传输之间可经 /receive-mode 切换接收方式
+                statusServer.setArchiveControl(hfxClient::getArchiveDirectory, hfxClient::setArchiveDirectory);
                 statusServer.start();
             } catch (IOException e) {
                 System.err.println("Failed to start transfer status server: " + e.getMessage());
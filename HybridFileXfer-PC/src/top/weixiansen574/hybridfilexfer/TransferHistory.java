@@ -0,0 +1,373 @@
+package top.weixiansen574.hybridfilexfer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 服务端的传输历史记录，保存在磁盘上，只追加不修改。
+ * <pre>
+ * history.log  记录本体：[int 长度][long 完成时间][byte 方向][byte 文件类型][long 大小][int 路径字节数][UTF-8 路径]
+ * history.idx  定长索引，每条 {@link #INDEX_ENTRY_SIZE} 字节：[long 记录偏移][long 完成时间][byte 方向][byte 文件类型][6字节保留]
+ * history.del  已删除记录的序号（long）
+ * </pre>
+ * 记录的序号即其在索引中的位置。启动时索引载入内存（每条约18字节），按时间、方向、文件类型筛选只需扫描数组，
+ * 只有命中的记录（或按文件名搜索时）才从内存映射的记录文件中读取本体。写入由单独的线程完成，先写记录再写索引，
+ * 进程意外退出后启动时按记录文件补齐或截断索引。
+ */
+class TransferHistory {
+    static final int INDEX_ENTRY_SIZE = 24;
+    static final byte TYPE_UPLOAD = 0;
+    static final byte TYPE_DOWNLOAD = 1;
+    //与网页的 FILE_TYPES 保持一致，最后一项为其他
+    static final String[] CATEGORIES = {
+            "archive", "executable", "apk", "document", "image", "video", "audio", "iso", "text", "other"
+    };
+    private static final String[][] CATEGORY_EXTENSIONS = {
+            {"zip", "rar", "7z", "tar", "gz"},
+            {"exe", "msi", "bat", "cmd", "sh"},
+            {"apk"},
+            {"pdf", "doc", "docx", "xls", "xlsx", "ppt", "pptx"},
+            {"jpg", "jpeg", "png", "gif", "bmp", "svg"},
+            {"mp4", "mov", "avi", "mkv", "flv", "wmv"},
+            {"mp3", "wav", "ogg", "flac", "aac"},
+            {"iso", "img", "bin"},
+            {"txt", "log", "ini", "conf", "json", "xml", "html", "css", "js"}
+    };
+    private static final Map<String, Byte> categoryByExtension = new HashMap<>();
+
+    static {
+        for (int i = 0; i < CATEGORY_EXTENSIONS.length; i++) {
+            for (String extension : CATEGORY_EXTENSIONS[i]) {
+                categoryByExtension.put(extension, (byte) i);
+            }
+        }
+    }
+
+    static class Record {
+        long id;
+        final long endTime;
+        final byte type;
+        final byte category;
+        final long size;
+        final String path;
+
+        Record(long endTime, byte type, byte category, long size, String path) {
+            this.endTime = endTime;
+            this.type = type;
+            this.category = category;
+            this.size = size;
+            this.path = path;
+        }
+
+        String getFileName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        String getFolderPath() {
+            int lastSlash = path.lastIndexOf('/');
+            return lastSlash > 0 ? path.substring(0, lastSlash + 1) : "/";
+        }
+    }
+
+    /**
+     * 查询条件，字段为null或-1表示不限
+     */
+    static class Query {
+        //只返回序号小于该值的记录，用于翻页
+        long before = Long.MAX_VALUE;
+        int limit = 100;
+        int type = -1;
+        int category = -1;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        //文件名包含（不区分大小写）
+        String search;
+    }
+
+    static class Page {
+        final List<Record> records;
+        final boolean hasMore;
+
+        Page(List<Record> records, boolean hasMore) {
+            this.records = records;
+            this.hasMore = hasMore;
+        }
+    }
+
+    private final File logFile;
+    private final File indexFile;
+    private final File deletedFile;
+    private final LinkedBlockingQueue<Record> writeQueue = new LinkedBlockingQueue<>();
+
+    //以下由this保护
+    private long[] offsets = new long[1024];
+    private long[] endTimes = new long[1024];
+    private byte[] types = new byte[1024];
+    private byte[] categories = new byte[1024];
+    private int count = 0;
+    private final BitSet deleted = new BitSet();
+    private final RandomAccessFile reader;
+    //查询时按需重新映射以包含新追加的记录
+    private MappedByteBuffer mapped;
+    private final DataOutputStream logOut;
+    private final DataOutputStream indexOut;
+    private final DataOutputStream deletedOut;
+    private long logLength;
+
+    TransferHistory(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create history directory: " + directory);
+        }
+        logFile = new File(directory, "history.log");
+        indexFile = new File(directory, "history.idx");
+        deletedFile = new File(directory, "history.del");
+        recover();
+        reader = new RandomAccessFile(logFile, "r");
+        logOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+        indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        deletedOut = new DataOutputStream(new FileOutputStream(deletedFile, true));
+        Thread writer = new Thread(this::writeLoop, "TransferHistoryWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 载入索引，并与记录文件对齐
+     */
+    private void recover() throws IOException {
+        try (RandomAccessFile log = new RandomAccessFile(logFile, "rw");
+             RandomAccessFile index = new RandomAccessFile(indexFile, "rw")) {
+            logLength = log.length();
+            int entries = (int) (index.length() / INDEX_ENTRY_SIZE);
+            ensureCapacity(entries);
+            index.seek(0);
+            for (int i = 0; i < entries; i++) {
+                long offset = index.readLong();
+                long endTime = index.readLong();
+                byte type = index.readByte();
+                byte category = index.readByte();
+                index.skipBytes(INDEX_ENTRY_SIZE - 18);
+                if (offset >= logLength) {
+                    break;
+                }
+                offsets[count] = offset;
+                endTimes[count] = endTime;
+                types[count] = type;
+                categories[count] = category;
+                count++;
+            }
+            //从最后一条已索引记录之后扫描，补齐未写入索引的记录
+            long position = 0;
+            while (count > 0) {
+                long offset = offsets[count - 1];
+                if (offset + 4 <= logLength) {
+                    log.seek(offset);
+                    long end = offset + 4 + log.readInt();
+                    if (end <= logLength) {
+                        position = end;
+                        break;
+                    }
+                }
+                //索引指向不完整的记录
+                count--;
+            }
+            List<long[]> rebuilt = new ArrayList<>();
+            while (position + 4 <= logLength) {
+                log.seek(position);
+                int length = log.readInt();
+                if (length < 22 || position + 4 + length > logLength) {
+                    break;
+                }
+                long endTime = log.readLong();
+                byte type = log.readByte();
+                byte category = log.readByte();
+                rebuilt.add(new long[]{position, endTime, type, category});
+                position += 4 + length;
+            }
+            //丢弃写了一半的记录
+            if (position < logLength) {
+                log.setLength(position);
+                logLength = position;
+            }
+            index.setLength((long) count * INDEX_ENTRY_SIZE);
+            index.seek(index.length());
+            ensureCapacity(count + rebuilt.size());
+            for (long[] entry : rebuilt) {
+                writeIndexEntry(index, entry[0], entry[1], (byte) entry[2], (byte) entry[3]);
+                offsets[count] = entry[0];
+                endTimes[count] = entry[1];
+                types[count] = (byte) entry[2];
+                categories[count] = (byte) entry[3];
+                count++;
+            }
+        }
+        if (deletedFile.exists()) {
+            try (RandomAccessFile file = new RandomAccessFile(deletedFile, "rw")) {
+                long entries = file.length() / 8;
+                file.setLength(entries * 8);
+                for (long i = 0; i < entries; i++) {
+                    long id = file.readLong();
+                    if (id >= 0 && id < count) {
+                        deleted.set((int) id);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void writeIndexEntry(DataOutput out, long offset, long endTime, byte type, byte category) throws IOException {
+        out.writeLong(offset);
+        out.writeLong(endTime);
+        out.writeByte(type);
+        out.writeByte(category);
+        out.write(new byte[INDEX_ENTRY_SIZE - 18]);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= offsets.length) {
+            return;
+        }
+        int newLength = Math.max(capacity, offsets.length * 2);
+        offsets = Arrays.copyOf(offsets, newLength);
+        endTimes = Arrays.copyOf(endTimes, newLength);
+        types = Arrays.copyOf(types, newLength);
+        categories = Arrays.copyOf(categories, newLength);
+    }
+
+    /**
+     * 记录一个已完成的文件，不阻塞调用方
+     */
+    void append(String path, boolean download, long size) {
+        String normalized = path.replace("\\", "/");
+        writeQueue.add(new Record(System.currentTimeMillis(), download ? TYPE_DOWNLOAD : TYPE_UPLOAD,
+                categoryOf(normalized), size, normalized));
+    }
+
+    static byte categoryOf(String path) {
+        String fileName = path.substring(path.lastIndexOf('/') + 1);
+        String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        Byte category = categoryByExtension.get(extension);
+        return category != null ? category : (byte) (CATEGORIES.length - 1);
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(writeQueue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            writeQueue.drainTo(batch);
+            try {
+                write(batch);
+            } catch (IOException e) {
+                System.err.println("Failed to write transfer history: " + e);
+            }
+            batch.clear();
+        }
+    }
+
+    private synchronized void write(List<Record> batch) throws IOException {
+        long[] batchOffsets = new long[batch.size()];
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        for (int i = 0; i < batch.size(); i++) {
+            Record record = batch.get(i);
+            //记录前要写长度，所以先写入内存
+            body.reset();
+            bodyOut.writeLong(record.endTime);
+            bodyOut.writeByte(record.type);
+            bodyOut.writeByte(record.category);
+            bodyOut.writeLong(record.size);
+            byte[] path = record.path.getBytes(StandardCharsets.UTF_8);
+            bodyOut.writeInt(path.length);
+            bodyOut.write(path);
+            batchOffsets[i] = logLength;
+            logOut.writeInt(body.size());
+            body.writeTo(logOut);
+            logLength += 4 + body.size();
+        }
+        logOut.flush();
+        //记录写出后才写索引，中途退出时启动会按记录补齐索引
+        ensureCapacity(count + batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            Record record = batch.get(i);
+            writeIndexEntry(indexOut, batchOffsets[i], record.endTime, record.type, record.category);
+            offsets[count] = batchOffsets[i];
+            endTimes[count] = record.endTime;
+            types[count] = record.type;
+            categories[count] = record.category;
+            count++;
+        }
+        indexOut.flush();
+    }
+
+    synchronized Page query(Query query) throws IOException {
+        List<Record> records = new ArrayList<>(Math.min(query.limit, 1000));
+        String search = query.search == null || query.search.isEmpty() ? null : query.search.toLowerCase(Locale.ROOT);
+        if (mapped == null || mapped.capacity() < logLength) {
+            mapped = reader.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, logLength);
+        }
+        int start = (int) Math.min(query.before, count) - 1;
+        for (int i = start; i >= 0; i--) {
+            if (deleted.get(i)
+                    || (query.type >= 0 && types[i] != query.type)
+                    || (query.category >= 0 && categories[i] != query.category)
+                    || endTimes[i] < query.from || endTimes[i] > query.to) {
+                continue;
+            }
+            Record record = readRecord(i);
+            if (search != null && !record.getFileName().toLowerCase(Locale.ROOT).contains(search)) {
+                continue;
+            }
+            if (records.size() == query.limit) {
+                return new Page(records, true);
+            }
+            records.add(record);
+        }
+        return new Page(records, false);
+    }
+
+    private Record readRecord(int id) {
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position((int) offsets[id] + 4);
+        long endTime = buffer.getLong();
+        byte type = buffer.get();
+        byte category = buffer.get();
+        long size = buffer.getLong();
+        byte[] path = new byte[buffer.getInt()];
+        buffer.get(path);
+        Record record = new Record(endTime, type, category, size, new String(path, StandardCharsets.UTF_8));
+        record.id = id;
+        return record;
+    }
+
+    synchronized void delete(long[] ids) throws IOException {
+        for (long id : ids) {
+            if (id >= 0 && id < count && !deleted.get((int) id)) {
+                deletedOut.writeLong(id);
+                deleted.set((int) id);
+            }
+        }
+        deletedOut.flush();
+    }
+}
@@ -1,37 +1,54 @@
 package top.weixiansen574.hybridfilexfer;
 
+import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.LinkedHashMap;
-public class TransferStatusServer {
-    private static class TransferStatus {
-        String path;
-        double progress;
-        double currentSize;
-        double totalSize;
-        String type;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
-        public TransferStatus(String path, double progress, double currentSize, double totalSize, String type) {
-            this.path = path;
-            this.progress = progress;
-            this.currentSize = currentSize;
-            this.totalSize = totalSize;
-            this.type = type;
-        }
-    }
+import top.weixiansen574.hybridfilexfer.TransferStatusStore.TransferStatus;
+import top.weixiansen574.hybridfilexfer.core.BandwidthLimits;
+import top.weixiansen574.hybridfilexfer.core.TransferMetrics;
 
+public class TransferStatusServer {
     // 修改为 ConcurrentLinkedDeque 以保持插入顺序
     private static class SpeedInfo {
         String channelName;
         double uploadSpeed;
         double downloadSpeed;
+        //本次传输的平均与峰值速率
+        double uploadAverage;
+        double uploadPeak;
+        double downloadAverage;
+        double downloadPeak;
 
         public SpeedInfo(String channelName, double uploadSpeed, double downloadSpeed) {
             this.channelName = channelName;
@@ -40,13 +57,45 @@ public class TransferStatusServer {
         }
     }
 
-    private static final ConcurrentLinkedDeque<TransferStatus> currentTransfers = new ConcurrentLinkedDeque<>();
+    // 每个 /events 客户端积压的事件上限，超过时断开该客户端，由浏览器重连后重新获取快照
+    private static final int MAX_PENDING_EVENTS = 4096;
+    // 没有事件时发送注释行的间隔，用于发现已断开的客户端
+    private static final long KEEP_ALIVE_MILLIS = 15000;
+    // 放入客户端队列表示需要断开
+    private static final String CLOSE_EVENT = "";
+
+    private static final CopyOnWriteArrayList<LinkedBlockingQueue<String>> eventClients = new CopyOnWriteArrayList<>();
+    private static final TransferStatusStore transferStore = new TransferStatusStore(TransferStatusServer::onFileChanged);
     private static final ConcurrentLinkedDeque<SpeedInfo> speedInfos = new ConcurrentLinkedDeque<>(); // 新增速度队列
+    // 限速接口的单位为 MB/s
+    private static final double BYTES_PER_MB = 1024.0 * 1024.0;
+    // 每页历史记录的上限
+    private static final int MAX_HISTORY_PAGE = 1000;
+    // 历史记录，打开失败时为null
+    private static volatile TransferHistory history;
     private final HttpServer server;
+    private final ExecutorService executor;
+    // 读取与修改归档接收目录，未设置时 /receive-mode 不可用
+    private volatile Supplier<String> archiveGetter;
+    private volatile Consumer<String> archiveSetter;
 
     // 在构造函数中添加新的路由
-    public TransferStatusServer(int port) throws IOException {
-        server = HttpServer.create(new InetSocketAddress(port), 0);
+    public TransferStatusServer(int port, File historyDirectory) throws IOException {
+        try {
+            history = new TransferHistory(historyDirectory);
+        } catch (IOException e) {
+            System.err.println("Failed to open transfer history: " + e.getMessage());
+        }
+        // 只供本机界面使用，不监听其他网卡，局域网中的其他主机无法访问（尤其是修改状态的 POST 接口）
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        // /events 的每个客户端长期占用一个线程，不能使用默认的单线程执行器
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "StatusHttp-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
     
  
         // 原有的JSON API保持不变
@@ -81,6 +130,420 @@ public class TransferStatusServer {
                 os.write(response.getBytes());
             }
         });
+
+        // 历史记录：GET 分页查询，POST /history/delete 删除（请求体为逗号分隔的id）
+        server.createContext("/history", this::handleHistory);
+
+        // 带宽限制：GET 查询，POST 修改（请求体如 global=20&WLAN=5，单位MB/s，0为不限速），传输中立即生效
+        server.createContext("/limits", this::handleLimits);
+
+        // 接收方式：GET 查询，POST 切换（请求体 mode=files 或 mode=archive&directory=<目录>），对之后开始的传输生效
+        server.createContext("/receive-mode", this::handleReceiveMode);
+
+        // Server-Sent Events：先推送一次完整快照，之后只推送变化
+        server.createContext("/events", this::handleEvents);
+
+        // Prometheus 抓取的指标（各阶段耗时直方图、队列深度）
+        server.createContext("/metrics", exchange -> {
+            byte[] response = TransferMetrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        });
+    }
+
+    private void handleEvents(HttpExchange exchange) throws IOException {
+        LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>(MAX_PENDING_EVENTS);
+        // 先订阅再取快照，快照之后的变化不会丢失（重复的变化是幂等的）
+        eventClients.add(queue);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(formatEvent("snapshot", getCurrentTransferStatusJson()).getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                while (true) {
+                    String event = queue.poll(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (event == null) {
+                        os.write(": keep-alive\n\n".getBytes(StandardCharsets.UTF_8));
+                    } else if (event == CLOSE_EVENT) {
+                        break;
+                    } else {
+                        // 顺带写出已积压的事件，减少flush次数
+                        StringBuilder batch = new StringBuilder(event);
+                        while ((event = queue.poll()) != null && event != CLOSE_EVENT) {
+                            batch.append(event);
+                        }
+                        os.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+                        if (event == CLOSE_EVENT) {
+                            os.flush();
+                            break;
+                        }
+                    }
+                    os.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            // 服务关闭
+        } catch (IOException e) {
+            // 客户端已断开
+        } finally {
+            eventClients.remove(queue);
+            exchange.close();
+        }
+    }
+
+    private void handleHistory(HttpExchange exchange) throws IOException {
+        try {
+            if (!acceptOrigin(exchange)) {
+                return;
+            }
+            TransferHistory history = TransferStatusServer.history;
+            String response;
+            int code = 200;
+            try {
+                if (history == null) {
+                    code = 503;
+                    response = "{\"error\":\"history unavailable\"}";
+                } else if (exchange.getRequestURI().getPath().endsWith("/delete")) {
+                    if (!"POST".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    history.delete(parseIds(readBody(exchange.getRequestBody())));
+                    response = "{\"ok\":true}";
+                } else {
+                    response = getHistoryJson(history.query(parseHistoryQuery(exchange.getRequestURI().getRawQuery())));
+                }
+            } catch (NumberFormatException e) {
+                code = 400;
+                response = "{\"error\":\"bad request\"}";
+            }
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(code, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } finally {
+            // 405 时没有响应体，同样要关闭交换
+            exchange.close();
+        }
+    }
+
+    /**
+     * 修改状态的 POST 只接受本机界面发来的请求：不带 Origin 的本机程序、桌面程序从磁盘打开的页面（Origin 为 null）
+     * 与本机地址上的页面。浏览器中打开的其他网页也能直接发出表单格式的 POST，不检查的话任意网页都能改动传输。
+     * GET 只读，仍允许任意来源；POST 的响应只对本机界面开放。
+     *
+     * @return 是否继续处理；拒绝时已回复 403
+     */
+    private static boolean acceptOrigin(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+            return true;
+        }
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        if (origin == null) {
+            return true;
+        }
+        if (!isLocalOrigin(origin)) {
+            exchange.sendResponseHeaders(403, -1);
+            exchange.close();
+            return false;
+        }
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", origin);
+        exchange.getResponseHeaders().set("Vary", "Origin");
+        return true;
+    }
+
+    private static boolean isLocalOrigin(String origin) {
+        if ("null".equals(origin)) {
+            return true;
+        }
+        try {
+            URI uri = new URI(origin);
+            String host = uri.getHost();
+            return ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) && host != null
+                    && ("localhost".equals(host) || "127.0.0.1".equals(host) || "[::1]".equals(host));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    public void setArchiveControl(Supplier<String> getter, Consumer<String> setter) {
+        archiveGetter = getter;
+        archiveSetter = setter;
+    }
+
+    private void handleReceiveMode(HttpExchange exchange) throws IOException {
+        // 决定之后接收的文件写到哪里，只接受本机界面
+        if (!acceptOrigin(exchange)) {
+            return;
+        }
+        Supplier<String> getter = archiveGetter;
+        Consumer<String> setter = archiveSetter;
+        String response;
+        int code = 200;
+        if (getter == null || setter == null) {
+            code = 503;
+            response = "{\"error\":\"receive mode unavailable\"}";
+        } else {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                Map<String, String> params = parseForm(readBody(exchange.getRequestBody()));
+                String mode = params.get("mode");
+                String directory = params.get("directory");
+                if ("files".equals(mode)) {
+                    setter.accept(null);
+                } else if ("archive".equals(mode) && isWritableDirectory(directory)) {
+                    setter.accept(directory.trim());
+                } else {
+                    code = 400;
+                }
+            }
+            String directory = getter.get();
+            response = code == 400 ? "{\"error\":\"bad request\"}" : directory == null
+                    ? "{\"mode\":\"files\"}"
+                    : "{\"mode\":\"archive\",\"directory\":\"" + directory.replace("\\", "/").replace("\"", "\\\"") + "\"}";
+        }
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    // 归档目录必须已存在且可写，不替用户创建目录
+    private static boolean isWritableDirectory(String directory) {
+        if (directory == null || directory.trim().isEmpty()) {
+            return false;
+        }
+        try {
+            Path path = Paths.get(directory.trim());
+            return Files.isDirectory(path) && Files.isWritable(path);
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+
+    private static Map<String, String> parseForm(String body) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : body.trim().split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private void handleLimits(HttpExchange exchange) throws IOException {
+        // 限速可以让正在进行的传输停住，同样只接受本机界面
+        if (!acceptOrigin(exchange)) {
+            return;
+        }
+        String response;
+        int code = 200;
+        try {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                applyLimits(readBody(exchange.getRequestBody()));
+                response = getLimitsJson();
+            } else {
+                response = getLimitsJson();
+            }
+        } catch (NumberFormatException e) {
+            code = 400;
+            response = "{\"error\":\"bad request\"}";
+        }
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * 先全部解析再应用，格式错误时不会只改了一半
+     */
+    private static void applyLimits(String body) throws UnsupportedEncodingException {
+        Map<String, Long> limits = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : parseForm(body).entrySet()) {
+            double megabytes = Double.parseDouble(entry.getValue().trim());
+            if (megabytes < 0 || Double.isNaN(megabytes) || Double.isInfinite(megabytes)) {
+                throw new NumberFormatException("Invalid limit: " + megabytes);
+            }
+            limits.put(entry.getKey(), (long) (megabytes * BYTES_PER_MB));
+        }
+        for (Map.Entry<String, Long> entry : limits.entrySet()) {
+            if ("global".equals(entry.getKey())) {
+                BandwidthLimits.setGlobalLimit(entry.getValue());
+            } else {
+                BandwidthLimits.setChannelLimit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static String getLimitsJson() {
+        StringBuilder json = new StringBuilder();
+        json.append(String.format("{\"global\":%.2f,\"channels\":[", BandwidthLimits.getGlobalLimit() / BYTES_PER_MB));
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : BandwidthLimits.getChannelLimits().entrySet()) {
+            if (!first) {
+                json.append(",");
+            }
+            json.append(String.format("{\"channel\":\"%s\",\"limit\":%.2f}",
+                    entry.getKey().replace("\"", "\\\""), entry.getValue() / BYTES_PER_MB));
+            first = false;
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static TransferHistory.Query parseHistoryQuery(String rawQuery) throws UnsupportedEncodingException {
+        TransferHistory.Query query = new TransferHistory.Query();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String key = pair.substring(0, eq);
+            String value = URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            if (value.isEmpty() || "all".equals(value)) {
+                continue;
+            }
+            switch (key) {
+                case "before":
+                    query.before = Long.parseLong(value);
+                    break;
+                case "limit":
+                    query.limit = Math.max(1, Math.min(MAX_HISTORY_PAGE, Integer.parseInt(value)));
+                    break;
+                case "type":
+                    query.type = "download".equals(value) ? TransferHistory.TYPE_DOWNLOAD : TransferHistory.TYPE_UPLOAD;
+                    break;
+                case "category":
+                    query.category = Arrays.asList(TransferHistory.CATEGORIES).indexOf(value);
+                    break;
+                case "from":
+                    query.from = Long.parseLong(value);
+                    break;
+                case "to":
+                    query.to = Long.parseLong(value);
+                    break;
+                case "q":
+                    query.search = value;
+                    break;
+            }
+        }
+        return query;
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static long[] parseIds(String body) {
+        String trimmed = body.trim();
+        if (trimmed.isEmpty()) {
+            return new long[0];
+        }
+        String[] parts = trimmed.split(",");
+        long[] ids = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ids[i] = Long.parseLong(parts[i].trim());
+        }
+        return ids;
+    }
+
+    private static String getHistoryJson(TransferHistory.Page page) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"records\":[");
+        boolean first = true;
+        for (TransferHistory.Record record : page.records) {
+            if (!first) {
+                json.append(",");
+            }
+            json.append("{\"id\":").append(record.id)
+                    .append(",\"path\":\"").append(record.path.replace("\"", "\\\""))
+                    .append("\",\"fileName\":\"").append(record.getFileName().replace("\"", "\\\""))
+                    .append("\",\"folderPath\":\"").append(record.getFolderPath().replace("\"", "\\\""))
+                    .append("\",\"type\":\"").append(record.type == TransferHistory.TYPE_DOWNLOAD ? "download" : "upload")
+                    .append("\",\"status\":\"completed\",\"size\":").append(record.size)
+                    .append(",\"endTime\":").append(record.endTime)
+                    .append(",\"fileTypeCategory\":\"").append(TransferHistory.CATEGORIES[record.category])
+                    .append("\"}");
+            first = false;
+        }
+        json.append("],\"hasMore\":").append(page.hasMore).append("}");
+        return json.toString();
+    }
+
+    private static String formatEvent(String name, String data) {
+        return "event: " + name + "\ndata: " + data + "\n\n";
+    }
+
+    private static void broadcast(String name, String data) {
+        if (eventClients.isEmpty()) {
+            return;
+        }
+        String event = formatEvent(name, data);
+        for (LinkedBlockingQueue<String> queue : eventClients) {
+            if (!queue.offer(event)) {
+                // 客户端跟不上，断开后让其重连获取新的快照
+                queue.clear();
+                queue.offer(CLOSE_EVENT);
+            }
+        }
+    }
+
+    private static void onFileChanged(int change, TransferStatus status) {
+        TransferHistory history = TransferStatusServer.history;
+        if (change == TransferStatusStore.CHANGE_COMPLETED && !status.recorded && history != null) {
+            status.recorded = true;
+            history.append(status.path, "download".equals(status.type), (long) status.totalSize);
+        }
+        String name;
+        switch (change) {
+            case TransferStatusStore.CHANGE_ADDED:
+                name = "file-added";
+                break;
+            case TransferStatusStore.CHANGE_COMPLETED:
+                name = "file-completed";
+                break;
+            default:
+                name = "file-progress";
+                break;
+        }
+        broadcast(name, getFileJson(status));
+    }
+
+    private static String getFileJson(TransferStatus status) {
+        String path = status.path.replace("\\", "/");
+        int lastSlash = path.lastIndexOf('/');
+        String folder = lastSlash > 0 ? path.substring(0, lastSlash + 1) : "/";
+        return "{\"folder\":\"" + folder.replace("\"", "\\\"") + "\"," +
+                "\"path\":\"" + path.replace("\"", "\\\"") + "\"," +
+                "\"progress\":" + Math.min(status.progress, 100.0) + "," +
+                "\"currentSize\":" + (status.progress >= 100.0 ? status.totalSize : status.currentSize) + "," +
+                "\"totalSize\":" + status.totalSize + "," +
+                "\"type\":\"" + status.type + "\"}";
     }
 
     public void start() {
@@ -90,28 +553,29 @@ public class TransferStatusServer {
 
     public void stop() {
         server.stop(0);
+        // 结束仍在推送事件的连接
+        executor.shutdownNow();
         System.out.println("传输状态监控服务已关闭 " + server.getAddress().getPort());
     }
 
+    // 每个块都会调用，只登记进度，由后台线程合并后更新
     public static void updateTransferStatus(String path, double progress, double currentSize, double totalSize, String type) {
-        // 将所有现有任务的进度设为100%
-        for (TransferStatus status : currentTransfers) {
-            status.progress = 100.0;
-            status.currentSize = status.totalSize;
-        }
-        // 移除旧的状态（如果存在）
-        currentTransfers.removeIf(status -> status.path.equals(path));
-        // 添加新的状态到队列尾部
-        currentTransfers.addLast(new TransferStatus(path, progress, currentSize, totalSize, type));
+        transferStore.update(path, progress, currentSize, totalSize, type);
     }
 
     private String getCurrentTransferStatusJson() {
+        return getTransferStatusJson(transferStore.snapshot());
+    }
+
+    /**
+     * 按文件夹分组生成传输状态JSON，transfers按更新顺序（旧的在前）排列
+     */
+    static String getTransferStatusJson(List<TransferStatus> transfers) {
         // 使用LinkedHashMap保持文件夹顺序
         Map<String, List<Map<String, Object>>> folderMap = new LinkedHashMap<>();
         
         // 按文件夹分组（从最新到最旧）
-        ConcurrentLinkedDeque<TransferStatus> reversedTransfers = new ConcurrentLinkedDeque<>(currentTransfers);
-        for (TransferStatus status : reversedTransfers) {
+        for (TransferStatus status : transfers) {
             // 统一路径格式并获取文件夹路径
             String path = status.path.replace("\\", "/");
             int lastSlash = path.lastIndexOf('/');
@@ -170,7 +634,7 @@ public class TransferStatusServer {
         return json.toString();
     }
 
-    private Map<String, Object> createFileInfo(TransferStatus status) {
+    private static Map<String, Object> createFileInfo(TransferStatus status) {
         Map<String, Object> fileInfo = new LinkedHashMap<>();
         // 将Windows路径分隔符\替换为/，并转义特殊字符
         String escapedPath = status.path.replace("\\", "/")
@@ -224,15 +688,31 @@ public class TransferStatusServer {
     }
 
     // 添加更新速度信息的方法
-    public static void updateSpeedInfo(String channelName, double uploadSpeedMB, double downloadSpeedMB) {
+    public static void updateSpeedInfo(String channelName, double uploadSpeedMB, double downloadSpeedMB,
+                                       double uploadAverage, double uploadPeak,
+                                       double downloadAverage, double downloadPeak) {
         // 检查channelName是否为null
         if (channelName == null) {
             return;
         }
+        SpeedInfo speedInfo = new SpeedInfo(channelName, uploadSpeedMB, downloadSpeedMB);
+        speedInfo.uploadAverage = uploadAverage;
+        speedInfo.uploadPeak = uploadPeak;
+        speedInfo.downloadAverage = downloadAverage;
+        speedInfo.downloadPeak = downloadPeak;
         // 移除旧的记录
         speedInfos.removeIf(info -> channelName.equals(info.channelName));
         // 添加新的记录
-        speedInfos.addLast(new SpeedInfo(channelName, uploadSpeedMB, downloadSpeedMB));
+        speedInfos.addLast(speedInfo);
+    }
+
+    private static String getSpeedJson(SpeedInfo info) {
+        return String.format(
+                "{\"channel\":\"%s\",\"upload\":%.2f,\"download\":%.2f," +
+                        "\"uploadAverage\":%.2f,\"uploadPeak\":%.2f,\"downloadAverage\":%.2f,\"downloadPeak\":%.2f}",
+                info.channelName, info.uploadSpeed, info.downloadSpeed,
+                info.uploadAverage, info.uploadPeak, info.downloadAverage, info.downloadPeak
+        );
     }
 
     // 添加获取速度JSON的方法
@@ -244,10 +724,7 @@ public class TransferStatusServer {
             if (!first) {
                 json.append(",");
             }
-            json.append(String.format(
-                "{\"channel\":\"%s\",\"upload\":%.2f,\"download\":%.2f}",
-                info.channelName, info.uploadSpeed, info.downloadSpeed
-            ));
+            json.append(getSpeedJson(info));
             first = false;
         }
         json.append("]}");
@@ -279,12 +756,18 @@ public class TransferStatusServer {
         }
     }
 
+    private static String getConnectionJson(ConnectionStatus status) {
+        return String.format(
+                "{\"eventType\":\"%s\",\"message\":\"%s\",\"timestamp\":%d}",
+                status.eventType,
+                status.message.replace("\"", "\\\""),
+                status.timestamp
+        );
+    }
+
     // 添加这个方法到TransferStatusServer类中
     public static void completeAllTransfers() {
-        currentTransfers.forEach(status -> {
-            status.progress = 100.0;
-            status.currentSize = status.totalSize;
-        });
+        transferStore.completeAll();
     }
 
     // 添加获取连接状态JSON的方法
@@ -296,12 +779,7 @@ public class TransferStatusServer {
             if (!first) {
                 json.append(",");
             }
-            json.append(String.format(
-                "{\"eventType\":\"%s\",\"message\":\"%s\",\"timestamp\":%d}",
-                status.eventType, 
-                status.message.replace("\"", "\\\""),
-                status.timestamp
-            ));
+            json.append(getConnectionJson(status));
             first = false;
         }
         json.append("]}");
@@ -0,0 +1,178 @@
+package top.weixiansen574.hybridfilexfer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 文件传输状态的存储。
+ * <p>
+ * 传输线程每个块都会上报进度，只做O(1)的登记：同一文件未处理的进度只保留最新一条（合并），
+ * 由一个后台线程定时取出并应用到按路径索引的存储中。存储只保留最近 {@link #MAX_RECENT_FILES} 个文件，
+ * 按最近更新的顺序排列，最旧的被淘汰。每个变化都会在后台线程上通知 {@link Listener}。
+ */
+class TransferStatusStore {
+    //新出现的文件
+    static final int CHANGE_ADDED = 0;
+    //进度变化
+    static final int CHANGE_PROGRESS = 1;
+    //传输完成
+    static final int CHANGE_COMPLETED = 2;
+
+    //最多保留的文件数
+    static final int MAX_RECENT_FILES = 2000;
+    //后台线程处理积压进度的间隔
+    private static final long DRAIN_INTERVAL_MILLIS = 50;
+
+    static class TransferStatus {
+        final String path;
+        double progress;
+        double currentSize;
+        double totalSize;
+        final String type;
+        //本次传输中是否已记入历史，同一文件的后续进度会继承
+        boolean recorded;
+
+        TransferStatus(String path, double progress, double currentSize, double totalSize, String type) {
+            this.path = path;
+            this.progress = progress;
+            this.currentSize = currentSize;
+            this.totalSize = totalSize;
+            this.type = type;
+        }
+
+        TransferStatus copy() {
+            return new TransferStatus(path, progress, currentSize, totalSize, type);
+        }
+
+        void complete() {
+            progress = 100.0;
+            currentSize = totalSize;
+        }
+    }
+
+    interface Listener {
+        /**
+         * 在持有存储锁的后台线程上调用，不应阻塞
+         */
+        void onFileChanged(int change, TransferStatus status);
+    }
+
+    private final Listener listener;
+    //未处理的进度，同一路径后到的覆盖先到的
+    private final ConcurrentHashMap<String, TransferStatus> pending = new ConcurrentHashMap<>();
+    //未处理进度的路径，按首次到达的顺序
+    private final ConcurrentLinkedQueue<String> pendingOrder = new ConcurrentLinkedQueue<>();
+
+    //以下由this保护，传输线程不会访问
+    private final LinkedHashMap<String, TransferStatus> recent = new LinkedHashMap<String, TransferStatus>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TransferStatus> eldest) {
+            return size() > MAX_RECENT_FILES;
+        }
+    };
+    //尚未完成的文件，通常只有通道数那么多
+    private final Map<String, TransferStatus> active = new LinkedHashMap<>();
+
+    TransferStatusStore(Listener listener) {
+        this.listener = listener;
+        Thread drainer = new Thread(this::drainLoop, "TransferStatusDrainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * 登记进度，传输线程调用，不加锁
+     */
+    void update(String path, double progress, double currentSize, double totalSize, String type) {
+        if (pending.put(path, new TransferStatus(path, progress, currentSize, totalSize, type)) == null) {
+            pendingOrder.add(path);
+        }
+    }
+
+    /**
+     * 将所有文件标记为已完成（传输结束时调用），之前登记的进度会先被应用
+     */
+    synchronized void completeAll() {
+        drain();
+        for (TransferStatus status : recent.values()) {
+            if (status.progress < 100.0) {
+                status.complete();
+                listener.onFileChanged(CHANGE_COMPLETED, status);
+            }
+        }
+        active.clear();
+        //下次传输同一文件时重新记入历史
+        for (TransferStatus status : recent.values()) {
+            status.recorded = false;
+        }
+    }
+
+    /**
+     * 按更新顺序（旧的在前）返回所有文件状态的副本
+     */
+    synchronized List<TransferStatus> snapshot() {
+        List<TransferStatus> list = new ArrayList<>(recent.size());
+        for (TransferStatus status : recent.values()) {
+            list.add(status.copy());
+        }
+        return list;
+    }
+
+    private void drainLoop() {
+        while (true) {
+            try {
+                Thread.sleep(DRAIN_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                drain();
+            }
+        }
+    }
+
+    //调用方需持有this
+    private void drain() {
+        String path;
+        while ((path = pendingOrder.poll()) != null) {
+            TransferStatus status = pending.remove(path);
+            if (status != null) {
+                apply(status);
+            }
+        }
+    }
+
+    private void apply(TransferStatus status) {
+        //开始传输某个文件时，其他进行中的文件视为已完成
+        Iterator<TransferStatus> iterator = active.values().iterator();
+        while (iterator.hasNext()) {
+            TransferStatus other = iterator.next();
+            if (!other.path.equals(status.path)) {
+                other.complete();
+                iterator.remove();
+                listener.onFileChanged(CHANGE_COMPLETED, other);
+            }
+        }
+        //先移除再放入，使其排到最后（最新）
+        TransferStatus previous = recent.remove(status.path);
+        boolean existed = previous != null;
+        if (existed) {
+            status.recorded = previous.recorded;
+        }
+        recent.put(status.path, status);
+        if (status.progress < 100.0) {
+            active.put(status.path, status);
+            listener.onFileChanged(existed ? CHANGE_PROGRESS : CHANGE_ADDED, status);
+        } else {
+            active.remove(status.path);
+            listener.onFileChanged(CHANGE_COMPLETED, status);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程级的带宽限制：一个全局令牌桶，加上每条传输通道（按通道名称，如 USB_ADB、WLAN）一个令牌桶。
+ * <p>
+ * 上传与下载共用同一个桶，限制的是经过该网卡的总流量。按名称而不是按连接保存，
+ * 重新连接后限速依然有效。默认全部不限速，不限速时传输线程只多读一个volatile字段。
+ */
+public class BandwidthLimits {
+    private static final TokenBucket global = new TokenBucket();
+    private static final Map<String, TokenBucket> channels = new ConcurrentHashMap<>();
+
+    private BandwidthLimits() {
+    }
+
+    public static TokenBucket global() {
+        return global;
+    }
+
+    public static TokenBucket channel(String channelName) {
+        return channels.computeIfAbsent(channelName, name -> new TokenBucket());
+    }
+
+    /**
+     * @param bytesPerSecond 0表示不限速
+     */
+    public static void setGlobalLimit(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+    }
+
+    /**
+     * @param bytesPerSecond 0表示不限速
+     */
+    public static void setChannelLimit(String channelName, long bytesPerSecond) {
+        channel(channelName).setRate(bytesPerSecond);
+    }
+
+    public static long getGlobalLimit() {
+        return global.getRate();
+    }
+
+    /**
+     * @return 出现过的所有通道及其限速（字节/秒，0为不限速），按名称排序
+     */
+    public static Map<String, Long> getChannelLimits() {
+        Map<String, Long> limits = new TreeMap<>();
+        for (Map.Entry<String, TokenBucket> entry : channels.entrySet()) {
+            limits.put(entry.getKey(), entry.getValue().getRate());
+        }
+        return limits;
+    }
+}
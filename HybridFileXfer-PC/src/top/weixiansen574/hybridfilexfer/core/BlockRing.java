@@ -0,0 +1,85 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 定长的无锁环形队列（多生产者多消费者，Vyukov算法），入队出队不分配任何对象。
+ * <p>
+ * 每个槽位带一个序号：序号等于写入位置时可写，等于写入位置+1时可读，读走后加上容量留给下一圈。
+ * 生产者与消费者各自用CAS抢占位置，槽位内容的可见性由序号的volatile读写保证。
+ * 队列满时 {@link #offer} 返回false，空时 {@link #poll} 返回null，阻塞等待由使用方负责。
+ */
+class BlockRing {
+    private final FileBlock[] items;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param minCapacity 至少能容纳的元素数，实际容量向上取2的幂
+     */
+    BlockRing(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity) - 1) << 1;
+        items = new FileBlock[capacity];
+        sequences = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    boolean offer(FileBlock block) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items[index] = block;
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                //这个槽位上一圈的元素还没被取走，队列已满
+                return false;
+            } else {
+                //被其他生产者抢先
+                pos = tail.get();
+            }
+        }
+    }
+
+    FileBlock poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    FileBlock block = items[index];
+                    items[index] = null;
+                    sequences.set(index, pos + mask + 1);
+                    return block;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                //队列为空（或生产者已抢占该槽位但尚未写完）
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        long pos = head.get();
+        return sequences.get((int) pos & mask) != pos + 1;
+    }
+
+    int capacity() {
+        return items.length;
+    }
+}
@@ -0,0 +1,118 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 连接时在后台分配缓冲区块，与控制通道、传输通道的建立同时进行。
+ * <p>
+ * 对方要求的块数要等传输通道全部连接后才知道，所以先按上次连接的块数（不超过 {@link #SPECULATIVE_COUNT}）预分配，
+ * 知道块数后 {@link #await(int)} 补足不够的部分。直接内存只有GC时才会释放，多出的块（以及连接失败时已分配的块）
+ * 不丢弃，交还给客户端留到下次连接复用。分配失败（返回null或直接内存不足）后不再继续。
+ */
+class BufferPoolAllocator implements Runnable {
+    //预分配的块数，多数情况下不超过对方要求的块数
+    static final int SPECULATIVE_COUNT = 32;
+
+    private final HFXClient client;
+    private final Executor executor;
+    private final List<ByteBuffer> allocated = new ArrayList<>();
+    private int target;
+    private boolean running;
+    private boolean failed;
+    private boolean cancelled;
+
+    BufferPoolAllocator(HFXClient client, Executor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * 开始按预估的块数分配，已有的备用块计入其中
+     */
+    synchronized void start(List<ByteBuffer> spare, int speculativeCount) {
+        allocated.addAll(spare);
+        target = speculativeCount;
+        launch();
+    }
+
+    private void launch() {
+        if (!running && !failed && allocated.size() < target) {
+            running = true;
+            executor.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                if (failed || allocated.size() >= target) {
+                    running = false;
+                    if (cancelled) {
+                        returnToClient();
+                    }
+                    notifyAll();
+                    return;
+                }
+            }
+            //分配（清零1MB的直接内存）在锁外进行
+            ByteBuffer buffer;
+            try {
+                buffer = client.createBuffer(FileBlock.BLOCK_SIZE);
+            } catch (OutOfMemoryError e) {
+                //直接内存达到上限，与返回null一样按内存不足处理
+                buffer = null;
+            }
+            synchronized (this) {
+                if (buffer == null) {
+                    failed = true;
+                } else {
+                    allocated.add(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待分配到count块
+     *
+     * @return 恰好count块，内存不足时为null（见 {@link #getAllocatedCount()}）
+     */
+    synchronized List<ByteBuffer> await(int count) throws InterruptedException {
+        target = count;
+        launch();
+        while (running) {
+            wait();
+        }
+        if (allocated.size() < count) {
+            return null;
+        }
+        List<ByteBuffer> result = new ArrayList<>(allocated.subList(0, count));
+        allocated.subList(0, count).clear();
+        returnToClient();
+        return result;
+    }
+
+    synchronized int getAllocatedCount() {
+        return allocated.size();
+    }
+
+    /**
+     * 连接失败时停止分配，已分配的块（包括正在进行的那一块）交还给客户端
+     */
+    synchronized void cancel() {
+        target = 0;
+        cancelled = true;
+        if (!running) {
+            returnToClient();
+        }
+    }
+
+    private void returnToClient() {
+        client.keepSpareBuffers(allocated);
+        allocated.clear();
+    }
+}
@@ -0,0 +1,221 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import top.weixiansen574.nio.DataByteChannel;
+import top.weixiansen574.nio.SecureByteChannel;
+
+/**
+ * 控制通道与传输通道的加密（{@link ProtocolFeatures#ENCRYPTION}）。
+ * <p>
+ * 协商出该特性后，双方立即在控制通道上交换一次握手消息，发起方（服务端）先发：
+ * <pre>
+ * | 之后的长度 int | 公钥长度 short | ECDH公钥（P-256，X.509编码） | 随机数 32B | 通道数 int | 每条通道是否要求加密 boolean... |
+ * </pre>
+ * 由ECDH共享密钥经HKDF-SHA256（盐为双方随机数，info绑定双方的握手消息）为控制通道与每条传输通道的每个方向
+ * 各派生一个AES-128密钥，之后控制通道与任一方要求加密的传输通道都换成 {@link SecureByteChannel}。
+ * 同时派生一个6位校验码，两端显示的校验码一致即可确认中间没有被人替换公钥。
+ */
+public class ChannelSecurity {
+    //不加密（不提供 ENCRYPTION 特性）
+    public static final int ENCRYPT_OFF = 0;
+    //加密控制通道与除USB_ADB以外的传输通道，USB_ADB经数据线转发，不经过任何网络
+    public static final int ENCRYPT_EXCEPT_USB = 1;
+    //所有通道都加密
+    public static final int ENCRYPT_ALL = 2;
+
+    public static final String USB_CHANNEL = "USB_ADB";
+    private static final String CURVE = "secp256r1";
+    private static final int RANDOM_LENGTH = 32;
+    private static final int KEY_LENGTH = 16;
+    //传输通道的一条记录最多是一个完整的帧
+    private static final int MAX_RECORD = FileBlock.BLOCK_SIZE + FrameEncoder.MAX_HEADER_SIZE;
+
+    private final boolean initiator;
+    private final byte[] prk;
+    private final byte[] transcript;
+    private final boolean[] encrypted;
+    public final String verificationCode;
+
+    private ChannelSecurity(boolean initiator, byte[] prk, byte[] transcript, boolean[] encrypted) throws GeneralSecurityException {
+        this.initiator = initiator;
+        this.prk = prk;
+        this.transcript = transcript;
+        this.encrypted = encrypted;
+        byte[] code = expand("verify", 4);
+        verificationCode = String.format("%06d", (ByteBuffer.wrap(code).getInt() & 0x7FFFFFFF) % 1000000);
+    }
+
+    public static boolean wantsEncryption(int policy, String channelName) {
+        return policy == ENCRYPT_ALL || (policy == ENCRYPT_EXCEPT_USB && !USB_CHANNEL.equals(channelName));
+    }
+
+    /**
+     * 在控制通道上完成握手并派生密钥，此时控制通道上不能有其他消息
+     *
+     * @param initiator 发起方（服务端）先发送握手消息
+     */
+    public static ChannelSecurity handshake(DataByteChannel ctChannel, boolean initiator, int policy,
+                                            List<TransferConnection> connections) throws IOException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec(CURVE));
+            KeyPair keyPair = generator.generateKeyPair();
+            byte[] random = new byte[RANDOM_LENGTH];
+            new SecureRandom().nextBytes(random);
+            boolean[] wanted = new boolean[connections.size()];
+            for (int i = 0; i < wanted.length; i++) {
+                wanted[i] = wantsEncryption(policy, connections.get(i).iName);
+            }
+            byte[] local = encodeHello(keyPair.getPublic().getEncoded(), random, wanted);
+            byte[] remote;
+            if (initiator) {
+                ctChannel.write(local);
+                remote = readHello(ctChannel);
+            } else {
+                remote = readHello(ctChannel);
+                ctChannel.write(local);
+            }
+            ByteBuffer hello = ByteBuffer.wrap(remote, 4, remote.length - 4);
+            byte[] remoteKey = new byte[hello.getShort() & 0xFFFF];
+            hello.get(remoteKey);
+            byte[] remoteRandom = new byte[RANDOM_LENGTH];
+            hello.get(remoteRandom);
+            if (hello.getInt() != wanted.length) {
+                throw new IOException("Channel count mismatch");
+            }
+            boolean[] encrypted = new boolean[wanted.length];
+            for (int i = 0; i < wanted.length; i++) {
+                //任一方要求加密即加密
+                boolean remoteWanted = hello.get() != 0;
+                encrypted[i] = wanted[i] || remoteWanted;
+            }
+
+            PublicKey peerKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(remoteKey));
+            if (!(peerKey instanceof ECPublicKey)
+                    || ((ECPublicKey) peerKey).getParams().getCurve().getField().getFieldSize() != 256) {
+                throw new IOException("Unsupported peer key");
+            }
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(keyPair.getPrivate());
+            agreement.doPhase(peerKey, true);
+            byte[] secret = agreement.generateSecret();
+
+            byte[] initiatorHello = initiator ? local : remote;
+            byte[] responderHello = initiator ? remote : local;
+            byte[] salt = concat(initiator ? random : remoteRandom, initiator ? remoteRandom : random);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(initiatorHello);
+            byte[] transcript = digest.digest(responderHello);
+            byte[] prk = hmac(salt, secret);
+            Arrays.fill(secret, (byte) 0);
+            return new ChannelSecurity(initiator, prk, transcript, encrypted);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Key exchange failed", e);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed handshake", e);
+        }
+    }
+
+    //| 之后的长度 int | 公钥长度 short | 公钥 | 随机数 | 通道数 int | 是否要求加密 boolean... |
+    private static byte[] encodeHello(byte[] publicKey, byte[] random, boolean[] wanted) {
+        ByteBuffer hello = ByteBuffer.allocate(4 + 2 + publicKey.length + random.length + 4 + wanted.length);
+        hello.putInt(hello.capacity() - 4);
+        hello.putShort((short) publicKey.length);
+        hello.put(publicKey);
+        hello.put(random);
+        hello.putInt(wanted.length);
+        for (boolean b : wanted) {
+            hello.put((byte) (b ? 1 : 0));
+        }
+        return hello.array();
+    }
+
+    private static byte[] readHello(DataByteChannel ctChannel) throws IOException {
+        int length = ctChannel.readInt();
+        if (length <= 0 || length > 4096) {
+            throw new IOException("Invalid handshake length: " + length);
+        }
+        byte[] hello = new byte[4 + length];
+        ByteBuffer.wrap(hello).putInt(length);
+        ctChannel.readFully(hello, 4, length);
+        return hello;
+    }
+
+    public boolean isEncrypted(int channelIndex) {
+        return encrypted[channelIndex];
+    }
+
+    /**
+     * 控制通道消息小，不并行加解密
+     */
+    public DataByteChannel secureControl(DataByteChannel ctChannel) throws IOException {
+        return new DataByteChannel(new SecureByteChannel(ctChannel,
+                key("control " + direction(true)), key("control " + direction(false)), MAX_RECORD, null));
+    }
+
+    /**
+     * @return 不需要加密时原样返回。加密的通道不再暴露底层SocketChannel，只能使用阻塞式引擎
+     */
+    public TransferConnection secure(int channelIndex, TransferConnection connection, Executor cryptoExecutor) throws IOException {
+        if (!encrypted[channelIndex]) {
+            return connection;
+        }
+        String label = "channel " + channelIndex + " ";
+        return new TransferConnection(connection.iName, new DataByteChannel(new SecureByteChannel(connection.channel,
+                key(label + direction(true)), key(label + direction(false)), MAX_RECORD, cryptoExecutor)));
+    }
+
+    //发起方发出的方向为i2r，收到的方向为r2i；应答方相反
+    private String direction(boolean send) {
+        return send == initiator ? "i2r" : "r2i";
+    }
+
+    private SecretKey key(String label) throws IOException {
+        try {
+            return new SecretKeySpec(expand(label, KEY_LENGTH), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    //HKDF-Expand，输出不超过一个哈希长度
+    private byte[] expand(String label, int length) throws GeneralSecurityException {
+        byte[] info = concat(("hfx " + label).getBytes(StandardCharsets.UTF_8), transcript);
+        byte[] okm = hmac(prk, concat(info, new byte[]{1}));
+        return Arrays.copyOf(okm, length);
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -7,6 +7,17 @@ public class ControllerIdentifiers {
     public static final short MKDIR = 3;
     public static final short REQUEST_RECEIVE = 10;
     public static final short REQUEST_SEND = 11;
+    //以下需协商 ProtocolFeatures.STREAMS
+    public static final short REQUEST_RECEIVE_STREAM = 12;
+    public static final short REQUEST_SEND_STREAM = 13;
+    public static final short NEGOTIATE_FEATURES = 20;
+    public static final short STREAM_RESULT = 21;
+    //以下需协商 ProtocolFeatures.PIPELINED
+    public static final short TAGGED_REQUEST = 22;
+    public static final short REPLY = 23;
+    public static final short PROGRESS = 24;
+    //需协商 ProtocolFeatures.STREAMS：接收端为某个流授予额度，见StreamMux
+    public static final short STREAM_CREDIT = 25;
 
     //就让魔法打败魔法吧！
     /**
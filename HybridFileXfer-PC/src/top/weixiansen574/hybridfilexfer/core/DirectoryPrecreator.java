@@ -0,0 +1,145 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 接收端按目录清单（{@link TransferIdentifiers#MANIFEST}）预先创建整个目录树。
+ * <p>
+ * 清单分段从各传输通道到达，顺序不定，收齐后按层级逐层创建：同一层的文件夹互不依赖，
+ * 分成若干份交给线程池并行创建，一层全部完成后再建下一层，保证父文件夹总是先于子文件夹存在。
+ * 写线程等待整棵树建好后开始写入，之后不必再为每个文件检查父文件夹。
+ */
+class DirectoryPrecreator {
+    //每份至少这么多个文件夹，太少时不值得交给线程池
+    private static final int MIN_SLICE = 64;
+    private static final int PARALLELISM = 8;
+
+    private final WriteFileCall writeFileCall;
+    private final ExecutorService executor;
+    //按层级存放的文件夹路径
+    private final List<List<String>> levels = new ArrayList<>();
+    private int receivedChunks;
+    //清单的总段数，收到最后一段前为0
+    private int totalChunks;
+    private volatile boolean complete;
+    private volatile boolean done;
+    private volatile boolean succeeded;
+
+    DirectoryPrecreator(WriteFileCall writeFileCall, ExecutorService executor) {
+        this.writeFileCall = writeFileCall;
+        this.executor = executor;
+    }
+
+    /**
+     * 传输通道收到一段清单
+     *
+     * @param total 清单总段数，不是最后一段时为0
+     */
+    void onChunk(int total, byte[] data) throws IOException {
+        synchronized (this) {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            while (in.hasRemaining()) {
+                int depth = in.getShort() & 0xFFFF;
+                byte[] path = new byte[in.getShort() & 0xFFFF];
+                in.get(path);
+                while (levels.size() <= depth) {
+                    levels.add(new ArrayList<>());
+                }
+                levels.get(depth).add(new String(path, StandardCharsets.UTF_8));
+            }
+            receivedChunks++;
+            if (total > 0) {
+                totalChunks = total;
+            }
+            if (totalChunks == 0 || receivedChunks < totalChunks) {
+                return;
+            }
+            if (receivedChunks > totalChunks) {
+                throw new IOException("Unexpected manifest chunk");
+            }
+            complete = true;
+        }
+        executor.execute(this::createAll);
+    }
+
+    private void createAll() {
+        boolean ok = true;
+        try {
+            for (List<String> level : levels) {
+                if (writeFileCall.isCanceled()) {
+                    ok = false;
+                    break;
+                }
+                if (!createLevel(level)) {
+                    ok = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            ok = false;
+        } finally {
+            succeeded = ok;
+            done = true;
+            writeFileCall.onDirectoriesCreated();
+        }
+    }
+
+    private boolean createLevel(List<String> level) throws InterruptedException {
+        int slices = Math.min(PARALLELISM, level.size() / MIN_SLICE);
+        if (slices <= 1) {
+            return createSlice(level, 0, level.size());
+        }
+        List<Future<Boolean>> futures = new ArrayList<>(slices);
+        int size = level.size();
+        for (int i = 0; i < slices; i++) {
+            int from = size * i / slices;
+            int to = size * (i + 1) / slices;
+            futures.add(executor.submit(() -> createSlice(level, from, to)));
+        }
+        boolean ok = true;
+        for (Future<Boolean> future : futures) {
+            try {
+                ok &= future.get();
+            } catch (java.util.concurrent.ExecutionException e) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private boolean createSlice(List<String> level, int from, int to) {
+        boolean ok = true;
+        for (int i = from; i < to; i++) {
+            try {
+                writeFileCall.tryMkdirs(level.get(i));
+            } catch (Exception e) {
+                //写线程会退回逐个检查，由它报告具体的错误
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * 清单的所有段都已收到
+     */
+    boolean isComplete() {
+        return complete;
+    }
+
+    boolean isDone() {
+        return done;
+    }
+
+    /**
+     * 所有文件夹都已建好，写线程可以跳过父文件夹检查
+     */
+    boolean isSucceeded() {
+        return succeeded;
+    }
+}
@@ -5,14 +5,29 @@ import java.nio.ByteBuffer;
 
 public class FileBlock implements Comparable<FileBlock> {
     public static final int BLOCK_SIZE = 1024*1024;//1MB
+    //目录清单块的fileIndex，data为编码好的清单，index为清单的总段数（不是最后一段时为0），见 ReadFileCall
+    public static final int MANIFEST_INDEX = -2;
 
-    public final boolean isFile;
-    public final int fileIndex;
-    public final String path;
-    public final long lastModified;
-    public final long totalSize;
-    public final int index;
-    public final ByteBuffer data;
+    //发送端的块描述符由 ReadFileCall 预先分配、循环复用，所以字段不是final；接收端的块仍是一次性的
+    public boolean isFile;
+    public int fileIndex;
+    public String path;
+    public long lastModified;
+    public long totalSize;
+    public int index;
+    public ByteBuffer data;
+    //空洞块（内容全为0）的长度，不占用缓冲区块；普通块为0
+    public int holeLength;
+    //进入当前队列的时间（System.nanoTime()），供 TransferMetrics 统计排队耗时
+    long enqueueNanos;
+    //描述符长期持有的缓冲区块（空洞块、文件夹块的data为null，但仍保留这个缓冲区块供下次使用）
+    ByteBuffer buffer;
+
+    /**
+     * 空的块描述符，由 ReadFileCall 填充后复用
+     */
+    FileBlock() {
+    }
 
     public FileBlock(boolean isFile, int fileIndex, String path, long lastModified, long totalSize, int index, ByteBuffer data) {
         this.isFile = isFile;
@@ -22,6 +37,35 @@ public class FileBlock implements Comparable<FileBlock> {
         this.totalSize = totalSize;
         this.index = index;
         this.data = data;
+        this.holeLength = 0;
+    }
+
+    /**
+     * 空洞块
+     */
+    public FileBlock(int fileIndex, String path, long lastModified, long totalSize, int index, int holeLength) {
+        this.isFile = true;
+        this.fileIndex = fileIndex;
+        this.path = path;
+        this.lastModified = lastModified;
+        this.totalSize = totalSize;
+        this.index = index;
+        this.data = null;
+        this.holeLength = holeLength;
+    }
+
+    /**
+     * 重新填充为数据块、文件夹块（isFile为false）或空洞块（holeLength大于0）
+     */
+    void set(boolean isFile, int fileIndex, String path, long lastModified, long totalSize, int index, ByteBuffer data, int holeLength) {
+        this.isFile = isFile;
+        this.fileIndex = fileIndex;
+        this.path = path;
+        this.lastModified = lastModified;
+        this.totalSize = totalSize;
+        this.index = index;
+        this.data = data;
+        this.holeLength = holeLength;
     }
 
     public long getStartPosition(){
@@ -40,7 +84,14 @@ public class FileBlock implements Comparable<FileBlock> {
         return !isFile;
     }
 
+    public boolean isHole(){
+        return holeLength > 0;
+    }
+
     public int getLength(){
+        if (holeLength > 0){
+            return holeLength;
+        }
         if (data == null){
             return -1;
         }
@@ -0,0 +1,89 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 非阻塞的帧头解码器。输入缓冲区中帧头不完整时不消费任何字节，等待更多数据后再次调用即可，
+ * 所以缓冲区容量至少要能容纳 {@link FrameEncoder#MAX_HEADER_SIZE}。
+ * 文件数据部分由调用方直接读入缓冲区块，不经过解码器
+ */
+public class FrameDecoder {
+    public static final int NEED_MORE = 0;
+    public static final int FOLDER = 1;
+    public static final int FILE_HEADER = 2;
+    public static final int END = 3;
+    public static final int HOLE = 4;
+    public static final int MANIFEST = 5;
+
+    public short identifier;
+    public int fileIndex;
+    public String path;
+    public long lastModified;
+    public long totalSize;
+    public int index;
+    public int length;
+
+    /**
+     * @param in 读模式的输入缓冲区
+     * @return NEED_MORE、FOLDER、FILE_HEADER（随后跟着length字节数据）、HOLE（length字节的0，没有数据）、
+     * MANIFEST（随后跟着length字节的目录清单，index为清单总段数）或 END（identifier为结束标识）
+     */
+    public int decode(ByteBuffer in) throws IOException {
+        int start = in.position();
+        int available = in.remaining();
+        if (available < 2) {
+            return NEED_MORE;
+        }
+        short id = in.getShort(start);
+        switch (id) {
+            case TransferIdentifiers.EOF:
+            case TransferIdentifiers.END_OF_INTERRUPTED:
+            case TransferIdentifiers.END_OF_READ_ERROR:
+            case TransferIdentifiers.END_OF_WRITE_ERROR:
+                in.position(start + 2);
+                identifier = id;
+                return END;
+            case TransferIdentifiers.MANIFEST:
+                if (available < 2 + 4 + 4) {
+                    return NEED_MORE;
+                }
+                identifier = in.getShort();
+                index = in.getInt();
+                length = in.getInt();
+                return MANIFEST;
+            case TransferIdentifiers.FILE:
+            case TransferIdentifiers.FILE_HOLE:
+            case TransferIdentifiers.FOLDER:
+                break;
+            default:
+                throw new IOException("Unknown transfer identifier: " + id);
+        }
+        if (available < 2 + 4 + 2) {
+            return NEED_MORE;
+        }
+        int pathLength = in.getShort(start + 6) & 0xFFFF;
+        int headerLength = 2 + 4 + 2 + pathLength + 8;
+        if (id != TransferIdentifiers.FOLDER) {
+            headerLength += 8 + 4 + 4;
+        }
+        if (available < headerLength) {
+            return NEED_MORE;
+        }
+        identifier = in.getShort();
+        fileIndex = in.getInt();
+        in.getShort();
+        byte[] pathBytes = new byte[pathLength];
+        in.get(pathBytes);
+        path = new String(pathBytes, StandardCharsets.UTF_8);
+        lastModified = in.getLong();
+        if (id == TransferIdentifiers.FOLDER) {
+            return FOLDER;
+        }
+        totalSize = in.getLong();
+        index = in.getInt();
+        length = in.getInt();
+        return id == TransferIdentifiers.FILE_HOLE ? HOLE : FILE_HEADER;
+    }
+}
@@ -0,0 +1,102 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 传输帧头编码，阻塞式发送（SendFileCall）与Selector引擎共用同一份线路格式
+ * <pre>
+ * | identifier | fileIndex | path       | lastModified | totalSize | index | length | data         |
+ * | short      | int       | String:UTF | long         | long      | int   | int    | byte[length] |
+ * </pre>
+ * FOLDER帧只到lastModified为止；FILE_HOLE帧只有帧头没有data；EOF、END_OF_*等结束帧只有identifier。
+ * MANIFEST帧（目录清单的一段）：
+ * <pre>
+ * | identifier | total | length | data         |
+ * | short      | int   | int    | byte[length] |
+ * </pre>
+ * total为清单的总段数，只在最后一段中给出，其他段为0；data由若干 | depth short | path String:UTF | 组成，
+ * depth为目录相对于传输目标文件夹的层级（目标文件夹本身为0）。
+ * 协商了 {@link ProtocolFeatures#STREAMS} 时，每个帧在identifier之后多一个int的流ID
+ */
+public class FrameEncoder {
+    public static final int NO_STREAM = -1;
+    public static final int MAX_HEADER_SIZE = 2 + 4 + 4 + 2 + 65535 + 8 + 8 + 4 + 4;
+
+    /**
+     * 将块的帧头写入out（调用前out应处于写模式），写完后out已flip，可直接写入通道
+     */
+    public static void encodeHeader(FileBlock block, ByteBuffer out) throws IOException {
+        encodeHeader(block, NO_STREAM, out);
+    }
+
+    public static void encodeHeader(FileBlock block, int streamId, ByteBuffer out) throws IOException {
+        if (block.fileIndex == FileBlock.MANIFEST_INDEX) {
+            out.clear();
+            out.putShort(TransferIdentifiers.MANIFEST);
+            if (streamId != NO_STREAM) {
+                out.putInt(streamId);
+            }
+            out.putInt(block.index);
+            out.putInt(block.getLength());
+            out.flip();
+            return;
+        }
+        byte[] path = block.path.getBytes(StandardCharsets.UTF_8);
+        if (path.length > 65535) {
+            throw new IOException("String too long");
+        }
+        out.clear();
+        short identifier;
+        if (!block.isFile) {
+            identifier = TransferIdentifiers.FOLDER;
+        } else if (block.isHole()) {
+            identifier = TransferIdentifiers.FILE_HOLE;
+        } else {
+            identifier = TransferIdentifiers.FILE;
+        }
+        out.putShort(identifier);
+        if (streamId != NO_STREAM) {
+            out.putInt(streamId);
+        }
+        out.putInt(block.fileIndex);
+        out.putShort((short) path.length);
+        out.put(path);
+        out.putLong(block.lastModified);
+        if (block.isFile) {
+            out.putLong(block.totalSize);
+            out.putInt(block.index);
+            out.putInt(block.getLength());
+        }
+        out.flip();
+    }
+
+    public static void encodeEnd(short identifier, ByteBuffer out) {
+        encodeEnd(identifier, NO_STREAM, out);
+    }
+
+    public static void encodeEnd(short identifier, int streamId, ByteBuffer out) {
+        out.clear();
+        out.putShort(identifier);
+        if (streamId != NO_STREAM) {
+            out.putInt(streamId);
+        }
+        out.flip();
+    }
+
+    /**
+     * 特殊块对应的结束标识
+     */
+    public static short endIdentifierOf(FileBlock block) {
+        if (block == ReadFileCall.END_POINT) {
+            return TransferIdentifiers.EOF;
+        } else if (block == ReadFileCall.INTERRUPT) {
+            return TransferIdentifiers.END_OF_INTERRUPTED;
+        } else if (block == ReadFileCall.READ_ERROR) {
+            return TransferIdentifiers.END_OF_READ_ERROR;
+        } else {
+            return TransferIdentifiers.END_OF_WRITE_ERROR;
+        }
+    }
+}
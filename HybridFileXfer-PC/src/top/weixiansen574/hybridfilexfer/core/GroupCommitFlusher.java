@@ -0,0 +1,124 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * 组提交刷盘：写线程写完一个文件后不再自己同步刷盘，而是把文件交给本线程，
+ * 由本线程成批地 force() 并关闭。写线程只在队列积压过多时才等待，
+ * 传输结束时等待所有文件都已落盘后才向对方报告完成。
+ */
+public class GroupCommitFlusher implements Callable<Void> {
+    //最多积压的未刷盘文件数，同时也限制了打开的文件句柄数
+    private static final int MAX_PENDING = 64;
+    //凑一批的最长等待时间
+    private static final long GROUP_WINDOW_MILLIS = 50;
+
+    private final List<FileChannel> pending = new ArrayList<>();
+    private int flushing = 0;
+    private boolean finished = false;
+    private IOException failure;
+
+    /**
+     * 提交一个已写完的文件，之后由本线程负责刷盘与关闭
+     */
+    public synchronized void add(FileChannel channel) throws IOException, InterruptedException {
+        while (pending.size() >= MAX_PENDING && failure == null) {
+            wait();
+        }
+        if (failure != null) {
+            channel.close();
+            throw failure;
+        }
+        pending.add(channel);
+        notifyAll();
+    }
+
+    /**
+     * 不再有新文件，刷盘线程处理完已提交的文件后退出
+     */
+    public synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * 不再有新文件，等待已提交的文件全部落盘
+     *
+     * @throws IOException 任意文件刷盘失败
+     */
+    public synchronized void awaitDurable() throws IOException, InterruptedException {
+        finish();
+        while ((!pending.isEmpty() || flushing > 0) && failure == null) {
+            wait();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public Void call() throws Exception {
+        try {
+            while (true) {
+                List<FileChannel> batch;
+                synchronized (this) {
+                    while (pending.isEmpty() && !finished) {
+                        wait();
+                    }
+                    if (pending.isEmpty()) {
+                        return null;
+                    }
+                    //稍等片刻让更多文件加入这一批
+                    if (pending.size() < MAX_PENDING && !finished) {
+                        wait(GROUP_WINDOW_MILLIS);
+                    }
+                    batch = new ArrayList<>(pending);
+                    pending.clear();
+                    flushing = batch.size();
+                    notifyAll();
+                }
+                IOException error = null;
+                for (FileChannel channel : batch) {
+                    try {
+                        channel.force(true);
+                    } catch (IOException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    } finally {
+                        try {
+                            channel.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+                synchronized (this) {
+                    flushing = 0;
+                    if (error != null && failure == null) {
+                        failure = error;
+                    }
+                    notifyAll();
+                }
+            }
+        } finally {
+            //被取消时关闭剩余的文件，并让等待者退出
+            synchronized (this) {
+                for (FileChannel channel : pending) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                pending.clear();
+                if (failure == null && !(finished && flushing == 0)) {
+                    failure = new IOException("flusher stopped before all files were durable");
+                }
+                notifyAll();
+            }
+        }
+    }
+}
@@ -2,12 +2,14 @@ package top.weixiansen574.hybridfilexfer.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import top.weixiansen574.hybridfilexfer.core.bean.Directory;
@@ -15,6 +17,7 @@ import top.weixiansen574.hybridfilexfer.core.bean.RemoteFile;
 import top.weixiansen574.hybridfilexfer.core.callback.ClientCallBack;
 import top.weixiansen574.hybridfilexfer.core.callback.ConnectServerCallback;
 import top.weixiansen574.nio.DataByteChannel;
+import top.weixiansen574.nio.MemoryByteChannel;
 
 public abstract class HFXClient extends HFXService {
 
@@ -23,6 +26,12 @@ public abstract class HFXClient extends HFXService {
     protected final String homeDir;
     protected boolean isRun = true;
     protected ClientCallBack callBack;
+    //连接控制通道与每条传输通道的超时，不可达的网卡不会让连接卡上几分钟
+    private int connectTimeoutMillis = 10000;
+    //上次连接多分配的或断开后留下的缓冲区块，下次连接直接复用（直接内存只有GC时才释放，不能交给GC）
+    private final List<ByteBuffer> spareBuffers = new ArrayList<>();
+    //上次连接时对方要求的块数，下次连接预分配不超过这么多
+    private int lastBufferCount = BufferPoolAllocator.SPECULATIVE_COUNT;
 
     public HFXClient(String serverControllerAddress, int serverPort,String homeDir) {
         this.serverControllerAddress = serverControllerAddress;
@@ -30,12 +39,41 @@ public abstract class HFXClient extends HFXService {
         this.homeDir = homeDir;
     }
 
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
     public boolean connect(ConnectServerCallback callback) throws IOException {
+        //缓冲区块在后台分配，与下面的握手、传输通道连接同时进行
+        BufferPoolAllocator allocator = new BufferPoolAllocator(this, getExecutor());
+        List<ByteBuffer> spare;
+        synchronized (spareBuffers) {
+            //上一次会话的缓冲区块也留给这次使用
+            buffers.drainTo(spareBuffers);
+            spare = new ArrayList<>(spareBuffers);
+            spareBuffers.clear();
+        }
+        allocator.start(spare, Math.min(lastBufferCount, BufferPoolAllocator.SPECULATIVE_COUNT));
+        boolean connected = false;
+        try {
+            connected = connect(callback, allocator);
+            if (connected) {
+                TransferMetrics.setBufferPool(buffers);
+            }
+            return connected;
+        } finally {
+            if (!connected) {
+                allocator.cancel();
+            }
+        }
+    }
+
+    private boolean connect(ConnectServerCallback callback, BufferPoolAllocator allocator) throws IOException {
         try {
             //System.out.println("正在连接控制通道：" + serverControllerAddress);
             callback.onConnectingControlChannel(serverControllerAddress, serverPort);
-            ctChannel = new DataByteChannel(SocketChannel
-                    .open(new InetSocketAddress(serverControllerAddress,serverPort)));
+            ctChannel = new DataByteChannel(openChannel(
+                    new InetSocketAddress(serverControllerAddress, serverPort), null));
 
             ctChannel.write(CLIENT_HEADER.getBytes(StandardCharsets.UTF_8));
             ctChannel.writeInt(VERSION_CODE);
@@ -71,6 +109,8 @@ public abstract class HFXClient extends HFXService {
             addresses[i] = inetAddress;
             bindAddresses[i] = bindAddress;
         }
+        //传输通道必须逐条连接：对方按accept的先后把套接字与控制通道上报告的名称一一对应，
+        //同时连接时先完成的不一定先被对方accept（例如adb转发在本机就完成了连接），通道会被张冠李戴
         connections = new ArrayList<>(ipCount);
         for (int i = 0; i < ipCount; i++) {
             SocketChannel socketChannel;
@@ -87,14 +127,8 @@ public abstract class HFXClient extends HFXService {
                 return false;
             }*/
             try {
-                if (bindAddress == null) {
-                    socketChannel = SocketChannel.open(new InetSocketAddress(inetAddress, serverPort));
-                } else {
-                    socketChannel = SocketChannel.open();
-                    socketChannel.bind(new InetSocketAddress(bindAddress, 0));
-                    socketChannel.connect(new InetSocketAddress(inetAddress, serverPort));
-                }
-                connections.add(new TransferConnection(name, new DataByteChannel(socketChannel)));
+                socketChannel = openChannel(new InetSocketAddress(inetAddress, serverPort), bindAddress);
+                connections.add(new TransferConnection(name, socketChannel));
             } catch (IOException e) {
                 callback.onConnectTransferChannelFailed(name,inetAddress, e);
                 ctChannel.writeBoolean(false);
@@ -106,26 +140,31 @@ public abstract class HFXClient extends HFXService {
             ctChannel.writeUTF(name);
             ctChannel.readBoolean();
         }
-        //初始化缓冲区块
+        //初始化缓冲区块：后台已预分配了一部分，补足对方要求的块数
         int bufferCount = ctChannel.readInt();
-        for (int i = 0; i < bufferCount; i++) {
-            ByteBuffer buffer = createBuffer(FileBlock.BLOCK_SIZE);
-            if (buffer != null){
-                buffers.add(buffer);
-            } else {
-                String arch = System.getProperty("os.arch");
-                long availableMemoryMB = getAvailableMemoryMB();
-                /*System.out.println("内存不足，创建缓冲区块失败！请尝试调小缓冲区块数（1MB每块）。成功创建" + i + "块，需要"
-                        + bufferCount + "块。当前JVM最大内存：" + maxMemoryMB + "MB");
-                if (arch != null && !arch.contains("64")) {
-                    System.out.println("检测你正在使用32位Java，内存受限，建议使用64位Java");
-                }*/
-                freeBuffers();
-                callback.onOOM(i, bufferCount, availableMemoryMB, arch);
-                ctChannel.writeBoolean(false);
-                return false;
-            }
+        lastBufferCount = bufferCount;
+        List<ByteBuffer> pool;
+        try {
+            pool = allocator.await(bufferCount);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while allocating buffers");
+        }
+        if (pool == null) {
+            String arch = System.getProperty("os.arch");
+            long availableMemoryMB = getAvailableMemoryMB();
+            /*System.out.println("内存不足，创建缓冲区块失败！请尝试调小缓冲区块数（1MB每块）。成功创建" + i + "块，需要"
+                    + bufferCount + "块。当前JVM最大内存：" + maxMemoryMB + "MB");
+            if (arch != null && !arch.contains("64")) {
+                System.out.println("检测你正在使用32位Java，内存受限，建议使用64位Java");
+            }*/
+            int allocated = allocator.getAllocatedCount();
+            allocator.cancel();
+            freeBuffers();
+            callback.onOOM(allocated, bufferCount, availableMemoryMB, arch);
+            ctChannel.writeBoolean(false);
+            return false;
         }
+        buffers.addAll(pool);
         ctChannel.writeBoolean(true);
         if (!ctChannel.readBoolean()) {
             //System.out.println("连接失败，手机端内存不足，请调小缓存区块数");
@@ -145,15 +184,45 @@ public abstract class HFXClient extends HFXService {
         return true;
     }
 
+    //bindAddress为null时不绑定本地地址
+    private SocketChannel openChannel(InetSocketAddress remote, InetAddress bindAddress) throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            if (bindAddress != null) {
+                socketChannel.bind(new InetSocketAddress(bindAddress, 0));
+            }
+            socketChannel.socket().connect(remote, connectTimeoutMillis);
+            return socketChannel;
+        } catch (IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+    }
+
     public abstract ByteBuffer createBuffer(int size);
 
     public abstract long getAvailableMemoryMB();
 
     public void start(ClientCallBack transferFileCallback) throws Exception {
         this.callBack = transferFileCallback;
+        try {
+            runControlLoop();
+        } finally {
+            //会话结束，指标不再引用本客户端的缓冲区块池
+            TransferMetrics.clearBufferPool(buffers);
+        }
+    }
+
+    private void runControlLoop() throws Exception {
         //LOOP
         while (isRun) {
             short id = ctChannel.readShort();
+            if (!isEncryptionSatisfied() && id != ControllerIdentifiers.NEGOTIATE_FEATURES
+                    && id != ControllerIdentifiers.SHUTDOWN) {
+                //要求加密但对方没有协商（旧版手机端），不在明文通道上处理任何命令
+                refuseUnencrypted();
+                break;
+            }
             switch (id) {
                 case ControllerIdentifiers.LIST_FILES:
                     handleListFiles();
@@ -170,6 +239,24 @@ public abstract class HFXClient extends HFXService {
                 case ControllerIdentifiers.REQUEST_SEND:
                     handleSendFiles();
                     break;
+                case ControllerIdentifiers.REQUEST_RECEIVE_STREAM:
+                    handleReceiveStream();
+                    break;
+                case ControllerIdentifiers.REQUEST_SEND_STREAM:
+                    handleSendStream();
+                    break;
+                case ControllerIdentifiers.STREAM_RESULT:
+                    handleStreamResult();
+                    break;
+                case ControllerIdentifiers.STREAM_CREDIT:
+                    handleStreamCredit();
+                    break;
+                case ControllerIdentifiers.NEGOTIATE_FEATURES:
+                    handleNegotiateFeatures();
+                    break;
+                case ControllerIdentifiers.TAGGED_REQUEST:
+                    handleTaggedRequest();
+                    break;
                 case ControllerIdentifiers.SHUTDOWN:
                     handleShutdown();
                     break;
@@ -177,12 +264,113 @@ public abstract class HFXClient extends HFXService {
         }
     }
 
+    private void handleNegotiateFeatures() throws IOException {
+        int remoteFeatures = ctChannel.readInt();
+        features = remoteFeatures & localFeatures();
+        synchronized (ctChannel) {
+            ctChannel.writeInt(features);
+        }
+        //密钥交换紧跟在协商之后，流模式的任务启动前完成
+        if (ProtocolFeatures.has(features, ProtocolFeatures.ENCRYPTION)) {
+            ChannelSecurity security = secureChannels(false);
+            List<String> encryptedChannels = new ArrayList<>();
+            for (int i = 0; i < connections.size(); i++) {
+                if (security.isEncrypted(i)) {
+                    encryptedChannels.add(connections.get(i).iName);
+                }
+            }
+            callBack.onChannelsSecured(security.verificationCode, encryptedChannels);
+        } else if (encryption != ChannelSecurity.ENCRYPT_OFF) {
+            //对方不支持加密，或协商消息被篡改去掉了 ENCRYPTION
+            refuseUnencrypted();
+            return;
+        }
+        if (ProtocolFeatures.has(features, ProtocolFeatures.STREAMS) && streamMux == null) {
+            startStreamMux(callBack);
+        }
+    }
+
 
+    /**
+     * 控制命令的执行部分，参数已在控制循环中读取完毕，回复写入 out
+     */
+    private interface ControlTask {
+        void run(DataByteChannel out, RequestProgress progress) throws Exception;
+    }
+
+    /**
+     * 带请求ID的控制命令：控制循环只负责读取参数，命令本身交给线程池执行，
+     * 回复先在内存中拼好再整体写出，所以不同请求可以乱序回复，删除大目录时也不会挡住浏览文件
+     */
+    private void handleTaggedRequest() throws IOException {
+        requireFeature(ProtocolFeatures.PIPELINED, ControllerIdentifiers.TAGGED_REQUEST);
+        int requestId = ctChannel.readInt();
+        short command = ctChannel.readShort();
+        ControlTask task;
+        switch (command) {
+            case ControllerIdentifiers.LIST_FILES: {
+                String path = ctChannel.readUTF();
+                task = (out, progress) -> writeFileList(path, out);
+                break;
+            }
+            case ControllerIdentifiers.DELETE_FILE: {
+                String path = ctChannel.readUTF();
+                task = (out, progress) -> out.writeBoolean(deleteLocalFile(path, progress));
+                break;
+            }
+            case ControllerIdentifiers.MKDIR: {
+                String parent = ctChannel.readUTF();
+                String child = ctChannel.readUTF();
+                task = (out, progress) -> out.writeBoolean(mkdir(parent, child));
+                break;
+            }
+            default:
+                //参数长度未知，无法跳过，只能视为协议错误
+                throw new IOException("Unsupported tagged command: " + command);
+        }
+        getExecutor().execute(() -> runTaggedRequest(requestId, task));
+    }
+
+    //| REPLY | requestId | ok      | 命令的回复 或 错误信息 |
+    //| short | int       | boolean | ...                  |
+    private void runTaggedRequest(int requestId, ControlTask task) {
+        MemoryByteChannel buffer = new MemoryByteChannel(256);
+        DataByteChannel reply = new DataByteChannel(buffer);
+        try {
+            try {
+                reply.writeShort(ControllerIdentifiers.REPLY);
+                reply.writeInt(requestId);
+                reply.writeBoolean(true);
+                task.run(reply, new RequestProgress(ctChannel, requestId));
+            } catch (Exception e) {
+                buffer = new MemoryByteChannel(256);
+                reply = new DataByteChannel(buffer);
+                reply.writeShort(ControllerIdentifiers.REPLY);
+                reply.writeInt(requestId);
+                reply.writeBoolean(false);
+                reply.writeUTF(e.toString());
+            }
+            synchronized (ctChannel) {
+                ctChannel.write(new ByteBuffer[]{buffer.content()});
+            }
+        } catch (IOException e) {
+            //控制通道已断开，由控制循环处理
+            e.printStackTrace();
+        }
+    }
+
+    //旧协议的命令在控制循环中执行，只在写回复时持有控制通道的锁，删除大目录时不会挡住流任务写结果
     private void handleDeleteFile() throws Exception {
-        ctChannel.writeBoolean(deleteLocalFile(ctChannel.readUTF()));
+        boolean deleted = deleteLocalFile(ctChannel.readUTF(), new RequestProgress());
+        synchronized (ctChannel) {
+            ctChannel.writeBoolean(deleted);
+        }
     }
 
-    protected abstract boolean deleteLocalFile(String path) throws Exception;
+    /**
+     * @param progress 每删除一个文件或目录累加一次（数量，释放的字节数）
+     */
+    protected abstract boolean deleteLocalFile(String path, RequestProgress progress) throws Exception;
     /*public boolean deleteLocalFile(String path) {
         File file = new File(path);
         if (!file.exists()) {
@@ -207,11 +395,19 @@ public abstract class HFXClient extends HFXService {
     private void handleMkdir() throws Exception {
         String parent = ctChannel.readUTF();
         String child = ctChannel.readUTF();
-        ctChannel.writeBoolean(mkdir(parent, child));
+        boolean created = mkdir(parent, child);
+        synchronized (ctChannel) {
+            ctChannel.writeBoolean(created);
+        }
     }
 
     protected abstract boolean mkdir(String parent, String child) throws Exception;
 
+    private void refuseUnencrypted() {
+        callBack.onChannelsSecured(null, Collections.emptyList());
+        handleShutdown();
+    }
+
     private void handleShutdown() {
         isRun = false;
         try {
@@ -228,22 +424,33 @@ public abstract class HFXClient extends HFXService {
                 }
             }
         }
+        if (streamMux != null) {
+            streamMux.stop();
+        }
+        shutdownExecutor();
         callBack.onExit();
         //System.out.println("收到停止指令，客户端已正常关闭！");
     }
 
     private void handleListFiles() throws Exception {
         String path = ctChannel.readUTF();
+        //回复由多次写入组成，需整体写出
+        synchronized (ctChannel) {
+            writeFileList(path, ctChannel);
+        }
+    }
+
+    private void writeFileList(String path, DataByteChannel out) throws Exception {
         //System.out.println(path);
         if (!path.equals("/")) {
             List<RemoteFile> files = listFiles(path);
             if (files != null) {
-                ctChannel.writeInt(files.size());
+                out.writeInt(files.size());
                 for (RemoteFile file : files) {
-                    writeFile(file);
+                    writeFile(file, out);
                 }
             } else {
-                ctChannel.writeInt(-1);
+                out.writeInt(-1);
             }
         } else {
             File[] roots = File.listRoots();
@@ -251,21 +458,21 @@ public abstract class HFXClient extends HFXService {
             if (roots.length == 1 && roots[0].getAbsolutePath().equals("/")) {
                 List<RemoteFile> files = listFiles(roots[0].getPath());
                 if (files == null) {
-                    ctChannel.writeInt(-1);
+                    out.writeInt(-1);
                     return;
                 }
-                ctChannel.writeInt(files.size());
+                out.writeInt(files.size());
                 for (RemoteFile file : files) {
-                    writeFile(file);
+                    writeFile(file, out);
                 }
             } else {//Windows的
-                ctChannel.writeInt(roots.length);
+                out.writeInt(roots.length);
                 for (File file : roots) {
-                    ctChannel.writeUTF(file.getPath());//不要getName，否则空白
-                    ctChannel.writeUTF(file.getPath());
-                    ctChannel.writeLong(file.lastModified());
-                    ctChannel.writeLong(file.length());
-                    ctChannel.writeBoolean(file.isDirectory());
+                    out.writeUTF(file.getPath());//不要getName，否则空白
+                    out.writeUTF(file.getPath());
+                    out.writeLong(file.lastModified());
+                    out.writeLong(file.length());
+                    out.writeBoolean(file.isDirectory());
                 }
             }
         }
@@ -277,12 +484,12 @@ public abstract class HFXClient extends HFXService {
 
     protected abstract List<RemoteFile> listFiles(String path) throws Exception;
 
-    private void writeFile(RemoteFile file) throws IOException {
-        ctChannel.writeUTF(file.getName());
-        ctChannel.writeUTF(file.getPath());
-        ctChannel.writeLong(file.lastModified());
-        ctChannel.writeLong(file.getSize());
-        ctChannel.writeBoolean(file.isDirectory());
+    private void writeFile(RemoteFile file, DataByteChannel out) throws IOException {
+        out.writeUTF(file.getName());
+        out.writeUTF(file.getPath());
+        out.writeLong(file.lastModified());
+        out.writeLong(file.getSize());
+        out.writeBoolean(file.isDirectory());
     }
 
     private void handleReceiveFiles() throws IOException {
@@ -303,8 +510,76 @@ public abstract class HFXClient extends HFXService {
         isRun = sendFiles(fileList,localDir,remoteDir,callBack);
     }
 
+    //流模式：接收任务在后台进行，控制循环立即返回继续处理其他命令
+    private void handleReceiveStream() throws IOException {
+        requireFeature(ProtocolFeatures.STREAMS, ControllerIdentifiers.REQUEST_RECEIVE_STREAM);
+        int streamId = ctChannel.readInt();
+        callBack.onReceiving();
+        getExecutor().execute(() -> {
+            try {
+                receiveStream(streamId, callBack);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void handleSendStream() throws IOException {
+        requireFeature(ProtocolFeatures.STREAMS, ControllerIdentifiers.REQUEST_SEND_STREAM);
+        int streamId = ctChannel.readInt();
+        int listSize = ctChannel.readInt();
+        List<RemoteFile> fileList = new ArrayList<>(listSize);
+        for (int i = 0; i < listSize; i++) {
+            fileList.add(new RemoteFile(new File(ctChannel.readUTF())));
+        }
+        Directory remoteDir = new Directory(ctChannel.readUTF(), ctChannel.readInt());//对方的localDir
+        Directory localDir = new Directory(ctChannel.readUTF(), Directory.getCurrentFileSystem());//对方为remoteDir
+        callBack.onSending();
+        getExecutor().execute(() -> {
+            try {
+                sendStream(streamId, fileList, localDir, remoteDir, callBack);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void handleStreamResult() throws IOException {
+        requireFeature(ProtocolFeatures.STREAMS, ControllerIdentifiers.STREAM_RESULT);
+        int streamId = ctChannel.readInt();
+        boolean ok = ctChannel.readBoolean();
+        String message = ok ? null : ctChannel.readUTF();
+        streamMux.onPeerResult(streamId, ok, message);
+    }
+
+    private void handleStreamCredit() throws IOException {
+        requireFeature(ProtocolFeatures.STREAMS, ControllerIdentifiers.STREAM_CREDIT);
+        int streamId = ctChannel.readInt();
+        int credit = ctChannel.readInt();
+        streamMux.onPeerCredit(streamId, credit);
+    }
+
+    //对方发来了未协商的扩展命令，后续字节的格式无法确定，只能当作协议错误断开
+    private void requireFeature(int feature, short command) throws IOException {
+        if (!ProtocolFeatures.has(features, feature)) {
+            throw new IOException("Command " + command + " used without negotiating its protocol feature");
+        }
+    }
+
+    /**
+     * 分配器多出的块，留到下次连接
+     */
+    void keepSpareBuffers(List<ByteBuffer> spare) {
+        synchronized (spareBuffers) {
+            spareBuffers.addAll(spare);
+        }
+    }
+
     protected void freeBuffers(){
         buffers.clear();
+        synchronized (spareBuffers) {
+            spareBuffers.clear();
+        }
     }
 
 }
@@ -1,12 +1,20 @@
 package top.weixiansen574.hybridfilexfer.core;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import top.weixiansen574.hybridfilexfer.core.bean.Directory;
 import top.weixiansen574.hybridfilexfer.core.bean.RemoteFile;
@@ -17,27 +25,51 @@ public abstract class HFXService {
     public static final String CLIENT_HEADER = "HFXC";
     public static final int VERSION_CODE = 300;
     protected final LinkedBlockingDeque<ByteBuffer> buffers = new LinkedBlockingDeque<>();
+    //控制通道，流任务与带请求ID的命令会在其他线程写入，所有写入都要在 synchronized (ctChannel) 中整体写出
     protected DataByteChannel ctChannel;
     protected List<TransferConnection> connections;
+    private ExecutorService executor;
+    //使用单个Selector事件循环驱动所有传输通道，代替每条通道一个阻塞线程
+    protected boolean useSelectorEngine = false;
+    //与对方协商后的协议扩展，见ProtocolFeatures
+    protected int features = 0;
+    protected StreamMux streamMux;
+    //发送文件时的读取顺序，见ReadFileCall.ORDER_*
+    protected int sendOrder = ReadFileCall.ORDER_WALK;
+    //接收文件时的持久化模式，见WriteFileCall.DURABILITY_*
+    protected int durability = WriteFileCall.DURABILITY_NONE;
+    //加密策略，见ChannelSecurity.ENCRYPT_*
+    protected int encryption = ChannelSecurity.ENCRYPT_OFF;
+    //已完成密钥交换，控制通道已换成加密通道
+    private boolean secured = false;
+    //加密通道并行加解密用的线程池，只在协商出加密后创建
+    private ExecutorService cryptoExecutor;
+    //并行创建小文件的线程数，0为全部由写线程逐个创建，见WriteFileCall.setSmallFileWriters
+    protected int smallFileWorkers = 4;
+    //不超过此大小（且只有一块）的文件并行创建
+    protected long smallFileThreshold = WriteFileCall.SMALL_FILE_THRESHOLD;
+    //不为null时以归档模式接收到此目录，每次传输一个tar文件；可在两次传输之间修改
+    private volatile String archiveDirectory;
 
     protected boolean sendFiles(List<RemoteFile> fileList,Directory localDir, Directory remoteDir, TransferFileCallback callback) throws IOException {
+        TransferScope scope = new TransferScope(getExecutor());
         ReadFileCall readFileCall = createReadFileCall(buffers, fileList, localDir, remoteDir, connections.size());
-        FutureTask<Void> readFileTask = new FutureTask<>(readFileCall);
-        Thread readThread = new Thread(readFileTask);
-        readThread.setName("FileRead");
-        readThread.start();
+        readFileCall.setElideZeroBlocks(ProtocolFeatures.has(features, ProtocolFeatures.HOLES));
+        readFileCall.setSendManifest(ProtocolFeatures.has(features, ProtocolFeatures.MANIFEST));
+        readFileCall.setOrder(sendOrder);
+        Future<Void> readFileTask = scope.fork("FileRead", readFileCall);
         //另开一个线程读取传输流量信息，1秒一次
-        SpeedMonitorThread speedMonitorThread = new SpeedMonitorThread(connections, callback);
-        speedMonitorThread.setName("SpeedMonitor");
-        speedMonitorThread.start();
+        Future<Void> speedMonitor = scope.fork("SpeedMonitor", new SpeedMonitorCall(connections, callback));
         long startTime = System.currentTimeMillis();
-        List<FutureTask<Void>> transferTasks = new ArrayList<>(connections.size());
-        for (TransferConnection connection : connections) {
-            FutureTask<Void> task = new FutureTask<>(new SendFileCall(readFileCall, connection, callback));
-            transferTasks.add(task);
-            Thread thread = new Thread(task);
-            thread.setName("UL_" + connection.iName);
-            thread.start();
+        List<Future<Void>> transferTasks = new ArrayList<>(connections.size());
+        if (canUseSelectorEngine()) {
+            transferTasks.add(scope.fork("UL_Selector",
+                    new SelectorSendCall(readFileCall, connections, callback)));
+        } else {
+            for (TransferConnection connection : connections) {
+                transferTasks.add(scope.fork("UL_" + connection.iName,
+                        new SendFileCall(readFileCall, connection, callback)));
+            }
         }
 
         //其中一条通道断掉，可能控制器通道也一起跟着断了
@@ -46,23 +78,28 @@ public abstract class HFXService {
             //等待客户端接收成功或者写入到硬盘时发生IO错误
             complete = ctChannel.readBoolean();
         } catch (IOException e) {
-            speedMonitorThread.cancel();
+            //控制通道断开，对方不会再发来任何结果，直接取消仍阻塞着的读取与发送任务
+            scope.cancel();
             callback.onIncomplete();
             return false;
         }
-        speedMonitorThread.cancel();
+        speedMonitor.cancel(true);
 
         if (!complete) {
             String errMsg = ctChannel.readUTF();
             callback.onWriteFileError(errMsg);
+            //对方已放弃接收，读取线程无需再读完剩下的文件。
+            //先标记中止再中断，被中断的读取线程不会误把READ_ERROR块放入队列
             readFileCall.shutdownByWriteError();
+            readFileTask.cancel(true);
             return true;
         }
 
-        for (FutureTask<Void> transferTask : transferTasks) {
+        for (Future<Void> transferTask : transferTasks) {
             try {
                 transferTask.get();
             } catch (ExecutionException | InterruptedException e) {
+                scope.cancel();
                 callback.onIncomplete();
                 return false;
             }
@@ -75,12 +112,11 @@ public abstract class HFXService {
 
         try {
             readFileTask.get();
-            ctChannel.writeBoolean(true);
+            writeResult(true, null);
         } catch (ExecutionException | InterruptedException e) {
             Throwable cause = e.getCause();
             String ex = cause != null ? cause.toString() : e.toString();
-            ctChannel.writeBoolean(false);
-            ctChannel.writeUTF(ex);
+            writeResult(false, ex);
             callback.onReadFileError(ex);
             return true;
         }
@@ -90,51 +126,50 @@ public abstract class HFXService {
     }
 
     protected boolean receiveFiles(TransferFileCallback callback) throws IOException {
+        TransferScope scope = new TransferScope(getExecutor());
         WriteFileCall writeFileCall = createWriteFileCall(buffers, connections.size());
+        applyDurability(writeFileCall, scope);
+        configureSink(writeFileCall);
         long startTime = System.currentTimeMillis();
 
-        SpeedMonitorThread speedMonitorThread = new SpeedMonitorThread(connections, callback);
-        speedMonitorThread.setName("SpeedMonitor");
-        speedMonitorThread.start();
+        Future<Void> speedMonitor = scope.fork("SpeedMonitor", new SpeedMonitorCall(connections, callback));
 
-        List<FutureTask<Void>> transferTasks = new ArrayList<>(connections.size());
-        for (int i = 0; i < connections.size(); i++) {
-            TransferConnection connection = connections.get(i);
-            FutureTask<Void> task = new FutureTask<>(new ReceiveFileCall(i, connection, writeFileCall, callback));
-            transferTasks.add(task);
-            Thread thread = new Thread(task);
-            thread.setName("DL_" + connection.iName);
-            thread.start();
-        }
-        FutureTask<Void> writeFileTask = new FutureTask<>(writeFileCall);
-        Thread thread = new Thread(writeFileTask);
-        thread.setName("FileWrite");
-        thread.start();
+        List<Future<Void>> transferTasks = new ArrayList<>(connections.size());
+        if (canUseSelectorEngine()) {
+            transferTasks.add(scope.fork("DL_Selector",
+                    new SelectorReceiveCall(connections, writeFileCall, callback)));
+        } else {
+            for (int i = 0; i < connections.size(); i++) {
+                TransferConnection connection = connections.get(i);
+                transferTasks.add(scope.fork("DL_" + connection.iName,
+                        new ReceiveFileCall(i, connection, writeFileCall, callback)));
+            }
+        }
+        Future<Void> writeFileTask = scope.fork("FileWrite", writeFileCall);
         try {
             writeFileTask.get();
         } catch (InterruptedException | ExecutionException e) {
-            speedMonitorThread.cancel();
+            speedMonitor.cancel(true);
             Throwable cause = e.getCause();
-            ctChannel.writeBoolean(false);
             String ex = cause != null ? cause.toString() : e.toString();
-            ctChannel.writeUTF(ex);
+            writeResult(false, ex);
             callback.onWriteFileError(ex);
             return true;
         }
 
-        for (FutureTask<Void> task : transferTasks) {
+        for (Future<Void> task : transferTasks) {
             try {
                 task.get();
             } catch (InterruptedException | ExecutionException e) {
-                speedMonitorThread.cancel();
                 //此时没有连同控制器通道一起断掉，要通知对方，写线程没问题（对方的传输线程通道已出问题）
-                ctChannel.writeBoolean(true);
+                scope.cancel();
+                writeResult(true, null);
                 callback.onIncomplete();
                 return false;
             }
         }
-        speedMonitorThread.cancel();
-        ctChannel.writeBoolean(true);
+        speedMonitor.cancel(true);
+        writeResult(true, null);
         if (ctChannel.readBoolean()) {
             long totalDownloadTraffic = 0;
             for (TransferConnection connection : connections) {
@@ -147,8 +182,312 @@ public abstract class HFXService {
         return true;
     }
 
+    /**
+     * 协商到 ProtocolFeatures.STREAMS 后启动会话级的通道复用，此后所有传输都以流的方式进行
+     */
+    protected void startStreamMux(TransferFileCallback callback) {
+        streamMux = new StreamMux(connections, buffers, new TransferScope(getExecutor()), ctChannel);
+        streamMux.start(callback);
+    }
+
+    /**
+     * 以流的方式发送文件，可与其他发送/接收流同时进行。结果交换与sendFiles相同，只是改用带流ID的STREAM_RESULT
+     */
+    protected void sendStream(int streamId, List<RemoteFile> fileList, Directory localDir, Directory remoteDir, TransferFileCallback callback) throws IOException, InterruptedException {
+        LinkedBlockingDeque<ByteBuffer> budget = streamMux.takeBudget();
+        TransferScope scope = new TransferScope(getExecutor());
+        ReadFileCall readFileCall = createReadFileCall(budget, fileList, localDir, remoteDir, streamMux.getChannelCount());
+        readFileCall.setElideZeroBlocks(ProtocolFeatures.has(features, ProtocolFeatures.HOLES));
+        readFileCall.setSendManifest(ProtocolFeatures.has(features, ProtocolFeatures.MANIFEST));
+        readFileCall.setOrder(sendOrder);
+        StreamMux.SendStream stream = streamMux.openSendStream(streamId, readFileCall);
+        Future<Void> readFileTask = scope.fork("FileRead_" + streamId, readFileCall);
+        long startTime = System.currentTimeMillis();
+        try {
+            StreamMux.StreamResult result;
+            try {
+                //等待对方接收成功或者写入到硬盘时发生IO错误
+                result = streamMux.awaitPeerResult(streamId);
+            } catch (IOException e) {
+                scope.cancel();
+                callback.onIncomplete();
+                return;
+            }
+            if (!result.ok) {
+                callback.onWriteFileError(result.message);
+                readFileCall.shutdownByWriteError();
+                readFileTask.cancel(true);
+                return;
+            }
+            streamMux.awaitChannelsEnded(stream);
+            try {
+                readFileTask.get();
+                writeStreamResult(streamId, true, null);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                String ex = cause != null ? cause.toString() : e.toString();
+                writeStreamResult(streamId, false, ex);
+                callback.onReadFileError(ex);
+                return;
+            }
+            callback.onComplete(true, stream.traffic.get(), System.currentTimeMillis() - startTime);
+        } finally {
+            streamMux.awaitChannelsEnded(stream);
+            streamMux.closeSendStream(stream);
+            streamMux.returnBudget(budget);
+        }
+    }
+
+    /**
+     * 以流的方式接收文件，写硬盘在当前线程进行，可与其他发送/接收流同时进行
+     */
+    protected void receiveStream(int streamId, TransferFileCallback callback) throws IOException, InterruptedException {
+        LinkedBlockingDeque<ByteBuffer> budget = streamMux.takeBudget();
+        WriteFileCall writeFileCall = createWriteFileCall(budget, streamMux.getChannelCount());
+        TransferScope scope = new TransferScope(getExecutor());
+        applyDurability(writeFileCall, scope);
+        configureSink(writeFileCall);
+        StreamMux.ReceiveStream stream = streamMux.openReceiveStream(streamId, writeFileCall);
+        long startTime = System.currentTimeMillis();
+        try {
+            try {
+                writeFileCall.call();
+            } catch (Exception e) {
+                writeFileCall.cancel();
+                writeStreamResult(stream, false, e.toString());
+                callback.onWriteFileError(e.toString());
+                return;
+            }
+            streamMux.awaitChannelsEnded(stream);
+            if (streamMux.isFailed()) {
+                callback.onIncomplete();
+                return;
+            }
+            writeStreamResult(stream, true, null);
+            StreamMux.StreamResult result;
+            try {
+                result = streamMux.awaitPeerResult(streamId);
+            } catch (IOException e) {
+                callback.onIncomplete();
+                return;
+            }
+            if (result.ok) {
+                callback.onComplete(false, stream.traffic.get(), System.currentTimeMillis() - startTime);
+            } else {
+                callback.onReadFileError(result.message);
+            }
+        } finally {
+            scope.cancel();
+            //写入出错时对方仍会在每条通道上发来结束帧，等它们到齐后才能归还缓冲区块
+            streamMux.awaitChannelsEnded(stream);
+            streamMux.returnBudget(budget);
+        }
+    }
+
+    //旧协议传输的结果，与带请求ID的命令的进度和回复共用控制通道
+    private void writeResult(boolean ok, String message) throws IOException {
+        synchronized (ctChannel) {
+            ctChannel.writeBoolean(ok);
+            if (!ok) {
+                ctChannel.writeUTF(message);
+            }
+        }
+    }
+
+    //多个流与控制命令处理会同时写控制通道，每条消息必须整体写出
+    protected void writeStreamResult(int streamId, boolean ok, String message) throws IOException {
+        synchronized (ctChannel) {
+            ctChannel.writeShort(ControllerIdentifiers.STREAM_RESULT);
+            ctChannel.writeInt(streamId);
+            ctChannel.writeBoolean(ok);
+            if (!ok) {
+                ctChannel.writeUTF(message);
+            }
+        }
+    }
+
+    //接收流的结果之后不能再有它的额度，两者在同一次加锁中决定
+    private void writeStreamResult(StreamMux.ReceiveStream stream, boolean ok, String message) throws IOException {
+        synchronized (ctChannel) {
+            streamMux.closeCredit(stream);
+            writeStreamResult(stream.streamId, ok, message);
+        }
+    }
+
+    /**
+     * 组提交模式下刷盘任务与写文件任务在同一作用域中运行，写文件任务等全部文件落盘后才结束
+     */
+    private void applyDurability(WriteFileCall writeFileCall, TransferScope scope) {
+        GroupCommitFlusher flusher = null;
+        if (durability == WriteFileCall.DURABILITY_GROUP_COMMIT) {
+            flusher = new GroupCommitFlusher();
+            scope.fork("FileFlush", flusher);
+        }
+        writeFileCall.setDurability(durability, flusher);
+    }
+
+    /**
+     * 逐个写文件（小文件并行创建，修改时间延后成批设置），或以归档模式写进一个新的tar文件（此时不需要目录清单预建目录）
+     */
+    private void configureSink(WriteFileCall writeFileCall) {
+        String directory = archiveDirectory;
+        if (directory != null) {
+            writeFileCall.setArchive(newArchiveFile(directory));
+            return;
+        }
+        writeFileCall.setSmallFileWriters(getExecutor(), smallFileWorkers, smallFileThreshold);
+        writeFileCall.deferMetadata(getExecutor());
+        if (ProtocolFeatures.has(features, ProtocolFeatures.MANIFEST)) {
+            writeFileCall.expectManifest(getExecutor());
+        }
+    }
+
+    //多个流可能在同一秒开始，先创建出空文件占住名称
+    private static synchronized File newArchiveFile(String directory) {
+        File parent = new File(directory);
+        String name = "HybridFileXfer-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date());
+        File archive = new File(parent, name + ".tar");
+        try {
+            parent.mkdirs();
+            for (int i = 2; !archive.createNewFile(); i++) {
+                archive = new File(parent, name + "-" + i + ".tar");
+            }
+        } catch (IOException e) {
+            //目录不可写，由写线程打开归档时报告错误
+        }
+        return archive;
+    }
+
+    /**
+     * @param directory 以归档模式接收到该目录，为null时恢复逐个写文件；对之后开始的传输生效
+     */
+    public void setArchiveDirectory(String directory) {
+        this.archiveDirectory = directory;
+    }
+
+    public String getArchiveDirectory() {
+        return archiveDirectory;
+    }
+
+    public void setSendOrder(int sendOrder) {
+        this.sendOrder = sendOrder;
+    }
+
+    public void setDurability(int durability) {
+        this.durability = durability;
+    }
+
+    /**
+     * @param workers 并行创建小文件的线程数，0为不并行
+     */
+    public void setSmallFileWorkers(int workers) {
+        this.smallFileWorkers = Math.max(0, workers);
+    }
+
+    public void setEncryption(int encryption) {
+        this.encryption = encryption;
+    }
+
+    /**
+     * 本端愿意使用的特性，未开启加密时不提供 ENCRYPTION
+     */
+    protected int localFeatures() {
+        int local = ProtocolFeatures.SUPPORTED;
+        if (encryption == ChannelSecurity.ENCRYPT_OFF) {
+            local &= ~ProtocolFeatures.ENCRYPTION;
+        }
+        return local;
+    }
+
+    /**
+     * 已协商出 ENCRYPTION 时调用：交换密钥，之后控制通道与需要加密的传输通道都改为加密通道
+     *
+     * @param initiator 是否为发起协商的一方（服务端）
+     */
+    protected ChannelSecurity secureChannels(boolean initiator) throws IOException {
+        ChannelSecurity security = ChannelSecurity.handshake(ctChannel, initiator, encryption, connections);
+        ctChannel = security.secureControl(ctChannel);
+        List<TransferConnection> secured = new ArrayList<>(connections.size());
+        for (int i = 0; i < connections.size(); i++) {
+            secured.add(security.secure(i, connections.get(i), getCryptoExecutor()));
+        }
+        connections = secured;
+        this.secured = true;
+        return security;
+    }
+
+    /**
+     * 要求加密时，在加密通道建立之前不能处理任何命令（包括对方从不发起协商、或协商结果被去掉了 ENCRYPTION 的情况）
+     */
+    protected boolean isEncryptionSatisfied() {
+        return encryption == ChannelSecurity.ENCRYPT_OFF || secured;
+    }
+
+    private synchronized ExecutorService getCryptoExecutor() {
+        if (cryptoExecutor == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            cryptoExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "HFX-Crypto-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return cryptoExecutor;
+    }
+
+    public void setUseSelectorEngine(boolean useSelectorEngine) {
+        this.useSelectorEngine = useSelectorEngine;
+    }
+
+    //只有所有通道都能拿到底层SocketChannel时才能切换为非阻塞模式
+    private boolean canUseSelectorEngine() {
+        if (!useSelectorEngine) {
+            return false;
+        }
+        for (TransferConnection connection : connections) {
+            if (connection.socketChannel == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 所有传输任务共享的执行器，线程在多次传输之间复用，不再每次传输都新建平台线程
+     */
+    protected synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = createExecutor();
+        }
+        return executor;
+    }
+
+    /**
+     * 默认使用可复用的缓存线程池，平台实现可覆盖（例如JDK21以上改用虚拟线程）
+     */
+    protected ExecutorService createExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "HFX-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+    protected synchronized void shutdownExecutor() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (cryptoExecutor != null) {
+            cryptoExecutor.shutdownNow();
+            cryptoExecutor = null;
+        }
+    }
+
     protected abstract WriteFileCall createWriteFileCall(LinkedBlockingDeque<ByteBuffer> buffers, int dequeCount);
 
     protected abstract ReadFileCall createReadFileCall(LinkedBlockingDeque<ByteBuffer> buffers, List<RemoteFile> files, Directory localDir, Directory remoteDir, int operateThreadCount);
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,37 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的耗时直方图，桶按微秒的2的幂划分：第i个桶统计 (2^(i-1), 2^i] 微秒，最后一个桶兜底。
+ * 记录一次只是两次原子加，可以放在每个块的处理路径上
+ */
+public class LatencyHistogram {
+    public static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+        counts.incrementAndGet(bucket);
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * 第i个桶的上界（秒）
+     */
+    public static double upperBoundSeconds(int bucket) {
+        return (1L << bucket) / 1_000_000.0;
+    }
+
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    public double getSumSeconds() {
+        return sumNanos.sum() / 1_000_000_000.0;
+    }
+}
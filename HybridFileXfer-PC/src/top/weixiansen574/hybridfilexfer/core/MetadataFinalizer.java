@@ -0,0 +1,175 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 延后、成批地设置修改时间，不再由写线程逐个设置。
+ * <p>
+ * 文件写完后修改时间就不会再变，攒够 {@link #BATCH_SIZE} 个就交给后台线程设置。
+ * 文件夹则不同：文件夹块先于其中的文件到达，之后在其中创建文件又会改变它的修改时间，
+ * 所以文件夹全部留到传输结束（所有文件写完）时，按深度从深到浅逐层设置，同一层的由多个线程并行设置。
+ */
+class MetadataFinalizer {
+    private static final int BATCH_SIZE = 1024;
+    //同时设置修改时间的线程数
+    private static final int PARALLELISM = 4;
+
+    private final WriteFileCall writeFileCall;
+    private final Executor executor;
+    private List<Entry> files = new ArrayList<>();
+    private final List<Entry> directories = new ArrayList<>();
+    private int running = 0;
+    private volatile boolean canceled = false;
+    private Exception failure;
+
+    MetadataFinalizer(WriteFileCall writeFileCall, Executor executor) {
+        this.writeFileCall = writeFileCall;
+        this.executor = executor;
+    }
+
+    /**
+     * 文件已写完，可能由多个线程同时调用
+     */
+    synchronized void addFile(String path, long lastModified) {
+        files.add(new Entry(path, lastModified));
+        //线程都在忙时先攒着，由忙完的线程接着处理
+        if (files.size() >= BATCH_SIZE && running < PARALLELISM) {
+            launch(takeFiles());
+        }
+    }
+
+    synchronized void addDirectory(String path, long lastModified) {
+        directories.add(new Entry(path, lastModified));
+    }
+
+    /**
+     * 所有文件都已写完：设置剩余文件的修改时间，再从最深的一层起逐层设置文件夹的修改时间
+     *
+     * @throws Exception 任意一个设置失败（抛出异常，不是返回false）
+     */
+    void finish() throws Exception {
+        List<List<Entry>> levels;
+        synchronized (this) {
+            if (!files.isEmpty()) {
+                launch(takeFiles());
+            }
+            awaitRunning();
+            levels = groupByDepth(directories);
+            directories.clear();
+        }
+        for (List<Entry> level : levels) {
+            synchronized (this) {
+                int chunk = (level.size() + PARALLELISM - 1) / PARALLELISM;
+                for (int i = 0; i < level.size(); i += chunk) {
+                    launch(level.subList(i, Math.min(level.size(), i + chunk)));
+                }
+                awaitRunning();
+            }
+        }
+    }
+
+    /**
+     * 传输被取消：丢弃尚未设置的修改时间
+     */
+    synchronized void cancel() {
+        canceled = true;
+        files.clear();
+        directories.clear();
+    }
+
+    private void awaitRunning() throws Exception {
+        while (running > 0) {
+            wait();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private List<Entry> takeFiles() {
+        List<Entry> batch = files;
+        files = new ArrayList<>();
+        return batch;
+    }
+
+    private void launch(List<Entry> batch) {
+        running++;
+        executor.execute(() -> run(batch));
+    }
+
+    private void run(List<Entry> batch) {
+        while (true) {
+            Exception error = null;
+            for (Entry entry : batch) {
+                if (canceled) {
+                    break;
+                }
+                try {
+                    writeFileCall.applyLastModified(entry.path, entry.lastModified);
+                } catch (Exception e) {
+                    error = e;
+                    break;
+                }
+            }
+            synchronized (this) {
+                if (error != null && failure == null) {
+                    failure = error;
+                }
+                //传输过程中又攒够了一批文件，接着处理
+                if (failure == null && !canceled && files.size() >= BATCH_SIZE) {
+                    batch = takeFiles();
+                    continue;
+                }
+                running--;
+                notifyAll();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return 按深度从深到浅分组
+     */
+    private static List<List<Entry>> groupByDepth(List<Entry> entries) {
+        List<Entry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, (a, b) -> Integer.compare(b.depth, a.depth));
+        List<List<Entry>> levels = new ArrayList<>();
+        List<Entry> level = null;
+        for (Entry entry : sorted) {
+            if (level == null || level.get(0).depth != entry.depth) {
+                level = new ArrayList<>();
+                levels.add(level);
+            }
+            level.add(entry);
+        }
+        return levels;
+    }
+
+    private static class Entry {
+        final String path;
+        final long lastModified;
+        final int depth;
+
+        Entry(String path, long lastModified) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.depth = depth(path);
+        }
+
+        private static int depth(String path) {
+            int depth = 0;
+            //不计末尾的分隔符
+            for (int i = 0; i < path.length() - 1; i++) {
+                char c = path.charAt(i);
+                if (c == '/' || c == File.separatorChar) {
+                    depth++;
+                }
+            }
+            return depth;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+import top.weixiansen574.hybridfilexfer.core.callback.TransferFileCallback;
+import top.weixiansen574.nio.DataByteChannel;
+
+/**
+ * 多路复用模式下一条传输通道的接收线程，按帧中的流ID把块分发给对应流的 {@link WriteFileCall}，
+ * 文件数据块直接使用该流预算中的空闲缓冲区块（已通过额度预留）
+ */
+public class MuxReceiveCall implements Callable<Void> {
+    private final StreamMux mux;
+    private final int tIndex;
+    private final TransferConnection connection;
+    private final DataByteChannel channel;
+    private final TransferFileCallback callback;
+    private final String iName;
+
+    public MuxReceiveCall(StreamMux mux, int tIndex, TransferConnection connection, TransferFileCallback callback) {
+        this.mux = mux;
+        this.tIndex = tIndex;
+        this.connection = connection;
+        this.channel = connection.channel;
+        this.callback = callback;
+        iName = connection.iName;
+    }
+
+    @Override
+    public Void call() throws Exception {
+        try {
+            while (true) {
+                short header = channel.readShort();
+                StreamMux.ReceiveStream stream = mux.awaitReceiveStream(channel.readInt());
+                WriteFileCall writeFileCall = stream.writeFileCall;
+                switch (header) {
+                    case TransferIdentifiers.FOLDER: {
+                        int fileIndex = channel.readInt();
+                        String path = channel.readUTF();
+                        long lastModified = channel.readLong();
+                        writeFileCall.putBlock(new FileBlock(false, fileIndex, path, lastModified, 0, 0, null), tIndex);
+                        break;
+                    }
+                    case TransferIdentifiers.FILE: {
+                        int fileIndex = channel.readInt();
+                        String path = channel.readUTF();
+                        long lastModified = channel.readLong();
+                        long totalSize = channel.readLong();
+                        int index = channel.readInt();
+                        int length = channel.readInt();
+                        callback.onFileDownloading(iName, path,
+                                index * (long) FileBlock.BLOCK_SIZE + length,
+                                totalSize);
+                        //对方只在有额度时发送文件数据块，这里不会阻塞，也就不会卡住通道上的其他流
+                        ByteBuffer buffer = writeFileCall.pollBuffer();
+                        if (buffer == null) {
+                            throw new IOException("Stream " + stream.streamId + " sent a block without credit");
+                        }
+                        buffer.clear();
+                        buffer.limit(length);
+                        long receiveStart = System.nanoTime();
+                        while (buffer.hasRemaining()) {
+                            int read = channel.read(buffer);
+                            if (read == -1) {
+                                writeFileCall.recycleBuffer(buffer);
+                                throw new EOFException();
+                            }
+                            connection.addDownloadedBytes(read);
+                        }
+                        stream.traffic.addAndGet(length);
+                        TransferMetrics.recordSince(TransferMetrics.STAGE_RECEIVE, receiveStart);
+                        writeFileCall.putBlock(new FileBlock(true, fileIndex, path, lastModified, totalSize, index, buffer), tIndex);
+                        connection.throttle(length);
+                        break;
+                    }
+                    case TransferIdentifiers.FILE_HOLE: {
+                        int fileIndex = channel.readInt();
+                        String path = channel.readUTF();
+                        long lastModified = channel.readLong();
+                        long totalSize = channel.readLong();
+                        int index = channel.readInt();
+                        int length = channel.readInt();
+                        callback.onFileDownloading(iName, path,
+                                index * (long) FileBlock.BLOCK_SIZE + length,
+                                totalSize);
+                        writeFileCall.putBlock(new FileBlock(fileIndex, path, lastModified, totalSize, index, length), tIndex);
+                        break;
+                    }
+                    case TransferIdentifiers.MANIFEST: {
+                        int total = channel.readInt();
+                        int length = channel.readInt();
+                        //清单不占用缓冲区块：写线程在目录建好前不会回收缓冲区块
+                        ByteBuffer buffer = ByteBuffer.allocate(length);
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer) == -1) {
+                                throw new EOFException();
+                            }
+                        }
+                        connection.addDownloadedBytes(length);
+                        stream.traffic.addAndGet(length);
+                        writeFileCall.putManifest(total, buffer.array());
+                        break;
+                    }
+                    case TransferIdentifiers.EOF:
+                        writeFileCall.finishChannel(tIndex);
+                        mux.onReceiveChannelEnded(stream);
+                        break;
+                    case TransferIdentifiers.END_OF_INTERRUPTED:
+                        writeFileCall.cancel();
+                        writeFileCall.finishChannel(tIndex);
+                        callback.onChannelError(iName, TransferFileCallback.ERROR_TYPE_INTERRUPT, null);
+                        mux.onReceiveChannelEnded(stream);
+                        break;
+                    case TransferIdentifiers.END_OF_READ_ERROR:
+                        writeFileCall.cancel();
+                        writeFileCall.finishChannel(tIndex);
+                        callback.onChannelError(iName, TransferFileCallback.ERROR_TYPE_READ_ERROR, null);
+                        mux.onReceiveChannelEnded(stream);
+                        break;
+                    case TransferIdentifiers.END_OF_WRITE_ERROR:
+                        writeFileCall.cancel();
+                        writeFileCall.finishChannel(tIndex);
+                        callback.onChannelError(iName, TransferFileCallback.ERROR_TYPE_WRITE_ERROR, null);
+                        mux.onReceiveChannelEnded(stream);
+                        break;
+                    default:
+                        throw new IOException("Unknown transfer identifier: " + header);
+                }
+            }
+        } catch (IOException e) {
+            callback.onChannelError(iName, TransferFileCallback.ERROR_TYPE_EXCEPTION, e.toString());
+            mux.fail(e);
+            throw e;
+        }
+    }
+}
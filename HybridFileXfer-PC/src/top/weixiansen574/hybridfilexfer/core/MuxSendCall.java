@@ -0,0 +1,149 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+import top.weixiansen574.hybridfilexfer.core.callback.TransferFileCallback;
+import top.weixiansen574.nio.DataByteChannel;
+
+/**
+ * 多路复用模式下一条传输通道的发送线程，在所有发送流之间轮转取块，
+ * 每个流在本通道上写出自己的结束帧后不再从该流取块。
+ * 文件数据块要消耗该流的一个额度，没有额度的流被跳过，不占用通道
+ */
+public class MuxSendCall implements Callable<Void> {
+    private final StreamMux mux;
+    private final int tIndex;
+    private final TransferConnection connection;
+    private final DataByteChannel channel;
+    private final TransferFileCallback callback;
+    private final ByteBuffer header = ByteBuffer.allocate(FrameEncoder.MAX_HEADER_SIZE);
+    private final ByteBuffer[] frame = new ByteBuffer[]{header, null};
+    //下一次从哪个流开始取块
+    private int cursor = 0;
+
+    public MuxSendCall(StreamMux mux, int tIndex, TransferConnection connection, TransferFileCallback callback) {
+        this.mux = mux;
+        this.tIndex = tIndex;
+        this.connection = connection;
+        this.channel = connection.channel;
+        this.callback = callback;
+    }
+
+    @Override
+    public Void call() throws Exception {
+        StreamMux.SendStream stream = null;
+        FileBlock fileBlock = null;
+        try {
+            while (true) {
+                stream = null;
+                fileBlock = null;
+                //流的打开与关闭会替换整个数组，本轮轮转始终使用同一个快照
+                StreamMux.SendStream[] streams = mux.getSendStreams();
+                int count = streams.length;
+                for (int i = 0; i < count; i++) {
+                    StreamMux.SendStream candidate = streams[(cursor + i) % count];
+                    if (candidate.channelEnded[tIndex]) {
+                        continue;
+                    }
+                    fileBlock = nextBlock(candidate);
+                    if (fileBlock != null) {
+                        stream = candidate;
+                        cursor = (cursor + i + 1) % count;
+                        break;
+                    }
+                }
+                if (fileBlock == null) {
+                    mux.awaitBlock(tIndex);
+                    continue;
+                }
+                if (fileBlock.fileIndex == -1) {
+                    FrameEncoder.encodeEnd(FrameEncoder.endIdentifierOf(fileBlock), stream.streamId, header);
+                    channel.write(header);
+                    onStreamEnd(stream, fileBlock);
+                    continue;
+                }
+                FrameEncoder.encodeHeader(fileBlock, stream.streamId, header);
+                if (fileBlock.isFile) {
+                    callback.onFileUploading(connection.iName, fileBlock.path,
+                            fileBlock.getStartPosition() + fileBlock.getLength(),
+                            fileBlock.totalSize);
+                }
+                //文件夹与空洞块只有帧头，文件块与目录清单块带数据
+                if (fileBlock.data == null) {
+                    channel.write(header);
+                    stream.readFileCall.recycle(fileBlock);
+                    continue;
+                }
+                fileBlock.data.flip();
+                frame[1] = fileBlock.data;
+                long writeStart = System.nanoTime();
+                channel.write(frame);
+                TransferMetrics.recordSince(TransferMetrics.STAGE_SOCKET_WRITE, writeStart);
+                frame[1] = null;
+                int length = fileBlock.getLength();
+                connection.addUploadedBytes(length);
+                stream.traffic.addAndGet(length);
+                stream.readFileCall.recycle(fileBlock);
+                fileBlock = null;
+                connection.throttle(length);
+            }
+        } catch (IOException e) {
+            if (fileBlock != null) {
+                stream.readFileCall.recycle(fileBlock);
+            }
+            callback.onChannelError(connection.iName, TransferFileCallback.ERROR_TYPE_EXCEPTION, e.toString());
+            mux.fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * 取出该流下一个可以发送的块，没有时返回null。
+     * 取到的文件数据块没有额度时暂存到流上，之后先发送暂存的块，保证额度到达前不会越过它继续取块
+     */
+    private FileBlock nextBlock(StreamMux.SendStream stream) {
+        if (!stream.parked.isEmpty()) {
+            if (stream.readFileCall.isAborted()) {
+                //已中止，对方不再需要这些块，接着取结束块
+                FileBlock block;
+                while ((block = stream.parked.poll()) != null) {
+                    stream.readFileCall.recycle(block);
+                }
+            } else {
+                if (!stream.tryAcquireCredit()) {
+                    return null;
+                }
+                FileBlock block = stream.parked.poll();
+                if (block == null) {
+                    //被其他通道抢先取走
+                    stream.releaseCredit();
+                }
+                return block;
+            }
+        }
+        FileBlock block = stream.readFileCall.pollBlock();
+        if (block == null || !needsCredit(block) || stream.tryAcquireCredit()) {
+            return block;
+        }
+        stream.parked.add(block);
+        return null;
+    }
+
+    //只有文件数据块占用对方的缓冲区块，目录清单由对方另行分配
+    private static boolean needsCredit(FileBlock block) {
+        return block.isFile && block.data != null;
+    }
+
+    private void onStreamEnd(StreamMux.SendStream stream, FileBlock block) {
+        if (block == ReadFileCall.INTERRUPT) {
+            callback.onChannelError(connection.iName, TransferFileCallback.ERROR_TYPE_INTERRUPT, null);
+        } else if (block == ReadFileCall.READ_ERROR) {
+            callback.onChannelError(connection.iName, TransferFileCallback.ERROR_TYPE_READ_ERROR, null);
+        } else if (block == ReadFileCall.WRITE_ERROR) {
+            callback.onChannelError(connection.iName, TransferFileCallback.ERROR_TYPE_WRITE_ERROR, null);
+        }
+        mux.onSendChannelEnded(stream, tIndex);
+    }
+}
@@ -0,0 +1,27 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+/**
+ * 协议扩展特性位。
+ * <p>
+ * 由服务端（手机）在连接完成后发起协商：发送 {@link ControllerIdentifiers#NEGOTIATE_FEATURES} 与自己支持的特性，
+ * 客户端回复双方都支持的交集，之后双方只使用交集内的扩展。旧版服务端不会发起协商，全部按原协议工作。
+ */
+public class ProtocolFeatures {
+    //传输帧带流ID，发送与接收任务可以同时复用同一组传输通道，接收端按流授予额度
+    public static final int STREAMS = 1;
+    //控制命令带请求ID，在线程池中并发处理并乱序回复，耗时命令可发送进度
+    public static final int PIPELINED = 1 << 1;
+    //全零块以空洞帧发送，不传数据，接收端保持稀疏
+    public static final int HOLES = 1 << 2;
+    //发送端先遍历整个目录树，在文件数据之前发送目录清单，接收端在线程池中并行建好整个目录树
+    public static final int MANIFEST = 1 << 3;
+    //协商后立即交换密钥，控制通道与需要加密的传输通道改用AES-GCM加密，见ChannelSecurity
+    public static final int ENCRYPTION = 1 << 4;
+
+    //本端支持的全部特性
+    public static final int SUPPORTED = STREAMS | PIPELINED | HOLES | MANIFEST | ENCRYPTION;
+
+    public static boolean has(int features, int feature) {
+        return (features & feature) != 0;
+    }
+}
@@ -0,0 +1,94 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个方向的流量计数与速率估算。
+ * <p>
+ * I/O线程只调用 {@link #add(long)}（LongAdder，无锁、多线程累加也不争用），
+ * 速率由监控线程每隔约100ms调用 {@link #sample(long)} 计算：当前速率为指数加权移动平均（EWMA），
+ * 峰值取EWMA的最大值（避免单个采样周期的抖动），平均速率为自 {@link #restart(long)} 以来的总量除以时长。
+ * 计算结果通过volatile字段发布，任意线程可读取。
+ */
+public class RateEstimator {
+    //EWMA的时间常数，约等于平滑窗口
+    private static final double TIME_CONSTANT_NANOS = 500_000_000.0;
+
+    private final LongAdder bytes = new LongAdder();
+
+    //以下只由采样线程访问
+    private long startBytes;
+    private long startNanos;
+    private long lastBytes;
+    private long lastNanos;
+    private double ewma;
+    private double peak;
+
+    //单位均为 字节/秒
+    private volatile double currentRate;
+    private volatile double averageRate;
+    private volatile double peakRate;
+
+    public RateEstimator() {
+        restart(System.nanoTime());
+    }
+
+    public void add(long byteCount) {
+        bytes.add(byteCount);
+    }
+
+    /**
+     * 累计字节数（单调递增，从不清零）
+     */
+    public long sum() {
+        return bytes.sum();
+    }
+
+    /**
+     * 开始新的统计区间，平均速率与峰值从此刻重新计算
+     */
+    public synchronized void restart(long nowNanos) {
+        long total = bytes.sum();
+        startBytes = total;
+        startNanos = nowNanos;
+        lastBytes = total;
+        lastNanos = nowNanos;
+        ewma = 0;
+        peak = 0;
+        currentRate = 0;
+        averageRate = 0;
+        peakRate = 0;
+    }
+
+    public synchronized void sample(long nowNanos) {
+        long elapsed = nowNanos - lastNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        long total = bytes.sum();
+        double instant = (total - lastBytes) * 1_000_000_000.0 / elapsed;
+        //按实际间隔计算权重，采样线程被延迟时结果依然正确
+        double alpha = 1 - Math.exp(-elapsed / TIME_CONSTANT_NANOS);
+        ewma += alpha * (instant - ewma);
+        if (ewma > peak) {
+            peak = ewma;
+        }
+        lastBytes = total;
+        lastNanos = nowNanos;
+        currentRate = ewma;
+        peakRate = peak;
+        averageRate = (total - startBytes) * 1_000_000_000.0 / (nowNanos - startNanos);
+    }
+
+    public double getCurrentRate() {
+        return currentRate;
+    }
+
+    public double getAverageRate() {
+        return averageRate;
+    }
+
+    public double getPeakRate() {
+        return peakRate;
+    }
+}
@@ -1,57 +1,148 @@
 package top.weixiansen574.hybridfilexfer.core;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import top.weixiansen574.hybridfilexfer.core.bean.Directory;
 import top.weixiansen574.hybridfilexfer.core.bean.RemoteFile;
+import top.weixiansen574.hybridfilexfer.core.bean.TransferPathTranslator;
 
+/**
+ * 读取线程，把要发送的文件切成块交给发送线程（{@link SendFileCall}、{@link SelectorSendCall}、{@link MuxSendCall}）。
+ * <p>
+ * 块描述符（{@link FileBlock}）在构造时按缓冲区块的数量预先分配，每个描述符第一次装数据时从缓冲区块池取一块，
+ * 之后一直持有到读取结束。读好的描述符放入就绪环（{@link BlockRing}），发送线程写出后调用 {@link #recycle}
+ * 放回空闲环，读取线程再取出来装下一块。稳定传输时每个块不分配任何对象，也不经过锁；
+ * 只有一方需要等待（就绪环空或空闲环空）时才进入监视器阻塞。
+ */
 public abstract class ReadFileCall implements Callable<Void> {
     public static final FileBlock END_POINT = new FileBlock(true, -1, "END_POINT", 0, 0, -1, null);
     public static final FileBlock INTERRUPT = new FileBlock(true, -1, "INTERRUPT", 0, 0, -1, null);
     public static final FileBlock READ_ERROR = new FileBlock(true, -1, "READ_ERROR", 0, 0, -1, null);
     public static final FileBlock WRITE_ERROR = new FileBlock(true, -1, "WRITE_ERROR", 0, 0, -1, null);
 
-    private final LinkedBlockingDeque<FileBlock> deque = new LinkedBlockingDeque<>();
+    //读取顺序：按所选文件与遍历目录的顺序，边遍历边读取
+    public static final int ORDER_WALK = 0;
+    //先遍历整个目录树，文件夹在前，文件从小到大，尽快让更多文件可用
+    public static final int ORDER_SMALL_FIRST = 1;
+    //文件从大到小，大文件不会拖到最后只剩一条通道在传，总耗时最短
+    public static final int ORDER_LARGE_FIRST = 2;
+    //大文件的块与成批的小文件交替发送，小文件的逐个开销不会让通道空等
+    public static final int ORDER_INTERLEAVE = 3;
+    //交替发送时大文件每次发送的块数
+    private static final int INTERLEAVE_SLICE_BLOCKS = 8;
+    //交替发送时每个小文件至少按这么多字节计，一批中的文件数不会太多
+    private static final long INTERLEAVE_FILE_COST = 64 * 1024;
+
+    //已读好、等待发送的块（以及结束用的特殊块）
+    private final BlockRing readyRing;
+    //发送完已回收、可以再装数据的描述符
+    private final BlockRing freeRing;
     private final LinkedBlockingDeque<ByteBuffer> buffers;
     private final List<RemoteFile> files;
-    private final Directory localDir;
-    private final Directory remoteDir;
+    //每个文件只转换一次路径，文件夹部分的转换结果会被缓存
+    private final TransferPathTranslator pathTranslator;
     private final int operateThreadCount;
     private int fileIndex = -1;
+    //已从空闲环取出、还没放入就绪环的描述符，读取中途出错时归还
+    private FileBlock pending;
+    //有新块入队时的通知（Selector引擎用它唤醒事件循环）
+    private volatile Runnable blockListener;
+    //全零块是否以空洞块发送（需对方支持 ProtocolFeatures.HOLES）
+    private boolean elideZeroBlocks = false;
+    //是否在文件数据之前发送目录清单（需对方支持 ProtocolFeatures.MANIFEST）
+    private boolean sendManifest = false;
+    private int order = ORDER_WALK;
+    //传输目标文件夹，作为清单的第0层，保证顶层文件的父文件夹也存在
+    private final String remoteRoot;
+    //正在填充的清单段
+    private FileBlock manifestChunk;
+    private int manifestChunks;
+    //传输中止后每个发送线程都取到这个块（优先于就绪环中剩下的块），不再为每条通道单独入队
+    private volatile FileBlock abortBlock;
+    //读取线程已结束，之后回收的描述符直接把缓冲区块还给池
+    private volatile boolean closed;
+    //在监视器上等待的线程数，另一方只在有人等待时才进入监视器通知
+    private final Object signal = new Object();
+    private volatile int blockWaiters;
+    private volatile int descriptorWaiters;
 
     public ReadFileCall(LinkedBlockingDeque<ByteBuffer> buffers, List<RemoteFile> files, Directory localDir, Directory remoteDir, int operateThreadCount) {
         this.buffers = buffers;
         this.files = files;
-        this.localDir = localDir;
-        this.remoteDir = remoteDir;
+        this.pathTranslator = new TransferPathTranslator(localDir, remoteDir);
+        this.remoteRoot = remoteDir.path;
         this.operateThreadCount = operateThreadCount;
+        //描述符不能多于池中的缓冲区块：缓冲区块都被空闲环里的描述符持有时，
+        //多出的描述符第一次装数据会一直阻塞在取缓冲区块上
+        int descriptorCount = Math.max(1, buffers.size());
+        freeRing = new BlockRing(descriptorCount);
+        for (int i = 0; i < descriptorCount; i++) {
+            freeRing.offer(new FileBlock());
+        }
+        //就绪环还要放下每条通道的结束块
+        readyRing = new BlockRing(descriptorCount + operateThreadCount);
     }
 
     @Override
     public Void call() throws Exception {
         try {
-            for (RemoteFile file : files) {
-                if (!fileExists(file.getPath())) {
-                    continue;
+            if (sendManifest || order != ORDER_WALK) {
+                //先遍历整个目录树（需要时边遍历边发出目录清单），再按选定的顺序读取。
+                //fileIndex按实际发出的顺序分配，按遍历顺序时与不发清单时一致
+                List<RemoteFile> entries = new ArrayList<>();
+                if (sendManifest) {
+                    addToManifest(remoteRoot, 0);
                 }
-                readToDeque(file);
-                if (file.isDirectory()) {
-                    listFilesAndRead(file);
+                for (RemoteFile file : files) {
+                    if (!fileExists(file.getPath())) {
+                        continue;
+                    }
+                    entries.add(file);
+                    if (file.isDirectory()) {
+                        walk(file, 1, entries);
+                    }
+                }
+                if (sendManifest) {
+                    flushManifest(true);
+                }
+                readEntries(entries);
+            } else {
+                for (RemoteFile file : files) {
+                    if (!fileExists(file.getPath())) {
+                        continue;
+                    }
+                    readToDeque(file);
+                    if (file.isDirectory()) {
+                        listFilesAndRead(file);
+                    }
                 }
             }
             for (int i = 0; i < operateThreadCount; i++) {
-                deque.add(END_POINT);
+                offer(END_POINT);
             }
         } catch (Exception e) {
             //当发生读取错误时
             for (int i = 0; i < operateThreadCount; i++) {
-                deque.add(READ_ERROR);
+                offer(READ_ERROR);
             }
             throw e;
+        } finally {
+            if (pending != null) {
+                recycle(pending);
+                pending = null;
+            }
+            closed = true;
+            releaseFreeDescriptors();
         }
         return null;
     }
@@ -68,75 +159,400 @@ public abstract class ReadFileCall implements Callable<Void> {
         }
     }
 
+    private void walk(RemoteFile folder, int depth, List<RemoteFile> entries) throws Exception {
+        if (sendManifest) {
+            addToManifest(pathTranslator.translate(folder.getPath()), depth);
+        }
+        List<RemoteFile> files = listFiles(folder.getPath());
+        if (files != null) {
+            for (RemoteFile file : files) {
+                entries.add(file);
+                if (file.isDirectory()) {
+                    walk(file, depth + 1, entries);
+                }
+            }
+        }
+    }
+
+    private void addToManifest(String path, int depth) throws IOException, InterruptedException {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 65535) {
+            throw new IOException("String too long");
+        }
+        if (manifestChunk != null && manifestChunk.data.remaining() < 2 + 2 + bytes.length) {
+            flushManifest(false);
+        }
+        if (manifestChunk == null) {
+            manifestChunk = acquire();
+            ByteBuffer buffer = bufferOf(manifestChunk);
+            buffer.clear();
+            manifestChunk.set(false, FileBlock.MANIFEST_INDEX, null, 0, 0, 0, buffer, 0);
+        }
+        ByteBuffer buffer = manifestChunk.data;
+        buffer.putShort((short) depth);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    //发出当前这一段清单，最后一段带上总段数
+    private void flushManifest(boolean last) {
+        manifestChunks++;
+        if (last) {
+            manifestChunk.index = manifestChunks;
+        }
+        offer(manifestChunk);
+        manifestChunk = null;
+    }
+
+    /**
+     * 按 {@link #order} 读取遍历得到的全部条目。除按遍历顺序外，文件夹都先于文件发出
+     */
+    private void readEntries(List<RemoteFile> entries) throws Exception {
+        if (order == ORDER_WALK) {
+            for (RemoteFile entry : entries) {
+                readToDeque(entry);
+            }
+            return;
+        }
+        List<RemoteFile> regularFiles = new ArrayList<>();
+        for (RemoteFile entry : entries) {
+            if (entry.isDirectory()) {
+                readToDeque(entry);
+            } else {
+                regularFiles.add(entry);
+            }
+        }
+        switch (order) {
+            case ORDER_SMALL_FIRST:
+                //排序是稳定的，大小相同的文件保持遍历顺序
+                Collections.sort(regularFiles, (a, b) -> Long.compare(a.getSize(), b.getSize()));
+                break;
+            case ORDER_LARGE_FIRST:
+                Collections.sort(regularFiles, (a, b) -> Long.compare(b.getSize(), a.getSize()));
+                break;
+            case ORDER_INTERLEAVE:
+                interleave(regularFiles);
+                return;
+            default:
+                break;
+        }
+        for (RemoteFile file : regularFiles) {
+            readToDeque(file);
+        }
+    }
+
+    /**
+     * 大文件每次发出 {@link #INTERLEAVE_SLICE_BLOCKS} 块，之间插入一批总量相当的小文件。
+     * 大文件在第一次发出时分配fileIndex，它之后的块会排在这期间发出的小文件之后，
+     * 接收端按各通道的队首取最小的块，不会因此等待。
+     * <p>
+     * 只有不超过 {@link WriteFileCall#SMALL_FILE_THRESHOLD} 的文件算作小文件：接收端整个创建这样的文件，
+     * 不会关闭正在写的大文件（见 {@link WriteFileCall}）；其余文件都按大文件逐个分段发送，
+     * 不超过一段的文件一次发完。插入的小文件若也走顺序写入，大文件每段都要关闭再打开一次
+     */
+    private void interleave(List<RemoteFile> regularFiles) throws Exception {
+        long sliceBytes = (long) INTERLEAVE_SLICE_BLOCKS * FileBlock.BLOCK_SIZE;
+        ArrayDeque<RemoteFile> large = new ArrayDeque<>();
+        ArrayDeque<RemoteFile> small = new ArrayDeque<>();
+        for (RemoteFile file : regularFiles) {
+            (file.getSize() > WriteFileCall.SMALL_FILE_THRESHOLD ? large : small).add(file);
+        }
+        PartialFile current = null;
+        while (current != null || !large.isEmpty() || !small.isEmpty()) {
+            if (current == null && !large.isEmpty()) {
+                RemoteFile file = large.poll();
+                fileIndex++;
+                current = new PartialFile(file, fileIndex, pathTranslator.translate(file.getPath()));
+            }
+            if (current != null && readBlocks(current, INTERLEAVE_SLICE_BLOCKS)) {
+                current = null;
+            }
+            long batchBytes = 0;
+            while (!small.isEmpty() && batchBytes < sliceBytes) {
+                RemoteFile file = small.poll();
+                batchBytes += Math.max(file.getSize(), INTERLEAVE_FILE_COST);
+                readToDeque(file);
+            }
+        }
+    }
+
     private void readToDeque(RemoteFile file) throws Exception {
         fileIndex++;
+        String transferPath = pathTranslator.translate(file.getPath());
         if (file.isDirectory()) {
-            deque.add(new FileBlock(false,
-                    fileIndex, localDir.generateTransferPath(file.getPath(), remoteDir),
-                    file.lastModified(), 0, 0, null));
+            FileBlock block = acquire();
+            block.set(false, fileIndex, transferPath, file.lastModified(), 0, 0, null, 0);
+            offer(block);
             return;
         }
+        readBlocks(new PartialFile(file, fileIndex, transferPath), Integer.MAX_VALUE);
+    }
+
+    /**
+     * 打开文件，从 part.nextBlock 起读取至多maxBlocks块后关闭
+     *
+     * @return 文件是否已全部读完
+     */
+    private boolean readBlocks(PartialFile part, int maxBlocks) throws Exception {
         //RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-        FileChannel channel = openFile(file.getPath());
-        long length = channel.size();
-        long lastModified = file.lastModified();
-        long remaining = length;
+        FileChannel channel = openFile(part.file.getPath());
+        //长度以第一次打开时为准，同一文件的所有块的totalSize必须一致
+        if (part.length < 0) {
+            part.length = channel.size();
+        }
+        long length = part.length;
+        long lastModified = part.file.lastModified();
         if (length == 0){
-            ByteBuffer buffer = buffers.take();
+            FileBlock block = acquire();
+            ByteBuffer buffer = bufferOf(block);
             buffer.clear();
             buffer.limit(0);
-            deque.add(new FileBlock(true,
-                    fileIndex, localDir.generateTransferPath(file.getPath(), remoteDir),
-                    lastModified, length, 0, buffer));
+            block.set(true, part.fileIndex, part.transferPath, lastModified, length, 0, buffer, 0);
+            offer(block);
             closeFile();
-            return;
+            return true;
         }
-        int i = 0;
-        while (remaining > 0){
-            int blkSize = (int) Math.min(remaining,FileBlock.BLOCK_SIZE);
-            ByteBuffer buffer = buffers.take();
+        long position = part.nextBlock * (long) FileBlock.BLOCK_SIZE;
+        if (position > 0) {
+            //块的起始位置对齐BLOCK_SIZE，直接IO也可以从这里读起
+            channel.position(position);
+        }
+        int count = 0;
+        while (position < length && count < maxBlocks){
+            int blkSize = (int) Math.min(length - position, FileBlock.BLOCK_SIZE);
+            FileBlock block = acquire();
+            ByteBuffer buffer = bufferOf(block);
             buffer.clear();
             buffer.limit(blkSize);
-            while (buffer.hasRemaining()) {
-                channel.read(buffer);
+            long readStart = System.nanoTime();
+            readBlock(channel, buffer);
+            TransferMetrics.recordSince(TransferMetrics.STAGE_READ, readStart);
+            if (elideZeroBlocks && isAllZero(buffer, blkSize)) {
+                //磁盘镜像、预分配的数据库等文件有大量全零块，不必传输数据
+                block.set(true, part.fileIndex, part.transferPath, lastModified, length, part.nextBlock, null, blkSize);
+            } else {
+                block.set(true, part.fileIndex, part.transferPath, lastModified, length, part.nextBlock, buffer, 0);
             }
-            deque.add(new FileBlock(true,
-                    fileIndex, localDir.generateTransferPath(file.getPath(), remoteDir),
-                    lastModified, length, i, buffer));
-            remaining -= blkSize;
-            i++;
+            offer(block);
+            position += blkSize;
+            part.nextBlock++;
+            count++;
         }
         closeFile();
+        return position >= length;
+    }
+
+    /**
+     * 每次比较32字节（4个long），遇到非零立即返回，普通数据通常在开头就能判断出来，几乎没有额外开销
+     */
+    static boolean isAllZero(ByteBuffer buffer, int length) {
+        int i = 0;
+        int end = length & ~31;
+        for (; i < end; i += 32) {
+            if ((buffer.getLong(i) | buffer.getLong(i + 8) | buffer.getLong(i + 16) | buffer.getLong(i + 24)) != 0) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void setElideZeroBlocks(boolean elideZeroBlocks) {
+        this.elideZeroBlocks = elideZeroBlocks;
+    }
+
+    public void setSendManifest(boolean sendManifest) {
+        this.sendManifest = sendManifest;
+    }
+
+    /**
+     * @param order 读取顺序，见ORDER_*。除ORDER_WALK外都要先遍历整个目录树
+     */
+    public void setOrder(int order) {
+        this.order = order;
+    }
+
+    /**
+     * 取一个空闲的描述符，全部在发送中时等待发送线程回收。传输已中止时不再读取后面的文件
+     */
+    private FileBlock acquire() throws InterruptedException {
+        if (abortBlock != null) {
+            throw new CancellationException("Transfer aborted");
+        }
+        FileBlock block = freeRing.poll();
+        if (block == null) {
+            synchronized (signal) {
+                descriptorWaiters++;
+                try {
+                    while ((block = freeRing.poll()) == null) {
+                        if (abortBlock != null) {
+                            throw new CancellationException("Transfer aborted");
+                        }
+                        signal.wait();
+                    }
+                } finally {
+                    descriptorWaiters--;
+                }
+            }
+        }
+        pending = block;
+        return block;
+    }
+
+    //描述符第一次装数据时才从池中取缓冲区块，之后一直持有
+    private ByteBuffer bufferOf(FileBlock block) throws InterruptedException {
+        if (block.buffer == null) {
+            block.buffer = buffers.take();
+        }
+        return block.buffer;
+    }
+
+    private void offer(FileBlock block) {
+        if (block.fileIndex != -1) {
+            pending = null;
+            if (abortBlock != null) {
+                //已中止，发送线程不会再取块
+                recycle(block);
+                return;
+            }
+        }
+        TransferMetrics.onEnqueue(block, TransferMetrics.sendQueueBlocks);
+        if (!readyRing.offer(block)) {
+            //描述符与结束块的总数不超过就绪环的容量，不会发生
+            throw new IllegalStateException("Ready ring overflow");
+        }
+        if (abortBlock != null) {
+            //与中止同时发生，中止方可能已经清空过就绪环
+            discardReadyBlocks();
+            return;
+        }
+        if (blockWaiters > 0) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+        notifyBlockListener();
+    }
+
+    private void notifyBlockListener() {
+        Runnable listener = blockListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    public void setBlockListener(Runnable blockListener) {
+        this.blockListener = blockListener;
+    }
+
+    /**
+     * 发送线程写出块后（或放弃发送时）归还描述符，特殊块无需归还
+     */
+    public void recycle(FileBlock block) {
+        if (block.fileIndex == -1) {
+            return;
+        }
+        if (closed) {
+            releaseBuffer(block);
+            return;
+        }
+        freeRing.offer(block);
+        if (closed) {
+            //读取线程恰好在此时结束，它可能已经清空过空闲环
+            releaseFreeDescriptors();
+        } else if (descriptorWaiters > 0) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
     }
 
-    public void recycleBuffer(ByteBuffer buffer) {
-        buffers.add(buffer);
+    private void releaseFreeDescriptors() {
+        FileBlock block;
+        while ((block = freeRing.poll()) != null) {
+            releaseBuffer(block);
+        }
+    }
+
+    private void releaseBuffer(FileBlock block) {
+        if (block.buffer != null) {
+            buffers.add(block.buffer);
+            block.buffer = null;
+        }
+        block.data = null;
     }
 
     public FileBlock takeBlock() throws InterruptedException {
-        return deque.take();
+        FileBlock block = pollBlock();
+        if (block != null) {
+            return block;
+        }
+        synchronized (signal) {
+            blockWaiters++;
+            try {
+                while ((block = pollBlock()) == null) {
+                    signal.wait();
+                }
+            } finally {
+                blockWaiters--;
+            }
+        }
+        return block;
+    }
+
+    //非阻塞获取，没有可发送的块时返回null
+    public FileBlock pollBlock() {
+        FileBlock block = abortBlock;
+        if (block != null) {
+            return block;
+        }
+        block = readyRing.poll();
+        if (block != null) {
+            TransferMetrics.onDequeue(block, TransferMetrics.STAGE_SEND_WAIT, TransferMetrics.sendQueueBlocks);
+        }
+        return block;
+    }
+
+    public boolean hasBlock() {
+        return abortBlock != null || !readyRing.isEmpty();
+    }
+
+    //已中止，pollBlock 只会返回结束块
+    public boolean isAborted() {
+        return abortBlock != null;
     }
 
     //当对方写入时发生错误时
     public void shutdownByWriteError() {
-        recycleAllBuffer();
-        for (int i = 0; i < operateThreadCount; i++) {
-            deque.addFirst(WRITE_ERROR);
-        }
+        abort(WRITE_ERROR);
     }
 
     //当其中任意一条通道断开时
     public void shutdownByConnectionBreak() {
-        recycleAllBuffer();
-        for (int i = 0; i < operateThreadCount - 1; i++) {
-            deque.addFirst(INTERRUPT);
+        abort(INTERRUPT);
+    }
+
+    private void abort(FileBlock block) {
+        if (abortBlock == null) {
+            abortBlock = block;
         }
+        discardReadyBlocks();
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        notifyBlockListener();
     }
 
-    private void recycleAllBuffer() {
-        for (FileBlock fileBlock : deque) {
-            if (fileBlock.data != null) {
-                recycleBuffer(fileBlock.data);
+    private void discardReadyBlocks() {
+        FileBlock block;
+        while ((block = readyRing.poll()) != null) {
+            if (block.fileIndex != -1) {
+                TransferMetrics.onDiscard(block, TransferMetrics.sendQueueBlocks);
+                recycle(block);
             }
         }
     }
@@ -147,6 +563,32 @@ public abstract class ReadFileCall implements Callable<Void> {
 
     protected abstract FileChannel openFile(String path) throws Exception;
 
+    /**
+     * 从文件当前位置读满buffer（position到limit），平台实现可覆盖（例如直接IO需要对齐读取长度）
+     */
+    protected void readBlock(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.read(buffer);
+        }
+    }
+
     protected abstract void closeFile() throws Exception;
 
+    /**
+     * 正在分段读取的文件
+     */
+    private static class PartialFile {
+        final RemoteFile file;
+        final int fileIndex;
+        final String transferPath;
+        //第一次打开前为-1
+        long length = -1;
+        int nextBlock = 0;
+
+        PartialFile(RemoteFile file, int fileIndex, String transferPath) {
+            this.file = file;
+            this.fileIndex = fileIndex;
+            this.transferPath = transferPath;
+        }
+    }
 }
@@ -54,6 +54,7 @@ public class ReceiveFileCall implements Callable<Void> {
                         ByteBuffer buffer = writeFileCall.getBuffer();
                         buffer.clear();
                         buffer.limit(length);
+                        long receiveStart = System.nanoTime();
                         int read;
                         while (buffer.hasRemaining()) {
                             read = channel.read(buffer);
@@ -63,7 +64,37 @@ public class ReceiveFileCall implements Callable<Void> {
                             connection.addDownloadedBytes(read);
                         }
                         channel.readFully(buffer);
+                        TransferMetrics.recordSince(TransferMetrics.STAGE_RECEIVE, receiveStart);
                         writeFileCall.putBlock(new FileBlock(true, fileIndex, path, lastModified, totalSize, index, buffer), tIndex);
+                        //超出限速时暂停读取，对方的发送线程被TCP反压阻塞，块改由其他通道发送
+                        connection.throttle(length);
+                        break;
+                    }
+                    case TransferIdentifiers.FILE_HOLE: {
+                        int fileIndex = channel.readInt();
+                        String path = channel.readUTF();
+                        long lastModified = channel.readLong();
+                        long totalSize = channel.readLong();
+                        int index = channel.readInt();
+                        int length = channel.readInt();
+                        callback.onFileDownloading(iName, path,
+                                index * (long) FileBlock.BLOCK_SIZE + length,
+                                totalSize);
+                        writeFileCall.putBlock(new FileBlock(fileIndex, path, lastModified, totalSize, index, length), tIndex);
+                        break;
+                    }
+                    case TransferIdentifiers.MANIFEST: {
+                        int total = channel.readInt();
+                        int length = channel.readInt();
+                        //清单不占用缓冲区块：写线程在目录建好前不会回收缓冲区块
+                        ByteBuffer buffer = ByteBuffer.allocate(length);
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer) == -1) {
+                                throw new EOFException();
+                            }
+                        }
+                        connection.addDownloadedBytes(length);
+                        writeFileCall.putManifest(total, buffer.array());
                         break;
                     }
                     case TransferIdentifiers.EOF:
@@ -0,0 +1,66 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import top.weixiansen574.nio.DataByteChannel;
+
+/**
+ * 耗时控制命令（例如删除大目录）的进度，可被多个线程同时累加。
+ * <p>
+ * 带请求ID的命令（需协商 {@link ProtocolFeatures#PIPELINED}）会定时把累计值以 PROGRESS 消息发给对方，
+ * 旧协议下的命令只累加不发送。
+ */
+public class RequestProgress {
+    //两条进度消息之间的最小间隔
+    private static final long REPORT_INTERVAL_MILLIS = 200;
+
+    private final DataByteChannel ctChannel;
+    private final int requestId;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong lastReportTime = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * 不发送进度消息
+     */
+    public RequestProgress() {
+        this(null, 0);
+    }
+
+    public RequestProgress(DataByteChannel ctChannel, int requestId) {
+        this.ctChannel = ctChannel;
+        this.requestId = requestId;
+    }
+
+    public void add(long count, long bytes) {
+        this.count.addAndGet(count);
+        this.bytes.addAndGet(bytes);
+        if (ctChannel == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastReportTime.get();
+        //同一时刻只有一个线程能抢到发送权，其他线程只累加
+        if (now - last >= REPORT_INTERVAL_MILLIS && lastReportTime.compareAndSet(last, now)) {
+            try {
+                synchronized (ctChannel) {
+                    ctChannel.writeShort(ControllerIdentifiers.PROGRESS);
+                    ctChannel.writeInt(requestId);
+                    ctChannel.writeLong(this.count.get());
+                    ctChannel.writeLong(this.bytes.get());
+                }
+            } catch (IOException ignored) {
+                //控制通道断开，由控制循环处理
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+}
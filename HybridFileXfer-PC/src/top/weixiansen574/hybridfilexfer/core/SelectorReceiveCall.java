@@ -0,0 +1,278 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import top.weixiansen574.hybridfilexfer.core.callback.TransferFileCallback;
+
+/**
+ * Selector引擎的接收端：一个事件循环线程读取所有传输通道并解码帧，
+ * 解码完成的块交给 {@link WriteFileCall} 所在的写硬盘线程，取代每条通道一个阻塞的 {@link ReceiveFileCall}。
+ * <p>
+ * 缓冲区块暂时用尽或超出限速时该通道暂停读取，由事件循环定时重试，不会阻塞其他通道。
+ */
+public class SelectorReceiveCall implements Callable<Void> {
+    //缓冲区块用尽或被限速时的重试间隔
+    private static final long STALL_RETRY_MILLIS = 5;
+
+    private final List<TransferConnection> connections;
+    private final WriteFileCall writeFileCall;
+    private final TransferFileCallback callback;
+
+    private static class ChannelState {
+        final int tIndex;
+        final TransferConnection connection;
+        //写模式，存放尚未解析的帧头（以及读过头的少量数据）
+        final ByteBuffer in = ByteBuffer.allocate(FrameEncoder.MAX_HEADER_SIZE);
+        final FrameDecoder decoder = new FrameDecoder();
+        final long startTime = System.currentTimeMillis();
+        //是否处于读取文件数据阶段
+        boolean readingData;
+        //正在读取的是目录清单而不是文件块
+        boolean manifest;
+        ByteBuffer data;
+        //开始读取当前块数据的时间
+        long receiveStart;
+        //超出限速，暂停读取到令牌桶还清欠账
+        boolean throttled;
+
+        ChannelState(int tIndex, TransferConnection connection) {
+            this.tIndex = tIndex;
+            this.connection = connection;
+        }
+    }
+
+    public SelectorReceiveCall(List<TransferConnection> connections, WriteFileCall writeFileCall, TransferFileCallback callback) {
+        this.connections = connections;
+        this.writeFileCall = writeFileCall;
+        this.callback = callback;
+        for (TransferConnection connection : connections) {
+            connection.resetTotalTrafficInfo();
+        }
+    }
+
+    @Override
+    public Void call() throws Exception {
+        Selector selector = Selector.open();
+        List<SelectionKey> stalledKeys = new ArrayList<>();
+        IOException failure = null;
+        try {
+            for (int i = 0; i < connections.size(); i++) {
+                TransferConnection connection = connections.get(i);
+                connection.socketChannel.configureBlocking(false);
+                connection.socketChannel.register(selector, SelectionKey.OP_READ, new ChannelState(i, connection));
+            }
+            int remaining = connections.size();
+            List<SelectionKey> readyKeys = new ArrayList<>();
+            while (remaining > 0) {
+                if (stalledKeys.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(STALL_RETRY_MILLIS);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                readyKeys.clear();
+                readyKeys.addAll(stalledKeys);
+                stalledKeys.clear();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!readyKeys.contains(key)) {
+                        readyKeys.add(key);
+                    }
+                }
+                for (SelectionKey key : readyKeys) {
+                    ChannelState state = (ChannelState) key.attachment();
+                    try {
+                        if (pump(key, state)) {
+                            key.cancel();
+                            remaining--;
+                        } else if (key.interestOps() == 0) {
+                            stalledKeys.add(key);
+                        }
+                    } catch (IOException e) {
+                        onChannelBroken(state, e);
+                        key.cancel();
+                        remaining--;
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+            }
+        } finally {
+            selector.close();
+            restoreBlocking();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+
+    /**
+     * 读取并解码该通道上已到达的数据
+     *
+     * @return 该通道是否已收到结束帧
+     */
+    private boolean pump(SelectionKey key, ChannelState state) throws IOException {
+        SocketChannel socketChannel = state.connection.socketChannel;
+        FrameDecoder decoder = state.decoder;
+        if (state.throttled) {
+            if (state.connection.throttleDelayNanos() > 0) {
+                return false;
+            }
+            state.throttled = false;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        while (true) {
+            if (state.readingData) {
+                if (state.data == null) {
+                    //清单不占用缓冲区块：写线程在目录建好前不会回收缓冲区块
+                    ByteBuffer data = state.manifest ? ByteBuffer.allocate(decoder.length) : writeFileCall.pollBuffer();
+                    if (data == null) {
+                        //缓冲区块用尽，暂停读取此通道，等写线程回收
+                        key.interestOps(0);
+                        return false;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                    state.receiveStart = System.nanoTime();
+                    data.clear();
+                    data.limit(decoder.length);
+                    //先拿走读帧头时多读进来的数据
+                    state.in.flip();
+                    int count = Math.min(state.in.remaining(), data.remaining());
+                    int oldLimit = state.in.limit();
+                    state.in.limit(state.in.position() + count);
+                    data.put(state.in);
+                    state.in.limit(oldLimit);
+                    state.in.compact();
+                    state.connection.addDownloadedBytes(count);
+                    state.data = data;
+                }
+                if (state.data.hasRemaining()) {
+                    int read = socketChannel.read(state.data);
+                    if (read == -1) {
+                        throw new EOFException();
+                    }
+                    state.connection.addDownloadedBytes(read);
+                    if (state.data.hasRemaining()) {
+                        return false;
+                    }
+                }
+                if (state.manifest) {
+                    writeFileCall.putManifest(decoder.index, state.data.array());
+                    state.manifest = false;
+                } else {
+                    TransferMetrics.recordSince(TransferMetrics.STAGE_RECEIVE, state.receiveStart);
+                    writeFileCall.putBlock(new FileBlock(true, decoder.fileIndex, decoder.path,
+                            decoder.lastModified, decoder.totalSize, decoder.index, state.data), state.tIndex);
+                    if (state.connection.charge(decoder.length) > 0) {
+                        //超出限速，暂停读取，对方的发送线程被TCP反压阻塞，块改由其他通道发送
+                        state.data = null;
+                        state.readingData = false;
+                        state.throttled = true;
+                        key.interestOps(0);
+                        return false;
+                    }
+                }
+                state.data = null;
+                state.readingData = false;
+                continue;
+            }
+            state.in.flip();
+            int result = decoder.decode(state.in);
+            state.in.compact();
+            switch (result) {
+                case FrameDecoder.NEED_MORE: {
+                    int read = socketChannel.read(state.in);
+                    if (read == -1) {
+                        throw new EOFException();
+                    }
+                    if (read == 0) {
+                        return false;
+                    }
+                    break;
+                }
+                case FrameDecoder.FOLDER:
+                    writeFileCall.putBlock(new FileBlock(false, decoder.fileIndex, decoder.path,
+                            decoder.lastModified, 0, 0, null), state.tIndex);
+                    break;
+                case FrameDecoder.FILE_HEADER:
+                    callback.onFileDownloading(state.connection.iName, decoder.path,
+                            decoder.index * (long) FileBlock.BLOCK_SIZE + decoder.length,
+                            decoder.totalSize);
+                    state.readingData = true;
+                    break;
+                case FrameDecoder.HOLE:
+                    callback.onFileDownloading(state.connection.iName, decoder.path,
+                            decoder.index * (long) FileBlock.BLOCK_SIZE + decoder.length,
+                            decoder.totalSize);
+                    writeFileCall.putBlock(new FileBlock(decoder.fileIndex, decoder.path,
+                            decoder.lastModified, decoder.totalSize, decoder.index, decoder.length), state.tIndex);
+                    break;
+                case FrameDecoder.MANIFEST:
+                    state.manifest = true;
+                    state.readingData = true;
+                    break;
+                case FrameDecoder.END:
+                    onChannelEnd(state, decoder.identifier);
+                    return true;
+            }
+        }
+    }
+
+    private void onChannelEnd(ChannelState state, short identifier) {
+        String iName = state.connection.iName;
+        switch (identifier) {
+            case TransferIdentifiers.EOF:
+                writeFileCall.finishChannel(state.tIndex);
+                callback.onChannelComplete(iName,
+                        state.connection.getTotalTraffic().downloadTraffic,
+                        System.currentTimeMillis() - state.startTime);
+                break;
+            case TransferIdentifiers.END_OF_INTERRUPTED:
+                writeFileCall.cancel();
+                callback.onChannelError(iName, TransferFileCallback.ERROR_TYPE_INTERRUPT, null);
+                break;
+            case TransferIdentifiers.END_OF_READ_ERROR:
+                writeFileCall.cancel();
+                callback.onChannelError(iName, TransferFileCallback.ERROR_TYPE_READ_ERROR, null);
+                break;
+            case TransferIdentifiers.END_OF_WRITE_ERROR:
+                writeFileCall.cancel();
+                callback.onChannelError(iName, TransferFileCallback.ERROR_TYPE_WRITE_ERROR, null);
+                break;
+        }
+    }
+
+    private void onChannelBroken(ChannelState state, IOException e) {
+        if (state.data != null && !state.manifest) {
+            writeFileCall.recycleBuffer(state.data);
+            state.data = null;
+        }
+        writeFileCall.finishChannel(state.tIndex);
+        callback.onChannelError(state.connection.iName, TransferFileCallback.ERROR_TYPE_EXCEPTION, e.toString());
+    }
+
+    private void restoreBlocking() {
+        for (TransferConnection connection : connections) {
+            try {
+                connection.socketChannel.configureBlocking(true);
+            } catch (IOException ignored) {
+                //通道已断开
+            }
+        }
+    }
+}
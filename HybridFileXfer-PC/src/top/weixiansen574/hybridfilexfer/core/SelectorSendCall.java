@@ -0,0 +1,235 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import top.weixiansen574.hybridfilexfer.core.callback.TransferFileCallback;
+
+/**
+ * Selector引擎的发送端：一个事件循环线程驱动所有传输通道，取代每条通道一个阻塞的 {@link SendFileCall}。
+ * <p>
+ * 每条通道保存自己正在写出的帧（帧头+数据），套接字写满时记住进度，等下次可写再继续；
+ * 暂时没有块可发时取消该通道的可写关注，读取线程入队新块时再唤醒事件循环。
+ * 线路格式与 {@link SendFileCall} 完全相同，对方无需任何改动。
+ */
+public class SelectorSendCall implements Callable<Void> {
+    //被限速暂停的通道多久检查一次能否恢复
+    private static final long THROTTLE_RETRY_MILLIS = 5;
+
+    private final ReadFileCall readFileCall;
+    private final List<TransferConnection> connections;
+    private final TransferFileCallback callback;
+
+    private static class ChannelState {
+        final TransferConnection connection;
+        final ByteBuffer header = ByteBuffer.allocate(FrameEncoder.MAX_HEADER_SIZE);
+        final ByteBuffer[] frame = new ByteBuffer[]{header, null};
+        final long startTime = System.currentTimeMillis();
+        //正在写出的块，null表示空闲
+        FileBlock block;
+        //开始写出当前块的时间，非阻塞写出可能跨越多次就绪事件
+        long writeStart;
+        //超出限速，暂停到令牌桶还清欠账
+        boolean throttled;
+
+        ChannelState(TransferConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    public SelectorSendCall(ReadFileCall readFileCall, List<TransferConnection> connections, TransferFileCallback callback) {
+        this.readFileCall = readFileCall;
+        this.connections = connections;
+        this.callback = callback;
+        for (TransferConnection connection : connections) {
+            connection.resetTotalTrafficInfo();
+        }
+    }
+
+    @Override
+    public Void call() throws Exception {
+        Selector selector = Selector.open();
+        List<SelectionKey> idleKeys = new ArrayList<>(connections.size());
+        List<SelectionKey> throttledKeys = new ArrayList<>(connections.size());
+        IOException failure = null;
+        readFileCall.setBlockListener(selector::wakeup);
+        try {
+            for (TransferConnection connection : connections) {
+                connection.socketChannel.configureBlocking(false);
+                connection.socketChannel.register(selector, SelectionKey.OP_WRITE, new ChannelState(connection));
+            }
+            int remaining = connections.size();
+            while (remaining > 0) {
+                if (throttledKeys.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.select(THROTTLE_RETRY_MILLIS);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    ChannelState state = (ChannelState) key.attachment();
+                    try {
+                        if (pump(key, state)) {
+                            key.cancel();
+                            remaining--;
+                        } else if (state.throttled) {
+                            throttledKeys.add(key);
+                        } else if (key.interestOps() == 0) {
+                            idleKeys.add(key);
+                        }
+                    } catch (IOException e) {
+                        onChannelBroken(state, e);
+                        key.cancel();
+                        remaining--;
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+                resumeThrottled(throttledKeys);
+                //有新块入队时重新关注空闲通道的可写事件
+                if (!idleKeys.isEmpty() && readFileCall.hasBlock()) {
+                    for (SelectionKey key : idleKeys) {
+                        if (key.isValid()) {
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        }
+                    }
+                    idleKeys.clear();
+                }
+            }
+        } finally {
+            readFileCall.setBlockListener(null);
+            selector.close();
+            restoreBlocking();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+
+    /**
+     * 尽量写出当前帧，每次就绪事件最多完成一帧，保证各通道公平轮转
+     *
+     * @return 该通道是否已写出结束帧
+     */
+    private boolean pump(SelectionKey key, ChannelState state) throws IOException {
+        SocketChannel socketChannel = state.connection.socketChannel;
+        if (state.block == null) {
+            FileBlock block = readFileCall.pollBlock();
+            if (block == null) {
+                key.interestOps(0);
+                return false;
+            }
+            state.block = block;
+            if (block.fileIndex == -1) {
+                FrameEncoder.encodeEnd(FrameEncoder.endIdentifierOf(block), state.header);
+            } else {
+                FrameEncoder.encodeHeader(block, state.header);
+                if (block.isFile) {
+                    callback.onFileUploading(state.connection.iName, block.path,
+                            block.getStartPosition() + block.getLength(),
+                            block.totalSize);
+                }
+                //文件夹与空洞块只有帧头，文件块与目录清单块带数据
+                if (block.data != null) {
+                    block.data.flip();
+                    state.frame[1] = block.data;
+                    state.writeStart = System.nanoTime();
+                }
+            }
+        }
+        ByteBuffer data = state.frame[1];
+        if (data == null) {
+            socketChannel.write(state.header);
+        } else {
+            socketChannel.write(state.frame);
+        }
+        if (state.header.hasRemaining() || (data != null && data.hasRemaining())) {
+            return false;
+        }
+        //当前帧已完整写出
+        FileBlock block = state.block;
+        state.block = null;
+        state.frame[1] = null;
+        if (block.fileIndex == -1) {
+            onChannelEnd(state, block);
+            return true;
+        }
+        long delay = 0;
+        if (data != null) {
+            TransferMetrics.recordSince(TransferMetrics.STAGE_SOCKET_WRITE, state.writeStart);
+            state.connection.addUploadedBytes(block.getLength());
+            delay = state.connection.charge(block.getLength());
+        }
+        readFileCall.recycle(block);
+        if (delay > 0) {
+            //超出限速，暂停该通道，块由其他通道取走
+            state.throttled = true;
+            key.interestOps(0);
+        }
+        return false;
+    }
+
+    private void resumeThrottled(List<SelectionKey> throttledKeys) {
+        Iterator<SelectionKey> iterator = throttledKeys.iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            ChannelState state = (ChannelState) key.attachment();
+            if (!key.isValid()) {
+                iterator.remove();
+            } else if (state.connection.throttleDelayNanos() == 0) {
+                state.throttled = false;
+                key.interestOps(SelectionKey.OP_WRITE);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void onChannelEnd(ChannelState state, FileBlock block) {
+        String iName = state.connection.iName;
+        if (block == ReadFileCall.END_POINT) {
+            callback.onChannelComplete(iName,
+                    state.connection.getTotalTraffic().uploadTraffic,
+                    System.currentTimeMillis() - state.startTime);
+        } else if (block == ReadFileCall.INTERRUPT) {
+            callback.onChannelError(iName, TransferFileCallback.ERROR_TYPE_INTERRUPT, null);
+        } else if (block == ReadFileCall.READ_ERROR) {
+            callback.onChannelError(iName, TransferFileCallback.ERROR_TYPE_READ_ERROR, null);
+        } else if (block == ReadFileCall.WRITE_ERROR) {
+            callback.onChannelError(iName, TransferFileCallback.ERROR_TYPE_WRITE_ERROR, null);
+        }
+    }
+
+    private void onChannelBroken(ChannelState state, IOException e) {
+        //归还块描述符，并通知其他传输通道停止传输
+        if (state.block != null) {
+            readFileCall.recycle(state.block);
+        }
+        state.block = null;
+        readFileCall.shutdownByConnectionBreak();
+        callback.onChannelError(state.connection.iName, TransferFileCallback.ERROR_TYPE_EXCEPTION, e.toString());
+    }
+
+    private void restoreBlocking() {
+        for (TransferConnection connection : connections) {
+            try {
+                connection.socketChannel.configureBlocking(true);
+            } catch (IOException ignored) {
+                //通道已断开
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package top.weixiansen574.hybridfilexfer.core;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.Callable;
 
 import top.weixiansen574.hybridfilexfer.core.callback.TransferFileCallback;
@@ -10,6 +11,8 @@ public class SendFileCall implements Callable<Void> {
     private final DataByteChannel channel;
     private final TransferConnection connection;
     private final TransferFileCallback callback;
+    private final ByteBuffer header = ByteBuffer.allocate(FrameEncoder.MAX_HEADER_SIZE);
+    private final ByteBuffer[] frame = new ByteBuffer[]{header, null};
 
     public SendFileCall(ReadFileCall readFileCall, TransferConnection connection, TransferFileCallback callback) {
         this.readFileCall = readFileCall;
@@ -45,30 +48,45 @@ public class SendFileCall implements Callable<Void> {
                     }
                     break;
                 }
-                channel.writeShort(fileBlock.isFile ? TransferIdentifiers.FILE :
-                        TransferIdentifiers.FOLDER);//是否文件夹
-                channel.writeInt(fileBlock.fileIndex);
-                channel.writeUTF(fileBlock.path);//路径
-                channel.writeLong(fileBlock.lastModified);//修改日期
-                if (!fileBlock.isFile) continue;
-                channel.writeLong(fileBlock.totalSize);//总大小
-                channel.writeInt(fileBlock.index);//索引
-                channel.writeInt(fileBlock.getLength());//单块的长度
-
-                callback.onFileUploading(connection.iName, fileBlock.path,
-                        fileBlock.getStartPosition() + fileBlock.getLength(),
-                        fileBlock.totalSize);
+                FrameEncoder.encodeHeader(fileBlock, header);
+                if (fileBlock.isFile) {
+                    callback.onFileUploading(connection.iName, fileBlock.path,
+                            fileBlock.getStartPosition() + fileBlock.getLength(),
+                            fileBlock.totalSize);
+                }
+                //文件夹与空洞块只有帧头，文件块与目录清单块带数据
+                if (fileBlock.data == null) {
+                    channel.write(header);
+                    readFileCall.recycle(fileBlock);
+                    fileBlock = null;
+                    continue;
+                }
 
                 fileBlock.data.flip();
-                channel.write(fileBlock.data);
-                readFileCall.recycleBuffer(fileBlock.data);
-                connection.addUploadedBytes(fileBlock.getLength());
+                frame[1] = fileBlock.data;
+                long writeStart = System.nanoTime();
+                channel.write(frame);
+                TransferMetrics.recordSince(TransferMetrics.STAGE_SOCKET_WRITE, writeStart);
+                frame[1] = null;
+                int length = fileBlock.getLength();
+                connection.addUploadedBytes(length);
+                readFileCall.recycle(fileBlock);
+                //已回收，避免异常时重复回收
+                fileBlock = null;
+                //超出限速时先不取下一个块，让其他通道多发
+                connection.throttle(length);
             }
+        } catch (InterruptedException e) {
+            //所在的TransferScope已被取消，通道与其他任务由取消方负责收尾
+            if (fileBlock != null) {
+                readFileCall.recycle(fileBlock);
+            }
+            throw e;
         } catch (Exception e) {
             //若发生异常，通知其他传输通道，停止传输
             if (fileBlock != null){
-                //回收文件分块的ByteBuffer，否则导致这个Buffer免费了
-                readFileCall.recycleBuffer(fileBlock.data);
+                //归还块描述符（连同它的ByteBuffer），否则导致这个Buffer免费了
+                readFileCall.recycle(fileBlock);
             }
             readFileCall.shutdownByConnectionBreak();
             callback.onChannelError(connection.iName,TransferFileCallback.ERROR_TYPE_EXCEPTION, e.toString());
@@ -0,0 +1,117 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * 并行创建小文件：完整装在一个块里的小文件由写线程交给这里，最多 workerCount 个线程同时创建、写入、关闭并设置修改时间，
+ * 海量小文件时不再由单个写线程逐个等待这些元数据操作。大文件仍由写线程按顺序流式写入。
+ * <p>
+ * 排队的块占用着缓冲区块，缓冲区块用尽时接收线程自然会等待，所以队列不需要另设上限。
+ * 工作线程在队列空了之后退出，有新任务时再从执行器启动。
+ */
+class SmallFileWriters implements Runnable {
+    private final WriteFileCall writeFileCall;
+    private final Executor executor;
+    private final int workerCount;
+    private final ArrayDeque<FileBlock> queue = new ArrayDeque<>();
+    //已启动的工作线程数
+    private int running = 0;
+    //正在写入（已从队列取出）的文件数
+    private int writing = 0;
+    private boolean canceled = false;
+    private Exception failure;
+
+    SmallFileWriters(WriteFileCall writeFileCall, Executor executor, int workerCount) {
+        this.writeFileCall = writeFileCall;
+        this.executor = executor;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * 提交一个完整的小文件，之后由工作线程负责写入并回收其缓冲区块
+     *
+     * @throws Exception 之前提交的文件写入失败
+     */
+    synchronized void submit(FileBlock block) throws Exception {
+        if (failure != null) {
+            writeFileCall.recycleBuffer(block.data);
+            throw failure;
+        }
+        queue.add(block);
+        //空闲的线程足够处理排队的文件时不再启动新线程
+        if (running < workerCount && running - writing < queue.size()) {
+            running++;
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * 等待已提交的文件全部写完
+     *
+     * @throws Exception 任意文件写入失败
+     */
+    synchronized void await() throws Exception {
+        while ((!queue.isEmpty() || writing > 0) && failure == null) {
+            wait();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 丢弃排队的文件（回收缓冲区块），并等待正在写入的文件结束，之后不会再有线程使用缓冲区块
+     */
+    synchronized void cancel() {
+        canceled = true;
+        for (FileBlock block : queue) {
+            writeFileCall.recycleBuffer(block.data);
+        }
+        queue.clear();
+        //写线程被中断时也要等到底：正在写的文件只有一块，很快就会结束
+        boolean interrupted = false;
+        while (writing > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            FileBlock block;
+            synchronized (this) {
+                block = queue.poll();
+                if (block == null || canceled) {
+                    running--;
+                    return;
+                }
+                writing++;
+            }
+            Exception error = null;
+            try {
+                writeFileCall.writeSmallFile(block);
+            } catch (Exception e) {
+                error = e;
+            }
+            synchronized (this) {
+                writing--;
+                if (error != null && failure == null) {
+                    failure = error;
+                }
+                notifyAll();
+            }
+            if (error != null) {
+                //让写线程尽快停下，而不是把剩下的块都写完
+                writeFileCall.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import top.weixiansen574.hybridfilexfer.core.bean.TrafficInfo;
+import top.weixiansen574.hybridfilexfer.core.callback.TransferFileCallback;
+
+//每100ms采样一次各通道的速率，每1秒回调一次流量信息，通过取消所在的Future（中断）来停止
+public class SpeedMonitorCall implements Callable<Void> {
+    private static final long SAMPLE_INTERVAL_NANOS = 100_000_000;
+    //每隔多少次采样回调一次
+    private static final int SAMPLES_PER_REPORT = 10;
+
+    private final List<TransferConnection> connections;
+    private final TransferFileCallback callback;
+
+    public SpeedMonitorCall(List<TransferConnection> connections, TransferFileCallback callback) {
+        this.connections = connections;
+        this.callback = callback;
+    }
+
+    @Override
+    @SuppressWarnings("BusyWait")
+    public Void call() {
+        long next = System.nanoTime();
+        for (TransferConnection connection : connections) {
+            connection.restartRates(next);
+            //丢弃上次传输遗留的区间流量
+            connection.resetCurrentTrafficInfo();
+        }
+        int samples = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            //按固定节拍采样，不因回调耗时而漂移
+            next += SAMPLE_INTERVAL_NANOS;
+            long delay = next - System.nanoTime();
+            try {
+                if (delay > 0) {
+                    Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            long now = System.nanoTime();
+            for (TransferConnection connection : connections) {
+                connection.sampleRates(now);
+            }
+            if (++samples < SAMPLES_PER_REPORT) {
+                continue;
+            }
+            samples = 0;
+            List<TrafficInfo> trafficInfoList = new ArrayList<>();
+            for (TransferConnection channel : connections) {
+                trafficInfoList.add(channel.resetCurrentTrafficInfo());
+            }
+            callback.onSpeedInfo(trafficInfoList);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,394 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import top.weixiansen574.hybridfilexfer.core.callback.TransferFileCallback;
+import top.weixiansen574.nio.DataByteChannel;
+
+/**
+ * 传输通道多路复用（需协商 {@link ProtocolFeatures#STREAMS}）。
+ * <p>
+ * 每条传输通道在整个会话期间固定运行一个 {@link MuxSendCall} 和一个 {@link MuxReceiveCall}，
+ * 每个发送或接收任务是一个带流ID的流：发送端按流轮转取块（公平调度），接收端按帧中的流ID分发给对应的
+ * {@link WriteFileCall}。这样手机拉取照片的同时可以往手机推送视频，两个方向同时跑满全双工链路。
+ * <p>
+ * 每个流从会话的缓冲区块中划出固定的预算，一个流占满自己的预算不会饿死其他流。
+ * 接收端通过 {@link ControllerIdentifiers#STREAM_CREDIT} 按流授予额度（即该流预算中空闲的缓冲区块数），
+ * 发送端只在有额度时发出该流的文件数据块，接收线程因此总能立即拿到缓冲区块，不会因为一个流写得慢而卡住整条通道。
+ */
+public class StreamMux {
+    //同时进行的流数上限，决定每个流的缓冲区块预算
+    public static final int MAX_CONCURRENT_STREAMS = 4;
+
+    private final List<TransferConnection> connections;
+    private final LinkedBlockingDeque<ByteBuffer> buffers;
+    private final int budgetSize;
+    private final TransferScope scope;
+    //额度消息与其他控制消息一样在 synchronized (ctChannel) 中整体写出
+    private final DataByteChannel ctChannel;
+    //接收流攒够这么多归还的缓冲区块才授予一次额度，避免每写一块就发一条控制消息
+    private final int creditBatch;
+    //发送流的快照，打开或关闭流时整体替换，发送线程轮转时不会遇到中途变化的列表
+    private volatile SendStream[] sendStreams = new SendStream[0];
+    private final Map<Integer, ReceiveStream> receiveStreams = new HashMap<>();
+    private final Map<Integer, CompletableFuture<StreamResult>> peerResults = new ConcurrentHashMap<>();
+    //对方授予的发送额度，对方的额度可能先于发送流打开到达
+    private final Map<Integer, AtomicInteger> sendCredits = new ConcurrentHashMap<>();
+    //发送线程等待新块时使用
+    private final Object blockSignal = new Object();
+    //一次只让一个流划出预算，不会出现多个流各拿到一部分缓冲区块后互相等待
+    private final Object budgetLock = new Object();
+    private volatile IOException failure;
+
+    public static class StreamResult {
+        public final boolean ok;
+        public final String message;
+
+        public StreamResult(boolean ok, String message) {
+            this.ok = ok;
+            this.message = message;
+        }
+    }
+
+    public static class SendStream {
+        public final int streamId;
+        public final ReadFileCall readFileCall;
+        public final AtomicLong traffic = new AtomicLong();
+        //由各通道的发送线程各自设置自己的那一位
+        final boolean[] channelEnded;
+        final CountDownLatch channelsEnded;
+        //对方该流还能接收的文件数据块数
+        final AtomicInteger credit;
+        //已取出但还没有额度的文件数据块，额度到达后先发送它们，在此之前不再从该流取块
+        final ConcurrentLinkedQueue<FileBlock> parked = new ConcurrentLinkedQueue<>();
+
+        SendStream(int streamId, ReadFileCall readFileCall, int channelCount, AtomicInteger credit) {
+            this.streamId = streamId;
+            this.readFileCall = readFileCall;
+            this.credit = credit;
+            channelEnded = new boolean[channelCount];
+            channelsEnded = new CountDownLatch(channelCount);
+        }
+
+        boolean tryAcquireCredit() {
+            int current;
+            do {
+                current = credit.get();
+                if (current <= 0) {
+                    return false;
+                }
+            } while (!credit.compareAndSet(current, current - 1));
+            return true;
+        }
+
+        void releaseCredit() {
+            credit.incrementAndGet();
+        }
+    }
+
+    public static class ReceiveStream {
+        public final int streamId;
+        public final WriteFileCall writeFileCall;
+        public final AtomicLong traffic = new AtomicLong();
+        final CountDownLatch channelsEnded;
+        //已归还但还没授予对方的缓冲区块数
+        final AtomicInteger returnedCredit = new AtomicInteger();
+        //在 synchronized (ctChannel) 中读写：流结果写出后不再授予额度，对方收到结果即关闭该流，流ID随后可能复用
+        boolean creditClosed = false;
+
+        ReceiveStream(int streamId, WriteFileCall writeFileCall, int channelCount) {
+            this.streamId = streamId;
+            this.writeFileCall = writeFileCall;
+            channelsEnded = new CountDownLatch(channelCount);
+        }
+    }
+
+    public StreamMux(List<TransferConnection> connections, LinkedBlockingDeque<ByteBuffer> buffers, TransferScope scope, DataByteChannel ctChannel) {
+        this.connections = connections;
+        this.buffers = buffers;
+        this.scope = scope;
+        this.ctChannel = ctChannel;
+        budgetSize = Math.max(2, buffers.size() / MAX_CONCURRENT_STREAMS);
+        creditBatch = Math.max(1, budgetSize / 4);
+    }
+
+    public void start(TransferFileCallback callback) {
+        for (int i = 0; i < connections.size(); i++) {
+            TransferConnection connection = connections.get(i);
+            scope.fork("MUX_UL_" + connection.iName, new MuxSendCall(this, i, connection, callback));
+            scope.fork("MUX_DL_" + connection.iName, new MuxReceiveCall(this, i, connection, callback));
+        }
+        scope.fork("SpeedMonitor", new SpeedMonitorCall(connections, callback));
+    }
+
+    public void stop() {
+        scope.cancel();
+    }
+
+    public int getChannelCount() {
+        return connections.size();
+    }
+
+    /**
+     * 为一个新流划出缓冲区块预算，同时进行的流过多时阻塞等待其他流归还。
+     * 预算整体划出：等待中的流只有一个，其余流要么拿到了完整的预算，要么一块也没拿
+     */
+    public LinkedBlockingDeque<ByteBuffer> takeBudget() throws InterruptedException {
+        LinkedBlockingDeque<ByteBuffer> budget = new LinkedBlockingDeque<>();
+        synchronized (budgetLock) {
+            try {
+                for (int i = 0; i < budgetSize; i++) {
+                    budget.add(buffers.take());
+                }
+            } catch (InterruptedException e) {
+                returnBudget(budget);
+                throw e;
+            }
+        }
+        return budget;
+    }
+
+    public void returnBudget(LinkedBlockingDeque<ByteBuffer> budget) {
+        budget.drainTo(buffers);
+    }
+
+    public SendStream openSendStream(int streamId, ReadFileCall readFileCall) {
+        SendStream stream = new SendStream(streamId, readFileCall, connections.size(),
+                sendCredits.computeIfAbsent(streamId, k -> new AtomicInteger()));
+        readFileCall.setBlockListener(this::signalBlock);
+        synchronized (this) {
+            SendStream[] streams = Arrays.copyOf(sendStreams, sendStreams.length + 1);
+            streams[streams.length - 1] = stream;
+            sendStreams = streams;
+        }
+        signalBlock();
+        return stream;
+    }
+
+    public void closeSendStream(SendStream stream) {
+        stream.readFileCall.setBlockListener(null);
+        //对方写出流结果后不会再授予额度，此后到达的额度属于复用该流ID的新流
+        sendCredits.remove(stream.streamId);
+        FileBlock block;
+        while ((block = stream.parked.poll()) != null) {
+            stream.readFileCall.recycle(block);
+        }
+        synchronized (this) {
+            SendStream[] streams = sendStreams;
+            for (int i = 0; i < streams.length; i++) {
+                if (streams[i] == stream) {
+                    SendStream[] remaining = new SendStream[streams.length - 1];
+                    System.arraycopy(streams, 0, remaining, 0, i);
+                    System.arraycopy(streams, i + 1, remaining, i, remaining.length - i);
+                    sendStreams = remaining;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 注册接收流，并把整个预算作为初始额度授予对方
+     */
+    public ReceiveStream openReceiveStream(int streamId, WriteFileCall writeFileCall) throws IOException {
+        ReceiveStream stream = new ReceiveStream(streamId, writeFileCall, connections.size());
+        synchronized (receiveStreams) {
+            receiveStreams.put(streamId, stream);
+            receiveStreams.notifyAll();
+        }
+        writeFileCall.setBufferListener(() -> onBufferReturned(stream));
+        grantCredit(stream, budgetSize);
+        return stream;
+    }
+
+    //写线程、小文件工作线程或接收线程每归还一个缓冲区块调用一次
+    private void onBufferReturned(ReceiveStream stream) {
+        if (stream.returnedCredit.incrementAndGet() < creditBatch) {
+            return;
+        }
+        int credit = stream.returnedCredit.getAndSet(0);
+        if (credit == 0) {
+            return;
+        }
+        try {
+            grantCredit(stream, credit);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void grantCredit(ReceiveStream stream, int credit) throws IOException {
+        if (failure != null) {
+            return;
+        }
+        synchronized (ctChannel) {
+            if (stream.creditClosed) {
+                return;
+            }
+            ctChannel.writeShort(ControllerIdentifiers.STREAM_CREDIT);
+            ctChannel.writeInt(stream.streamId);
+            ctChannel.writeInt(credit);
+        }
+    }
+
+    /**
+     * 必须在写出该流结果的同一个 synchronized (ctChannel) 中调用，保证对方收到结果后不会再收到该流的额度
+     */
+    public void closeCredit(ReceiveStream stream) {
+        stream.creditClosed = true;
+    }
+
+    /**
+     * 控制通道收到对方的 STREAM_CREDIT
+     */
+    public void onPeerCredit(int streamId, int credit) {
+        sendCredits.computeIfAbsent(streamId, k -> new AtomicInteger()).addAndGet(credit);
+        signalBlock();
+    }
+
+    SendStream[] getSendStreams() {
+        return sendStreams;
+    }
+
+    /**
+     * 控制通道与数据通道之间没有先后保证，对方的数据可能先于接收请求到达，此时等待流注册
+     */
+    ReceiveStream awaitReceiveStream(int streamId) throws InterruptedException {
+        synchronized (receiveStreams) {
+            ReceiveStream stream;
+            while ((stream = receiveStreams.get(streamId)) == null) {
+                receiveStreams.wait();
+            }
+            return stream;
+        }
+    }
+
+    void onSendChannelEnded(SendStream stream, int tIndex) {
+        stream.channelEnded[tIndex] = true;
+        stream.channelsEnded.countDown();
+    }
+
+    //该流在所有通道上都收到结束帧后注销，之后流ID可以复用
+    void onReceiveChannelEnded(ReceiveStream stream) {
+        stream.channelsEnded.countDown();
+        if (stream.channelsEnded.getCount() == 0) {
+            synchronized (receiveStreams) {
+                receiveStreams.remove(stream.streamId);
+            }
+        }
+    }
+
+    public void awaitChannelsEnded(SendStream stream) throws InterruptedException {
+        awaitLatch(stream.channelsEnded);
+    }
+
+    public void awaitChannelsEnded(ReceiveStream stream) throws InterruptedException {
+        awaitLatch(stream.channelsEnded);
+    }
+
+    private void awaitLatch(CountDownLatch latch) throws InterruptedException {
+        while (!latch.await(500, TimeUnit.MILLISECONDS)) {
+            //会话已断开时不再等待
+            if (failure != null) {
+                return;
+            }
+        }
+    }
+
+    void signalBlock() {
+        synchronized (blockSignal) {
+            blockSignal.notifyAll();
+        }
+    }
+
+    /**
+     * 所有流都没有可发送的块（或有块但没有额度）时，发送线程在此等待
+     */
+    void awaitBlock(int tIndex) throws InterruptedException {
+        synchronized (blockSignal) {
+            for (SendStream stream : sendStreams) {
+                if (canSend(stream, tIndex)) {
+                    return;
+                }
+            }
+            blockSignal.wait();
+        }
+    }
+
+    private boolean canSend(SendStream stream, int tIndex) {
+        if (stream.channelEnded[tIndex]) {
+            return false;
+        }
+        if (stream.parked.isEmpty()) {
+            return stream.readFileCall.hasBlock();
+        }
+        //中止后暂存的块直接丢弃，不必等额度
+        return stream.credit.get() > 0 || stream.readFileCall.isAborted();
+    }
+
+    /**
+     * 控制通道收到对方的 STREAM_RESULT
+     */
+    public void onPeerResult(int streamId, boolean ok, String message) {
+        peerResults.computeIfAbsent(streamId, k -> new CompletableFuture<>())
+                .complete(new StreamResult(ok, message));
+    }
+
+    public StreamResult awaitPeerResult(int streamId) throws IOException, InterruptedException {
+        CompletableFuture<StreamResult> future = peerResults.computeIfAbsent(streamId, k -> new CompletableFuture<>());
+        IOException failure = this.failure;
+        if (failure != null) {
+            future.completeExceptionally(failure);
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            peerResults.remove(streamId);
+        }
+    }
+
+    /**
+     * 任意传输通道断开，整个会话的所有流都无法继续
+     */
+    void fail(IOException e) {
+        if (failure != null) {
+            return;
+        }
+        failure = e;
+        for (CompletableFuture<StreamResult> future : peerResults.values()) {
+            future.completeExceptionally(e);
+        }
+        for (SendStream stream : sendStreams) {
+            stream.readFileCall.shutdownByConnectionBreak();
+        }
+        synchronized (receiveStreams) {
+            for (ReceiveStream stream : receiveStreams.values()) {
+                stream.writeFileCall.cancel();
+            }
+        }
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    public IOException getFailure() {
+        return failure;
+    }
+}
@@ -0,0 +1,240 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 归档接收模式：把收到的整个目录树写进一个tar文件（POSIX ustar，超长路径与超大文件用PAX扩展头），
+ * 代替逐个创建文件。海量小文件时，接收端不再为每个文件创建、设置长度、关闭、设置修改时间，
+ * 所有数据顺序写进同一个文件。
+ * <p>
+ * 块按通道乱序到达，文件第一次出现（无论是哪一块）时就在归档末尾为它预留 头+数据 的空间并写出头，
+ * 之后它的各块按位置写入预留区，所以归档的顺序是文件首次到达的顺序，写入基本是顺序的。
+ * 空洞块不写，预留区在新建的归档文件中读出为0。结束时写出两个全0的块作为归档结尾。
+ * <p>
+ * 旁边的索引文件（归档名+.idx）每个条目一行，可以不扫描归档直接定位某个文件：
+ * <pre>
+ * 数据在归档中的偏移 \t 大小 \t 修改时间(ms) \t 类型(f或d) \t 条目名
+ * </pre>
+ * 条目名中的反斜杠与换行转义为 \\ 与 \n。
+ */
+class TarArchiveSink {
+    private static final int RECORD = 512;
+    //ustar头中各字段能表示的上限
+    private static final int NAME_LENGTH = 100;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_DIRECTORY = '5';
+    private static final byte TYPE_PAX = 'x';
+
+    private final File indexFile;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Writer index;
+    private final ByteBuffer header = ByteBuffer.allocate(RECORD);
+    //按文件序号记录其数据在归档中的偏移，0表示尚未预留
+    private long[] dataOffsets = new long[1024];
+    //已预留空间的末尾
+    private long end = 0;
+
+    TarArchiveSink(File archive) throws IOException {
+        indexFile = new File(archive.getPath() + ".idx");
+        file = new RandomAccessFile(archive, "rw");
+        //覆盖同名归档时丢弃旧内容，预留区才能读出为0
+        file.setLength(0);
+        channel = file.getChannel();
+        index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile), StandardCharsets.UTF_8));
+    }
+
+    void putDirectory(String path, long lastModified) throws IOException {
+        String name = entryName(path);
+        if (!name.endsWith("/")) {
+            name += "/";
+        }
+        long offset = reserve(name, 0, lastModified, TYPE_DIRECTORY);
+        appendIndex(offset, 0, lastModified, 'd', name);
+    }
+
+    /**
+     * 写入文件块（或空洞块，只预留不写入），该文件第一次出现时预留空间并写出头
+     */
+    void putBlock(FileBlock block) throws IOException {
+        long offset = dataOffsetOf(block);
+        if (block.getStartPosition() + block.getLength() > block.totalSize) {
+            throw new IOException("Block out of range: " + block.path);
+        }
+        if (block.isHole()) {
+            return;
+        }
+        ByteBuffer data = block.data;
+        long position = offset + block.getStartPosition();
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    private long dataOffsetOf(FileBlock block) throws IOException {
+        int fileIndex = block.fileIndex;
+        if (fileIndex < 0) {
+            throw new IOException("Invalid file index: " + fileIndex);
+        }
+        if (fileIndex >= dataOffsets.length) {
+            dataOffsets = Arrays.copyOf(dataOffsets, Math.max(dataOffsets.length * 2, fileIndex + 1));
+        }
+        long offset = dataOffsets[fileIndex];
+        if (offset == 0) {
+            String name = entryName(block.path);
+            offset = reserve(name, block.totalSize, block.lastModified, TYPE_FILE);
+            dataOffsets[fileIndex] = offset;
+            appendIndex(offset, block.totalSize, block.lastModified, 'f', name);
+        }
+        return offset;
+    }
+
+    /**
+     * 在末尾预留一个条目：（需要时的PAX扩展头）+ustar头+按512对齐的数据区
+     *
+     * @return 数据区的偏移
+     */
+    private long reserve(String name, long size, long lastModified, byte type) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean longName = nameBytes.length > NAME_LENGTH;
+        boolean largeSize = size > MAX_OCTAL_SIZE;
+        if (longName || largeSize) {
+            StringBuilder records = new StringBuilder();
+            if (longName) {
+                records.append(paxRecord("path", name));
+            }
+            if (largeSize) {
+                records.append(paxRecord("size", Long.toString(size)));
+            }
+            byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+            writeHeader(truncatedName("PaxHeaders/" + name), pax.length, lastModified, TYPE_PAX);
+            writeFully(ByteBuffer.wrap(pax), end);
+            end += padded(pax.length);
+        }
+        writeHeader(longName ? truncatedName(name) : nameBytes, largeSize ? 0 : size, lastModified, type);
+        long offset = end;
+        end += padded(size);
+        return offset;
+    }
+
+    private void writeHeader(byte[] name, long size, long lastModified, byte type) throws IOException {
+        header.clear();
+        Arrays.fill(header.array(), (byte) 0);
+        byte[] h = header.array();
+        System.arraycopy(name, 0, h, 0, Math.min(name.length, NAME_LENGTH));
+        putOctal(h, 100, 8, type == TYPE_DIRECTORY ? 0755 : 0644);
+        putOctal(h, 108, 8, 0);
+        putOctal(h, 116, 8, 0);
+        putOctal(h, 124, 12, size);
+        putOctal(h, 136, 12, Math.max(0, lastModified / 1000));
+        //校验和计算时按8个空格算
+        Arrays.fill(h, 148, 156, (byte) ' ');
+        h[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, h, 257, 6);
+        h[263] = '0';
+        h[264] = '0';
+        int checksum = 0;
+        for (byte b : h) {
+            checksum += b & 0xFF;
+        }
+        putOctal(h, 148, 7, checksum);
+        h[155] = ' ';
+        writeFully(header, end);
+        end += RECORD;
+    }
+
+    /**
+     * 写出归档结尾与索引
+     *
+     * @param force 是否同步刷盘
+     */
+    void finish(boolean force) throws IOException {
+        header.clear();
+        Arrays.fill(header.array(), (byte) 0);
+        writeFully(header, end);
+        header.clear();
+        writeFully(header, end + RECORD);
+        //最后一个文件的数据区可能以空洞结尾，长度要覆盖整个预留区
+        file.setLength(end + 2 * RECORD);
+        index.flush();
+        if (force) {
+            channel.force(true);
+        }
+    }
+
+    void close() throws IOException {
+        try {
+            index.close();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void appendIndex(long offset, long size, long lastModified, char type, String name) throws IOException {
+        index.write(offset + "\t" + size + "\t" + lastModified + "\t" + type + "\t"
+                + name.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+    }
+
+    /**
+     * 接收端的本地路径去掉根（盘符与开头的/），与tar的做法一致；Windows的分隔符统一为/
+     */
+    static String entryName(String path) {
+        String name = File.separatorChar == '\\' ? path.replace('\\', '/') : path;
+        if (name.length() >= 2 && name.charAt(1) == ':') {
+            name = name.substring(2);
+        }
+        int start = 0;
+        while (start < name.length() && name.charAt(start) == '/') {
+            start++;
+        }
+        return name.substring(start);
+    }
+
+    private static String paxRecord(String key, String value) {
+        //记录长度包含表示长度的数字本身
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int total = length + Integer.toString(length).length();
+        if (Integer.toString(total).length() != Integer.toString(length).length()) {
+            total++;
+        }
+        return total + " " + key + "=" + value + "\n";
+    }
+
+    //扩展头之后的ustar头中只放得下名称的前一部分，解包时以扩展头为准
+    private static byte[] truncatedName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= NAME_LENGTH ? bytes : Arrays.copyOf(bytes, NAME_LENGTH);
+    }
+
+    private static void putOctal(byte[] h, int offset, int length, long value) {
+        //length-1位八进制数字，末尾一个NUL
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        int pad = digits - octal.length();
+        for (int i = 0; i < digits; i++) {
+            h[offset + i] = (byte) (i < pad ? '0' : octal.charAt(i - pad));
+        }
+        h[offset + digits] = 0;
+    }
+
+    private static long padded(long size) {
+        return (size + RECORD - 1) / RECORD * RECORD;
+    }
+}
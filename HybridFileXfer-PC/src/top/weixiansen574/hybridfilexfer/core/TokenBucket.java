@@ -0,0 +1,98 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 限速用的令牌桶，速率可以在传输过程中随时修改。
+ * <p>
+ * 按“先用后还”的方式记账：传输线程写完（或读完）一个块后 {@link #charge(long)}，令牌允许为负，
+ * 欠账期间该线程不再取块，由其他通道从块队列中取走，被限速的通道只少传它被限掉的那部分。
+ * 阻塞式引擎调用 {@link #await()} 等待还清，Selector引擎用 {@link #delayNanos()} 算出暂停多久。
+ */
+public class TokenBucket {
+    //最多攒下这么长时间的令牌，限制空闲后的突发
+    private static final long BURST_NANOS = 100_000_000L;
+    private static final long MIN_BURST = 64 * 1024;
+
+    //字节/秒，0表示不限速
+    private volatile long rate;
+    //以下由this保护
+    private double tokens;
+    private long lastNanos = System.nanoTime();
+
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * @param bytesPerSecond 0或负数表示不限速。修改后正在等待的线程按新速率重新计算
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill(System.nanoTime());
+        rate = Math.max(0, bytesPerSecond);
+        if (rate == 0) {
+            tokens = 0;
+        } else {
+            tokens = Math.min(tokens, burst());
+        }
+        notifyAll();
+    }
+
+    public void charge(long byteCount) {
+        if (rate == 0) {
+            return;
+        }
+        synchronized (this) {
+            refill(System.nanoTime());
+            tokens -= byteCount;
+        }
+    }
+
+    /**
+     * @return 还清欠账还需的纳秒数，0表示可以继续传输
+     */
+    public long delayNanos() {
+        if (rate == 0) {
+            return 0;
+        }
+        synchronized (this) {
+            return computeDelay(System.nanoTime());
+        }
+    }
+
+    public void await() throws InterruptedException {
+        if (rate == 0) {
+            return;
+        }
+        synchronized (this) {
+            long delay;
+            while ((delay = computeDelay(System.nanoTime())) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, delay);
+            }
+        }
+    }
+
+    private long computeDelay(long now) {
+        long rate = this.rate;
+        if (rate == 0) {
+            return 0;
+        }
+        refill(now);
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-tokens * 1_000_000_000.0 / rate);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastNanos;
+        lastNanos = now;
+        if (rate != 0 && elapsed > 0) {
+            tokens = Math.min(burst(), tokens + elapsed * (double) rate / 1_000_000_000.0);
+        }
+    }
+
+    private double burst() {
+        return Math.max(MIN_BURST, rate * (double) BURST_NANOS / 1_000_000_000.0);
+    }
+}
@@ -1,47 +1,124 @@
 package top.weixiansen574.hybridfilexfer.core;
 
 import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
 
 import top.weixiansen574.hybridfilexfer.core.bean.TrafficInfo;
 import top.weixiansen574.nio.DataByteChannel;
 
 public class TransferConnection {
     public final String iName;
-    private TrafficInfo currentTraffic;
-    private TrafficInfo totalTraffic;
+    //I/O线程每次读写都会累加，不加锁
+    private final RateEstimator upload = new RateEstimator();
+    private final RateEstimator download = new RateEstimator();
+    //上次重置时的累计值，与当前累计值之差即为区间流量
+    private final AtomicLong currentUploadBase = new AtomicLong();
+    private final AtomicLong currentDownloadBase = new AtomicLong();
+    private final AtomicLong totalUploadBase = new AtomicLong();
+    private final AtomicLong totalDownloadBase = new AtomicLong();
     public final DataByteChannel channel;
+    //底层套接字，Selector引擎需要切换为非阻塞模式，为null时只能使用阻塞式引擎
+    public final SocketChannel socketChannel;
+    //本通道的限速，按名称共享
+    private final TokenBucket limit;
 
     public TransferConnection(String iName, DataByteChannel channel) throws IOException {
+        this(iName, channel, null);
+    }
+
+    public TransferConnection(String iName, SocketChannel socketChannel) throws IOException {
+        this(iName, new DataByteChannel(socketChannel), socketChannel);
+    }
+
+    private TransferConnection(String iName, DataByteChannel channel, SocketChannel socketChannel) {
         this.iName = iName;
         this.channel = channel;
-        currentTraffic = new TrafficInfo();
-        totalTraffic = new TrafficInfo();
+        this.socketChannel = socketChannel;
+        this.limit = BandwidthLimits.channel(iName);
     }
 
-    public synchronized void addUploadedBytes(long byteCount) {
-        currentTraffic.uploadTraffic += byteCount;
-        totalTraffic.uploadTraffic += byteCount;
+    public void addUploadedBytes(long byteCount) {
+        upload.add(byteCount);
     }
 
-    public synchronized void addDownloadedBytes(long byteCount) {
-        currentTraffic.downloadTraffic += byteCount;
-        totalTraffic.downloadTraffic += byteCount;
+    public void addDownloadedBytes(long byteCount) {
+        download.add(byteCount);
     }
 
-    public synchronized TrafficInfo resetCurrentTrafficInfo() {
-        TrafficInfo info = currentTraffic;
-        currentTraffic = new TrafficInfo(iName);
-        return info;
+    /**
+     * 阻塞式引擎每传完一个块调用：计入本通道与全局的令牌桶，超出限速时在此等待，
+     * 等待期间不持有任何块，块由其他通道取走
+     */
+    public void throttle(long byteCount) throws InterruptedException {
+        TokenBucket global = BandwidthLimits.global();
+        limit.charge(byteCount);
+        global.charge(byteCount);
+        limit.await();
+        global.await();
+    }
+
+    /**
+     * Selector引擎使用，计入令牌桶但不等待
+     *
+     * @return 需要暂停该通道的纳秒数，0表示无需暂停
+     */
+    public long charge(long byteCount) {
+        limit.charge(byteCount);
+        BandwidthLimits.global().charge(byteCount);
+        return throttleDelayNanos();
+    }
+
+    public long throttleDelayNanos() {
+        return Math.max(limit.delayNanos(), BandwidthLimits.global().delayNanos());
     }
 
-    public synchronized TrafficInfo resetTotalTrafficInfo() {
-        TrafficInfo info = totalTraffic;
-        totalTraffic = new TrafficInfo(iName);
+    /**
+     * 返回自上次调用以来的流量，并附带当前、平均与峰值速率
+     */
+    public TrafficInfo resetCurrentTrafficInfo() {
+        TrafficInfo info = takeDelta(currentUploadBase, currentDownloadBase);
+        info.uploadRate = upload.getCurrentRate();
+        info.uploadAverageRate = upload.getAverageRate();
+        info.uploadPeakRate = upload.getPeakRate();
+        info.downloadRate = download.getCurrentRate();
+        info.downloadAverageRate = download.getAverageRate();
+        info.downloadPeakRate = download.getPeakRate();
         return info;
     }
 
-    public synchronized TrafficInfo getTotalTraffic(){
-        return totalTraffic;
+    public TrafficInfo resetTotalTrafficInfo() {
+        return takeDelta(totalUploadBase, totalDownloadBase);
+    }
+
+    public TrafficInfo getTotalTraffic(){
+        return new TrafficInfo(iName,
+                upload.sum() - totalUploadBase.get(),
+                download.sum() - totalDownloadBase.get());
+    }
+
+    private TrafficInfo takeDelta(AtomicLong uploadBase, AtomicLong downloadBase) {
+        long uploaded = upload.sum();
+        long downloaded = download.sum();
+        return new TrafficInfo(iName,
+                uploaded - uploadBase.getAndSet(uploaded),
+                downloaded - downloadBase.getAndSet(downloaded));
+    }
+
+    /**
+     * 由监控线程定时调用，更新速率估算
+     */
+    public void sampleRates(long nowNanos) {
+        upload.sample(nowNanos);
+        download.sample(nowNanos);
+    }
+
+    /**
+     * 重新开始统计平均速率与峰值
+     */
+    public void restartRates(long nowNanos) {
+        upload.restart(nowNanos);
+        download.restart(nowNanos);
     }
 
     public void close() throws IOException {
@@ -9,4 +9,8 @@ public class TransferIdentifiers {
     public static final short END_OF_INTERRUPTED = 4;
     public static final short END_OF_READ_ERROR = 5;
     public static final short END_OF_WRITE_ERROR = 6;
+    //全零块，只有帧头没有数据（需协商 ProtocolFeatures.HOLES）
+    public static final short FILE_HOLE = 7;
+    //目录清单的一段（需协商 ProtocolFeatures.MANIFEST），在所有文件与文件夹帧之前
+    public static final short MANIFEST = 8;
 }
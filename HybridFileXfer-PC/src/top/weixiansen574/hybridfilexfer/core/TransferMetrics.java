@@ -0,0 +1,156 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * 进程级的传输指标：每个块在各阶段的耗时直方图，以及缓冲区块、队列深度等瞬时值，
+ * 用来判断慢的传输是卡在硬盘、链路还是写线程的重排队列上。
+ * <pre>
+ * 发送端：read（读硬盘） → send_wait（在队列中等待发送线程） → socket_write（写入套接字）
+ * 接收端：receive（从套接字读完数据） → reorder_wait（在WriteFileCall的重排队列中等待） → disk_write（写硬盘）
+ * </pre>
+ */
+public class TransferMetrics {
+    public static final int STAGE_READ = 0;
+    public static final int STAGE_SEND_WAIT = 1;
+    public static final int STAGE_SOCKET_WRITE = 2;
+    public static final int STAGE_RECEIVE = 3;
+    public static final int STAGE_REORDER_WAIT = 4;
+    public static final int STAGE_DISK_WRITE = 5;
+    private static final String[] STAGE_NAMES = {
+            "read", "send_wait", "socket_write", "receive", "reorder_wait", "disk_write"
+    };
+
+    private static final LatencyHistogram[] stages = new LatencyHistogram[STAGE_NAMES.length];
+    //已读取、等待发送线程取走的块数
+    static final AtomicLong sendQueueBlocks = new AtomicLong();
+    //已接收、在重排队列中等待写入的块数
+    static final AtomicLong reorderQueueBlocks = new AtomicLong();
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    //当前已连接会话的缓冲区块池，没有会话时为null
+    private static final AtomicReference<Collection<ByteBuffer>> bufferPool = new AtomicReference<>();
+
+    static {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+        registerGauge("hfx_send_queue_blocks", "Blocks read from disk and waiting for a send thread", sendQueueBlocks::get);
+        registerGauge("hfx_reorder_queue_blocks", "Blocks received and waiting in the write reorder queues", reorderQueueBlocks::get);
+        registerGauge("hfx_free_buffers", "Buffer blocks idle in the shared pool", () -> {
+            Collection<ByteBuffer> pool = bufferPool.get();
+            return pool != null ? pool.size() : 0;
+        });
+    }
+
+    private static class Gauge {
+        final String help;
+        final LongSupplier supplier;
+
+        Gauge(String help, LongSupplier supplier) {
+            this.help = help;
+            this.supplier = supplier;
+        }
+    }
+
+    public static void record(int stage, long nanos) {
+        stages[stage].record(nanos);
+    }
+
+    /**
+     * 记录从startNanos到现在的耗时
+     */
+    public static void recordSince(int stage, long startNanos) {
+        stages[stage].record(System.nanoTime() - startNanos);
+    }
+
+    static void onEnqueue(FileBlock block, AtomicLong depth) {
+        //特殊块（fileIndex为-1）是共享的常量，不参与统计
+        if (block.fileIndex != -1) {
+            block.enqueueNanos = System.nanoTime();
+            depth.incrementAndGet();
+        }
+    }
+
+    static void onDequeue(FileBlock block, int stage, AtomicLong depth) {
+        if (block.fileIndex != -1) {
+            recordSince(stage, block.enqueueNanos);
+            depth.decrementAndGet();
+        }
+    }
+
+    /**
+     * 块被丢弃（传输中断），不计入耗时
+     */
+    static void onDiscard(FileBlock block, AtomicLong depth) {
+        if (block.fileIndex != -1) {
+            depth.decrementAndGet();
+        }
+    }
+
+    /**
+     * hfx_free_buffers 统计的缓冲区块池，连接成功后设置
+     */
+    public static void setBufferPool(Collection<ByteBuffer> pool) {
+        bufferPool.set(pool);
+    }
+
+    /**
+     * 会话结束时调用，仍是该池时才撤下，不影响之后连接的会话
+     */
+    public static void clearBufferPool(Collection<ByteBuffer> pool) {
+        bufferPool.compareAndSet(pool, null);
+    }
+
+    /**
+     * 注册瞬时值，同名的会被替换
+     */
+    public static void registerGauge(String name, String help, LongSupplier supplier) {
+        gauges.put(name, new Gauge(help, supplier));
+    }
+
+    /**
+     * Prometheus文本格式
+     */
+    public static String toPrometheusText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# HELP hfx_block_stage_seconds Time each block spends in a transfer stage\n");
+        sb.append("# TYPE hfx_block_stage_seconds histogram\n");
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram histogram = stages[i];
+            String stage = STAGE_NAMES[i];
+            long cumulative = 0;
+            for (int b = 0; b < LatencyHistogram.BUCKETS - 1; b++) {
+                cumulative += histogram.getCount(b);
+                sb.append("hfx_block_stage_seconds_bucket{stage=\"").append(stage).append("\",le=\"")
+                        .append(formatDouble(LatencyHistogram.upperBoundSeconds(b))).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            cumulative += histogram.getCount(LatencyHistogram.BUCKETS - 1);
+            sb.append("hfx_block_stage_seconds_bucket{stage=\"").append(stage).append("\",le=\"+Inf\"} ")
+                    .append(cumulative).append('\n');
+            sb.append("hfx_block_stage_seconds_sum{stage=\"").append(stage).append("\"} ")
+                    .append(formatDouble(histogram.getSumSeconds())).append('\n');
+            sb.append("hfx_block_stage_seconds_count{stage=\"").append(stage).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            String name = entry.getKey();
+            Gauge gauge = entry.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(gauge.help).append('\n');
+            sb.append("# TYPE ").append(name).append(" gauge\n");
+            sb.append(name).append(' ').append(gauge.supplier.getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String formatDouble(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+}
@@ -0,0 +1,58 @@
+package top.weixiansen574.hybridfilexfer.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 一次传输任务的结构化并发作用域：所有读、写、收发、测速任务都从这里派生到共享执行器上，
+ * 传输结束或出错时统一取消（中断）仍在运行的子任务，而不是依赖特殊块逐个通知线程退出。
+ * <p>
+ * 特殊块（END_POINT/INTERRUPT 等）仍然保留，它们负责把结束原因写到线路上告诉对方。
+ */
+public class TransferScope {
+    private final ExecutorService executor;
+    private final List<Future<?>> futures = new ArrayList<>();
+    private volatile boolean canceled = false;
+
+    public TransferScope(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 派生一个子任务，运行期间线程名为 name（便于调试时分辨 UL_x/DL_x 等线程）
+     */
+    public synchronized <T> Future<T> fork(String name, Callable<T> task) {
+        Future<T> future = executor.submit(() -> {
+            Thread thread = Thread.currentThread();
+            String oldName = thread.getName();
+            thread.setName(name);
+            try {
+                return task.call();
+            } finally {
+                thread.setName(oldName);
+            }
+        });
+        futures.add(future);
+        if (canceled) {
+            future.cancel(true);
+        }
+        return future;
+    }
+
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * 取消作用域内所有尚未结束的子任务，阻塞在队列或通道上的线程会收到中断
+     */
+    public synchronized void cancel() {
+        canceled = true;
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
@@ -1,19 +1,52 @@
 package top.weixiansen574.hybridfilexfer.core;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import top.weixiansen574.hybridfilexfer.core.callback.TransferFileCallback;
 
 public abstract class WriteFileCall implements Callable<Void> {
+    //写完的文件直接关闭，由操作系统择机落盘（拔出U盘可能丢数据）
+    public static final int DURABILITY_NONE = 0;
+    //每个文件关闭前同步刷盘，最安全但小文件很慢
+    public static final int DURABILITY_PER_FILE = 1;
+    //交给 GroupCommitFlusher 在后台成批刷盘，传输结束前等待全部落盘
+    public static final int DURABILITY_GROUP_COMMIT = 2;
+    //默认的小文件上限，不超过此大小（且完整装在一个块里）的文件整个创建，见 setSmallFileWriters
+    public static final long SMALL_FILE_THRESHOLD = 256 * 1024;
+
     private final LinkedBlockingDeque<ByteBuffer> buffers;
     private final boolean[] channelFinished;
     private final ArrayList<LinkedList<FileBlock>> dequeArray;
     private boolean canceled = false;
+    //已打开过的文件序号。块按通道乱序到达，同一个文件可能被关闭后再次打开，只有第一次打开时才截断
+    private final BitSet openedFiles = new BitSet();
+    //空洞块无法依赖稀疏区域时用来写0
+    private ByteBuffer zeros;
+    private int durability = DURABILITY_NONE;
+    private GroupCommitFlusher flusher;
+    //对方会先发来目录清单时不为null
+    private DirectoryPrecreator precreator;
+    //目录树已按清单全部建好，写入时不再逐个创建文件夹
+    private boolean directoriesReady = false;
+    //不为null时以归档模式接收，整个目录树写进这一个tar文件
+    private File archive;
+    //不为null时完整装在一个块里、且不超过smallFileThreshold的文件交给它并行创建，否则由写线程整个创建。
+    //两种方式都不经过下面的顺序写入，不会关闭正在写的大文件（交替发送时大文件的各段之间插着这样的小文件）
+    private SmallFileWriters smallFileWriters;
+    private long smallFileThreshold;
+    //不为null时修改时间交给它延后成批设置，否则由写线程立即设置
+    private MetadataFinalizer finalizer;
+    //每归还一个缓冲区块调用一次（多路复用模式下据此向对方授予额度）
+    private volatile Runnable bufferListener;
 
     public WriteFileCall(LinkedBlockingDeque<ByteBuffer> buffers, int dequeCount) {
         this.buffers = buffers;
@@ -27,41 +60,81 @@ public abstract class WriteFileCall implements Callable<Void> {
     @Override
     public Void call() throws Exception {
         try {
+            if (archive != null) {
+                writeArchive();
+                return null;
+            }
+            if (precreator != null) {
+                directoriesReady = awaitDirectories();
+            }
             FileBlock block = takeBlock();
             FileBlock lastBlock = null;
             /*File lastFile = null;
             RandomAccessFile lastRaf = null;*/
             FileChannel lastChannel = null;
             long cursor = 0;
+            boolean truncated = false;
 
             while (block != null) {
                 if (block.isDirectory()) {
                     //File file = new File(block.path);
                     String file = block.path;
-                    tryMkdirs(file);
-                    setLastModified(file, block.lastModified);
+                    if (!directoriesReady) {
+                        tryMkdirs(file);
+                    }
+                    directoryDone(file, block.lastModified);
+                    block = takeBlock();
+                    continue;
+                }
+                if (isWholeSmallFile(block)) {
+                    openedFiles.set(block.fileIndex);
+                    //父目录必须在交给工作线程之前建好，文件夹的创建仍只在本线程进行
+                    if (!directoriesReady) {
+                        createParentDirIfNotExists(block.path);
+                    }
+                    if (smallFileWriters != null) {
+                        smallFileWriters.submit(block);
+                    } else {
+                        writeSmallFile(block);
+                    }
                     block = takeBlock();
                     continue;
                 }
-                //创建文件的父目录，如果不存在，保证后续文件能够创建
-                createParentDirIfNotExists(block.path);
                 //RandomAccessFile raf;
                 FileChannel channel;
                 //如果上个文件与当前
                 if (lastBlock == null || !lastBlock.path.equals(block.path)) {
                     if (lastChannel != null) {
-                        closeFile();
-                        setLastModified(lastBlock.path, lastBlock.lastModified);
+                        finishFile(lastChannel);
+                        fileDone(lastBlock.path, lastBlock.lastModified);
                     }
                     /*raf = new RandomAccessFile(file, "rw");
                     raf.setLength(block.totalSize);
                     channel = raf.getChannel();*/
-                    channel = createAndOpenFile(block.path, block.totalSize);
+                    truncated = !openedFiles.get(block.fileIndex);
+                    openedFiles.set(block.fileIndex);
+                    //创建文件的父目录，如果不存在，保证后续文件能够创建（已按清单建好时跳过）
+                    if (!directoriesReady) {
+                        createParentDirIfNotExists(block.path);
+                    }
+                    channel = createAndOpenFile(block.path, block.totalSize, truncated);
                     cursor = 0;
                 } else {
                     //raf = lastRaf;
                     channel = lastChannel;
                 }
+                if (block.isHole()) {
+                    lastBlock = block;
+                    lastChannel = channel;
+                    //截断后扩展出的区域读出为0，空洞块无需写入，保持稀疏；
+                    //否则文件可能残留旧内容，只能老老实实写0。
+                    //写0用的是指定位置的写入，不移动通道的位置，所以cursor保持不变
+                    if (!truncated) {
+                        writeZeros(channel, block.getStartPosition(), block.holeLength);
+                    }
+                    block = takeBlock();
+                    continue;
+                }
                 //如果上个指针与当前指针不不一致就进行seek操作
                 if (cursor != block.getStartPosition()) {
                     cursor = block.getStartPosition();
@@ -74,10 +147,12 @@ public abstract class WriteFileCall implements Callable<Void> {
 
                 ByteBuffer data = block.data;
                 data.flip();
-                channel.write(data);
+                long writeStart = System.nanoTime();
+                writeData(channel, data);
+                TransferMetrics.recordSince(TransferMetrics.STAGE_DISK_WRITE, writeStart);
                 cursor += data.position();
                 //回收缓冲区块
-                buffers.add(block.data);
+                releaseBuffer(block.data);
                 lastBlock = block;
                 /*lastFile = file;
                 lastRaf = raf;*/
@@ -85,16 +160,247 @@ public abstract class WriteFileCall implements Callable<Void> {
                 block = takeBlock();
             }
             if (lastBlock != null) {
-                closeFile();
-                setLastModified(lastBlock.path, lastBlock.lastModified);
+                finishFile(lastChannel);
+                fileDone(lastBlock.path, lastBlock.lastModified);
+            }
+            //并行创建的小文件全部写完（交给刷盘线程）后才能等待落盘；
+            //工作线程出错时会取消本任务，写线程正是因此退出循环的，错误在这里抛出
+            if (smallFileWriters != null) {
+                smallFileWriters.await();
+            }
+            //所有文件都写完了，文件夹的修改时间不会再变
+            if (finalizer != null && !canceled) {
+                finalizer.finish();
+            }
+            //全部落盘后才返回，调用方随后才会向对方报告完成
+            if (flusher != null && !canceled) {
+                flusher.awaitDurable();
             }
         } catch (IOException e){
             cancel();
             throw e;
+        } finally {
+            if (smallFileWriters != null) {
+                //取消或出错时丢弃排队的小文件，并等正在写的写完，调用方随后可能归还缓冲区块
+                smallFileWriters.cancel();
+            }
+            if (finalizer != null) {
+                finalizer.cancel();
+            }
+            if (flusher != null) {
+                //取消或出错时也要让刷盘线程处理完已提交的文件后退出
+                flusher.finish();
+            }
         }
         return null;
     }
 
+    private void writeArchive() throws Exception {
+        TarArchiveSink sink = new TarArchiveSink(archive);
+        try {
+            FileBlock block;
+            while ((block = takeBlock()) != null) {
+                if (block.isDirectory()) {
+                    sink.putDirectory(block.path, block.lastModified);
+                    continue;
+                }
+                if (block.data == null) {
+                    //空洞块只需预留空间
+                    sink.putBlock(block);
+                    continue;
+                }
+                block.data.flip();
+                long writeStart = System.nanoTime();
+                try {
+                    sink.putBlock(block);
+                } finally {
+                    releaseBuffer(block.data);
+                }
+                TransferMetrics.recordSince(TransferMetrics.STAGE_DISK_WRITE, writeStart);
+            }
+            if (!isCanceled()) {
+                sink.finish(durability != DURABILITY_NONE);
+            }
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * 文件只有这一块（长度不足一块的文件，块数见 {@link FileBlock#calcBlockCount()}），且数据已完整到达
+     */
+    private boolean isWholeSmallFile(FileBlock block) {
+        return block.index == 0 && !block.isHole() && block.totalSize < FileBlock.BLOCK_SIZE
+                && block.totalSize <= smallFileThreshold && block.getLength() == block.totalSize;
+    }
+
+    /**
+     * 由 {@link SmallFileWriters} 的工作线程（没有工作线程时由写线程）调用，一次写完整个文件并回收缓冲区块
+     */
+    void writeSmallFile(FileBlock block) throws Exception {
+        ByteBuffer data = block.data;
+        FileChannel channel;
+        try {
+            channel = createWholeFile(block.path);
+            try {
+                data.flip();
+                long writeStart = System.nanoTime();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                TransferMetrics.recordSince(TransferMetrics.STAGE_DISK_WRITE, writeStart);
+            } catch (Exception e) {
+                channel.close();
+                throw e;
+            }
+        } finally {
+            releaseBuffer(data);
+        }
+        switch (durability) {
+            case DURABILITY_PER_FILE:
+                try {
+                    channel.force(true);
+                } finally {
+                    channel.close();
+                }
+                break;
+            case DURABILITY_GROUP_COMMIT:
+                flusher.add(channel);
+                break;
+            default:
+                channel.close();
+                break;
+        }
+        fileDone(block.path, block.lastModified);
+    }
+
+    private void fileDone(String path, long lastModified) throws Exception {
+        if (finalizer != null) {
+            finalizer.addFile(path, lastModified);
+        } else {
+            setLastModified(path, lastModified);
+        }
+    }
+
+    private void directoryDone(String path, long lastModified) throws Exception {
+        if (finalizer != null) {
+            finalizer.addDirectory(path, lastModified);
+        } else {
+            setLastModified(path, lastModified);
+        }
+    }
+
+    private void finishFile(FileChannel channel) throws Exception {
+        switch (durability) {
+            case DURABILITY_PER_FILE:
+                channel.force(true);
+                closeFile();
+                break;
+            case DURABILITY_GROUP_COMMIT:
+                //关闭文件的通道即关闭文件本身，由刷盘线程负责
+                flusher.add(channel);
+                break;
+            default:
+                closeFile();
+                break;
+        }
+    }
+
+    /**
+     * @param flusher 组提交模式下负责刷盘的任务，需由调用方运行
+     */
+    public void setDurability(int durability, GroupCommitFlusher flusher) {
+        this.durability = durability;
+        this.flusher = flusher;
+    }
+
+    /**
+     * 不超过threshold的小文件（只有一块且数据已完整到达）交给最多workerCount个线程并行创建，
+     * 写线程不再为每个小文件依次等待创建、关闭、设置修改时间；workerCount为0时仍由写线程逐个创建
+     *
+     * @param executor 用于运行工作线程
+     */
+    public void setSmallFileWriters(Executor executor, int workerCount, long threshold) {
+        smallFileWriters = workerCount > 0 ? new SmallFileWriters(this, executor, workerCount) : null;
+        smallFileThreshold = threshold;
+    }
+
+    /**
+     * 修改时间不再由写线程逐个设置：文件的成批在后台设置，文件夹的在所有文件写完后按深度从深到浅设置，
+     * 见 {@link MetadataFinalizer}。传输结束前会等待全部设置完
+     *
+     * @param executor 用于运行设置修改时间的线程
+     */
+    public void deferMetadata(Executor executor) {
+        finalizer = new MetadataFinalizer(this, executor);
+    }
+
+    /**
+     * 以归档模式接收：不创建任何文件与文件夹，整个目录树按tar格式写进archive，
+     * 旁边生成同名加.idx的索引，见 {@link TarArchiveSink}
+     */
+    public void setArchive(File archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * 对方会在文件数据之前发来目录清单（已协商 ProtocolFeatures.MANIFEST），
+     * 写线程开始写入前等待清单中的目录全部建好
+     *
+     * @param executor 用于并行创建目录
+     */
+    public void expectManifest(ExecutorService executor) {
+        precreator = new DirectoryPrecreator(this, executor);
+    }
+
+    /**
+     * 传输通道收到一段目录清单
+     *
+     * @param total 清单总段数，不是最后一段时为0
+     */
+    public void putManifest(int total, byte[] data) throws IOException {
+        if (archive != null) {
+            //归档模式不在硬盘上建目录，目录条目随文件夹块写入归档
+            return;
+        }
+        if (precreator == null) {
+            throw new IOException("Unexpected manifest");
+        }
+        precreator.onChunk(total, data);
+    }
+
+    synchronized void onDirectoriesCreated() {
+        notify();
+    }
+
+    synchronized boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * @return 目录是否全部按清单建好；为false时退回写入时逐个创建
+     */
+    private synchronized boolean awaitDirectories() throws InterruptedException {
+        while (!precreator.isDone()) {
+            //所有通道都结束了清单仍不完整（对方中途断开），不再等待
+            if (canceled || (allChannelsFinished() && !precreator.isComplete())) {
+                return false;
+            }
+            wait();
+        }
+        return precreator.isSucceeded();
+    }
+
+    private void writeZeros(FileChannel channel, long position, int length) throws IOException {
+        if (zeros == null) {
+            zeros = ByteBuffer.allocateDirect(FileBlock.BLOCK_SIZE);
+        }
+        zeros.clear().limit(length);
+        while (zeros.hasRemaining()) {
+            channel.write(zeros, position + zeros.position());
+        }
+    }
+
     private void logSeek(FileBlock block) {
         System.out.printf("seek: %d %s %d %d %d%n",
                 block.getStartPosition(), block.path, block.totalSize, block.index, block.getLength());
@@ -109,6 +415,27 @@ public abstract class WriteFileCall implements Callable<Void> {
         return buffers.take();
     }
 
+    //非阻塞获取，缓冲区块暂时用尽时返回null
+    public ByteBuffer pollBuffer() {
+        return buffers.poll();
+    }
+
+    public void recycleBuffer(ByteBuffer buffer) {
+        releaseBuffer(buffer);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffers.add(buffer);
+        Runnable listener = bufferListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    public void setBufferListener(Runnable bufferListener) {
+        this.bufferListener = bufferListener;
+    }
+
     // 新增方法：标记通道结束
     public synchronized void finishChannel(int tIndex) {
         channelFinished[tIndex] = true;
@@ -117,13 +444,15 @@ public abstract class WriteFileCall implements Callable<Void> {
 
     public synchronized void cancel(){
         canceled = true;
-        //回收未写入硬盘的块的ByteBuffer
+        //回收未写入硬盘的块的ByteBuffer，并清空队列，避免写线程再取出这些已回收的块
         for (LinkedList<FileBlock> deque : dequeArray) {
             for (FileBlock fileBlock : deque) {
                 if (fileBlock.data != null){
-                    buffers.add(fileBlock.data);
+                    releaseBuffer(fileBlock.data);
                 }
+                TransferMetrics.onDiscard(fileBlock, TransferMetrics.reorderQueueBlocks);
             }
+            deque.clear();
         }
         notify();
     }
@@ -131,6 +460,14 @@ public abstract class WriteFileCall implements Callable<Void> {
     // 修改后的putBlock（保持原有逻辑）
     public synchronized void putBlock(FileBlock block, int tIndex) {
         //System.out.println("put:"+block.index+" "+tIndex);
+        if (canceled) {
+            //已取消（写入出错或对方中断），后续到达的块直接回收，否则这些ByteBuffer就丢了
+            if (block.data != null) {
+                releaseBuffer(block.data);
+            }
+            return;
+        }
+        TransferMetrics.onEnqueue(block, TransferMetrics.reorderQueueBlocks);
         dequeArray.get(tIndex).add(block);
         notify();  // 唤醒可能阻塞的写线程
     }
@@ -168,6 +505,7 @@ public abstract class WriteFileCall implements Callable<Void> {
         }
         if (minHead != null) {
             dequeArray.get(mdqIndex).removeFirst();
+            TransferMetrics.onDequeue(minHead, TransferMetrics.STAGE_REORDER_WAIT, TransferMetrics.reorderQueueBlocks);
         }
         return minHead;
     }
@@ -187,6 +525,10 @@ public abstract class WriteFileCall implements Callable<Void> {
         return true;
     }
 
+    void applyLastModified(String file, long time) throws Exception {
+        setLastModified(file, time);
+    }
+
     private void setLastModified(String file, long time) throws Exception {
         if (!setFileLastModified(file,time)) {
             System.out.println("Warning! file cannot set last modified:" + file);
@@ -195,7 +537,38 @@ public abstract class WriteFileCall implements Callable<Void> {
 
     protected abstract void createParentDirIfNotExists(String path) throws Exception;
     protected abstract void tryMkdirs(String path) throws Exception;
-    protected abstract FileChannel createAndOpenFile(String path,long length) throws Exception;
+    /**
+     * 创建或打开文件并设置为length长度
+     *
+     * @param truncate 本次传输中第一次打开该文件，需丢弃已存在文件的原有内容（未写入的区域要读出为0）；
+     *                 为false时是同一文件被再次打开，必须保留已写入的内容
+     */
+    protected abstract FileChannel createAndOpenFile(String path, long length, boolean truncate) throws Exception;
     protected abstract void closeFile() throws Exception;
+
+    /**
+     * 创建（已存在时截断为空）文件并打开，由多个小文件工作线程同时调用，实现中不能使用共享的状态。
+     * 返回的通道由调用方关闭，关闭通道必须同时关闭文件本身
+     */
+    protected FileChannel createWholeFile(String path) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return file.getChannel();
+    }
+
+    /**
+     * 在文件当前位置写出data的全部内容，写完后data.position()为写入的长度，文件位置紧随其后。
+     * 平台实现可覆盖（例如直接IO需要对齐写入长度）
+     */
+    protected void writeData(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
     protected abstract boolean setFileLastModified(String path,long time) throws Exception;
 }
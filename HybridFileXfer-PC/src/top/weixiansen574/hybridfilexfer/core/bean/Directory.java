@@ -3,9 +3,6 @@ package top.weixiansen574.hybridfilexfer.core.bean;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Pattern;
 
 //声明：大部分代码由ChatGPT生成
 
@@ -91,7 +88,7 @@ public class Directory {
      * <ol>
      *   <li>根据本地系统类型确定本地分隔符，远程系统确定远程分隔符。</li>
      *   <li>计算文件相对于本地文件夹（this.path）的相对路径。</li>
-     *   <li>将相对路径按本地分隔符拆分成各个段，然后对每个段中的非法字符（[\\ : * ? " < > |]）替换为下划线 "_"。</li>
+     *   <li>将相对路径按本地分隔符拆分成各个段（跳过空段），然后对每个段中的非法字符（[\\ : * ? " < > |]）替换为下划线 "_"。</li>
      *   <li>最后将远程文件夹（remote.path）与替换后的相对路径段用远程分隔符拼接生成结果。</li>
      * </ol>
      *
@@ -105,50 +102,8 @@ public class Directory {
      * @return 生成的远程文件绝对路径
      */
     public String generateTransferPath(String file, Directory remote) {
-        // 根据本地系统类型确定分隔符
-        String localSep = (this.fileSystem == FILE_SYSTEM_UNIX) ? "/" : "\\";
-        String remoteSep = (remote.fileSystem == FILE_SYSTEM_UNIX) ? "/" : "\\";
-
-        // 规范化输入文件路径（注意：Linux允许 "\" 为普通字符，不替换）
-        String normalizedFile;
-        if (this.fileSystem == FILE_SYSTEM_UNIX) {
-            normalizedFile = file;
-        } else {
-            normalizedFile = file.replace("/", localSep);
-        }
-
-        // 计算相对于本地目录的相对路径
-        String localFolder = this.path; // 已经规范化且以localSep结尾
-        String relativePath;
-        if (normalizedFile.startsWith(localFolder)) {
-            relativePath = normalizedFile.substring(localFolder.length());
-        } else {
-            // 如果 file 不以本地目录开头，则去掉前导分隔符（如果有）
-            if (normalizedFile.startsWith(localSep)) {
-                relativePath = normalizedFile.substring(1);
-            } else {
-                relativePath = normalizedFile;
-            }
-        }
-
-        // 将相对路径按本地分隔符拆分成各个段（注意Linux下只用 "/" 拆分）
-        String[] segments = relativePath.split(Pattern.quote(localSep));
-        List<String> sanitizedSegments = new ArrayList<>();
-        // 对每个段替换非法字符：\ : * ? " < > |
-        for (String seg : segments) {
-            if (seg.isEmpty()) continue;
-            String sanitized = seg.replaceAll("[\\\\:*?\"<>|]", "_");
-            sanitizedSegments.add(sanitized);
-        }
-        // 用远程系统的分隔符拼接
-        String sanitizedRelative = String.join(remoteSep, sanitizedSegments);
-
-        // 组合远程文件夹与经过非法字符替换后的相对路径，注意 remote.path 已规范化（结尾包含分隔符）
-        if (sanitizedRelative.isEmpty()) {
-            return remote.path;
-        } else {
-            return remote.path + sanitizedRelative;
-        }
+        // 批量转换（同一文件夹下的大量文件）请直接使用 TransferPathTranslator，可复用文件夹的转换结果
+        return new TransferPathTranslator(this, remote).translate(file);
     }
 
     public static int getCurrentFileSystem(){
@@ -4,6 +4,13 @@ public class TrafficInfo  {
     public String iName;
     public long uploadTraffic;
     public long downloadTraffic;
+    //速率，单位 字节/秒：当前（EWMA）、本次传输的平均值与峰值
+    public double uploadRate;
+    public double uploadAverageRate;
+    public double uploadPeakRate;
+    public double downloadRate;
+    public double downloadAverageRate;
+    public double downloadPeakRate;
 
     public TrafficInfo(String iName, long uploadTraffic, long downloadTraffic) {
         this.iName = iName;
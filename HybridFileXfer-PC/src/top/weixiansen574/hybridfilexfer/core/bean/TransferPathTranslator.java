@@ -0,0 +1,130 @@
+package top.weixiansen574.hybridfilexfer.core.bean;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 把本地文件的绝对路径转换为传输到远程系统后的绝对路径，规则见 {@link Directory#generateTransferPath}。
+ * <p>
+ * 一次传输中的文件集中在少数文件夹下，所以文件夹部分转换一次后缓存起来（最近使用的 {@link #MAX_CACHED_FOLDERS} 个），
+ * 之后同一文件夹下的文件只需处理文件名。非法字符用查表替换，不使用正则。
+ * 非线程安全，每个读取任务使用自己的实例。
+ */
+public class TransferPathTranslator {
+    private static final int MAX_CACHED_FOLDERS = 1024;
+    //需要替换为下划线的字符：\ : * ? " < > |
+    private static final boolean[] ILLEGAL_CHARS = new boolean[128];
+
+    static {
+        for (char c : "\\:*?\"<>|".toCharArray()) {
+            ILLEGAL_CHARS[c] = true;
+        }
+    }
+
+    private final boolean localWindows;
+    private final char localSep;
+    private final String localFolder;
+    private final char remoteSep;
+    private final String remotePath;
+    //本地相对文件夹 → 转换后的远程文件夹（以远程分隔符结尾）
+    private final LinkedHashMap<String, String> folderCache = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_FOLDERS;
+        }
+    };
+
+    public TransferPathTranslator(Directory local, Directory remote) {
+        localWindows = local.fileSystem == Directory.FILE_SYSTEM_WINDOWS;
+        localSep = localWindows ? '\\' : '/';
+        localFolder = local.path;
+        remoteSep = remote.fileSystem == Directory.FILE_SYSTEM_WINDOWS ? '\\' : '/';
+        remotePath = remote.path;
+    }
+
+    public String translate(String file) {
+        //Linux允许"\"为普通字符，不替换
+        String normalizedFile = localWindows ? file.replace('/', '\\') : file;
+
+        // 计算相对于本地目录的相对路径
+        String relativePath;
+        if (normalizedFile.startsWith(localFolder)) {
+            relativePath = normalizedFile.substring(localFolder.length());
+        } else if (!normalizedFile.isEmpty() && normalizedFile.charAt(0) == localSep) {
+            relativePath = normalizedFile.substring(1);
+        } else {
+            relativePath = normalizedFile;
+        }
+
+        int lastSep = relativePath.lastIndexOf(localSep);
+        String folder;
+        String name;
+        if (lastSep < 0) {
+            folder = remotePath;
+            name = relativePath;
+        } else {
+            String localRelativeFolder = relativePath.substring(0, lastSep);
+            folder = folderCache.get(localRelativeFolder);
+            if (folder == null) {
+                folder = translateFolder(localRelativeFolder);
+                folderCache.put(localRelativeFolder, folder);
+            }
+            name = relativePath.substring(lastSep + 1);
+        }
+
+        if (!name.isEmpty()) {
+            return folder.concat(sanitize(name));
+        }
+        //以分隔符结尾（或为空）的路径，结果不带末尾分隔符，除非就是远程文件夹本身
+        if (folder.length() > remotePath.length()) {
+            return folder.substring(0, folder.length() - 1);
+        }
+        return remotePath;
+    }
+
+    //逐段替换非法字符后用远程分隔符拼接，跳过空段，结果以远程分隔符结尾（没有任何段时为远程文件夹本身）
+    private String translateFolder(String localRelativeFolder) {
+        StringBuilder sb = new StringBuilder(remotePath.length() + localRelativeFolder.length() + 1);
+        sb.append(remotePath);
+        int length = localRelativeFolder.length();
+        int start = 0;
+        while (start <= length) {
+            int end = localRelativeFolder.indexOf(localSep, start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                for (int i = start; i < end; i++) {
+                    sb.append(sanitize(localRelativeFolder.charAt(i)));
+                }
+                sb.append(remoteSep);
+            }
+            start = end + 1;
+        }
+        return sb.toString();
+    }
+
+    private static char sanitize(char c) {
+        return c < ILLEGAL_CHARS.length && ILLEGAL_CHARS[c] ? '_' : c;
+    }
+
+    /**
+     * 替换单个文件（夹）名中的非法字符，没有非法字符时返回原字符串
+     */
+    public static String sanitize(String name) {
+        int length = name.length();
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (sanitize(c) != c) {
+                char[] chars = name.toCharArray();
+                for (int j = i; j < length; j++) {
+                    chars[j] = sanitize(chars[j]);
+                }
+                return new String(chars);
+            }
+        }
+        return name;
+    }
+}
@@ -1,7 +1,16 @@
 package top.weixiansen574.hybridfilexfer.core.callback;
 
+import java.util.List;
+
 public interface ClientCallBack extends TransferFileCallback {
     void onReceiving();
     void onSending();
     void onExit();
+
+    /**
+     * 已与对方交换密钥，控制通道与encryptedChannels中的传输通道已加密
+     *
+     * @param verificationCode 与对方显示的校验码一致时说明没有中间人；要求加密而对方不支持（或未协商出加密）时为null，随后断开连接
+     */
+    void onChannelsSecured(String verificationCode, List<String> encryptedChannels);
 }
@@ -0,0 +1,124 @@
+package top.weixiansen574.hybridfilexfer.jdkcore;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * 直接IO（绕过操作系统页缓存）的辅助方法。
+ * <p>
+ * ExtendedOpenOption.DIRECT 需要JDK10，ByteBuffer.alignedSlice/alignmentOffset 需要JDK9，
+ * 源码保持Java 8级别，所以都通过反射获取；运行在旧JDK上时 {@link #isSupported()} 为false。
+ * 直接IO要求缓冲区地址、文件位置与读写长度都按块对齐，这里统一按4096字节对齐（兼容512字节扇区的设备）。
+ */
+public class DirectIO {
+    public static final int ALIGNMENT = 4096;
+
+    private static final OpenOption DIRECT;
+    private static final Method ALIGNED_SLICE;
+    private static final Method ALIGNMENT_OFFSET;
+    private static final Method GET_BLOCK_SIZE;
+
+    static {
+        OpenOption direct = null;
+        Method alignedSlice = null;
+        Method alignmentOffset = null;
+        Method getBlockSize = null;
+        try {
+            Class<?> clazz = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            direct = (OpenOption) clazz.getField("DIRECT").get(null);
+            alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+            alignmentOffset = ByteBuffer.class.getMethod("alignmentOffset", int.class, int.class);
+            getBlockSize = FileStore.class.getMethod("getBlockSize");
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            direct = null;
+        }
+        DIRECT = direct;
+        ALIGNED_SLICE = alignedSlice;
+        ALIGNMENT_OFFSET = alignmentOffset;
+        GET_BLOCK_SIZE = getBlockSize;
+    }
+
+    public static boolean isSupported() {
+        return DIRECT != null;
+    }
+
+    /**
+     * 以直接IO打开文件，不支持时返回null，由调用方改用普通方式打开。
+     * 文件系统的块大小大于 {@link #ALIGNMENT}（例如ZFS）时缓冲区块无法满足对齐要求，同样视为不支持
+     */
+    public static FileChannel open(Path path, OpenOption option) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            FileStore store = Files.getFileStore(path);
+            long blockSize = (long) GET_BLOCK_SIZE.invoke(store);
+            if (blockSize <= 0 || blockSize > ALIGNMENT || ALIGNMENT % blockSize != 0) {
+                return null;
+            }
+            return FileChannel.open(path, option, DIRECT);
+        } catch (UnsupportedOperationException | IOException | ReflectiveOperationException e) {
+            //所在文件系统不支持直接IO（例如tmpfs）
+            return null;
+        }
+    }
+
+    /**
+     * 分配起始地址按 {@link #ALIGNMENT} 对齐、容量恰好为size的直接缓冲区（多占用一个对齐单位的内存），
+     * 不支持时退化为普通的直接缓冲区
+     */
+    public static ByteBuffer allocateAligned(int size) {
+        if (!isSupported()) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(size + ALIGNMENT);
+            ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE.invoke(buffer, ALIGNMENT);
+            aligned.limit(size);
+            return aligned.slice();
+        } catch (ReflectiveOperationException e) {
+            return ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    public static boolean isAligned(ByteBuffer buffer) {
+        if (!isSupported() || !buffer.isDirect()) {
+            return false;
+        }
+        try {
+            return (int) ALIGNMENT_OFFSET.invoke(buffer, 0, ALIGNMENT) == 0;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 缓冲区块池中的所有缓冲区都对齐时才能使用直接IO
+     */
+    public static boolean allAligned(Collection<ByteBuffer> buffers) {
+        if (!isSupported() || buffers.isEmpty()) {
+            return false;
+        }
+        for (ByteBuffer buffer : buffers) {
+            if (!isAligned(buffer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static int alignUp(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    public static boolean isAligned(long value) {
+        return (value & (ALIGNMENT - 1)) == 0;
+    }
+}
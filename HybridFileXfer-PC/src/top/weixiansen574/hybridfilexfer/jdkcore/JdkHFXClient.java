@@ -2,17 +2,29 @@ package top.weixiansen574.hybridfilexfer.jdkcore;
 
 import top.weixiansen574.hybridfilexfer.core.HFXClient;
 import top.weixiansen574.hybridfilexfer.core.ReadFileCall;
+import top.weixiansen574.hybridfilexfer.core.RequestProgress;
 import top.weixiansen574.hybridfilexfer.core.Utils;
 import top.weixiansen574.hybridfilexfer.core.WriteFileCall;
 import top.weixiansen574.hybridfilexfer.core.bean.Directory;
 import top.weixiansen574.hybridfilexfer.core.bean.RemoteFile;
 
 import java.io.File;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingDeque;
 
 public class JdkHFXClient extends HFXClient {
+    //不小于此大小的文件使用直接IO读写，避免大文件占满系统页缓存，0为不使用
+    private long directIoThreshold = 0;
 
     public JdkHFXClient(String serverControllerAddress, int serverPort, String homeDir) {
         super(serverControllerAddress, serverPort, homeDir);
@@ -20,7 +32,12 @@ public class JdkHFXClient extends HFXClient {
 
     @Override
     public ByteBuffer createBuffer(int size) {
-        return ByteBuffer.allocateDirect(size);
+        //按块对齐，直接IO可以直接使用缓冲区块
+        return DirectIO.allocateAligned(size);
+    }
+
+    public void setDirectIoThreshold(long directIoThreshold) {
+        this.directIoThreshold = directIoThreshold;
     }
 
     @Override
@@ -29,25 +46,34 @@ public class JdkHFXClient extends HFXClient {
     }
 
     @Override
-    protected boolean deleteLocalFile(String path) throws Exception {
-        File file = new File(path);
-        if (!file.exists()) {
+    protected ExecutorService createExecutor() {
+        //JDK21及以上（例如随桌面端附带的dragonwell-21）使用虚拟线程：传输任务仍然是简单的阻塞式通道IO，
+        //但每次传输派生线程几乎没有开销。源码保持Java 8级别，所以通过反射调用
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return super.createExecutor();
+        }
+    }
+
+    @Override
+    protected boolean deleteLocalFile(String path, RequestProgress progress) throws Exception {
+        Path file = Paths.get(path);
+        if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
             System.out.println("文件或目录不存在: " + path);
             return false;
         }
-
-        // 如果是目录，递归删除
-        if (file.isDirectory()) {
-            File[] files = file.listFiles();
-            if (files != null) { // 检查是否为空
-                for (File subFile : files) {
-                    deleteLocalFile(subFile.getAbsolutePath());
-                }
-            }
+        if (!Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+            return new ParallelDeleteTask.DeleteFilesTask(Collections.singletonList(file), progress).compute();
+        }
+        //删除是IO密集的，线程数多于CPU核数才能让存储设备的队列保持繁忙
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors() * 2);
+        try {
+            return pool.invoke(new ParallelDeleteTask(file, progress));
+        } finally {
+            pool.shutdown();
         }
-
-        // 删除文件或空目录
-        return file.delete();
     }
 
     @Override
@@ -62,11 +88,11 @@ public class JdkHFXClient extends HFXClient {
 
     @Override
     protected WriteFileCall createWriteFileCall(LinkedBlockingDeque<ByteBuffer> buffers, int dequeCount) {
-        return new JdkWriteFileCall(buffers,dequeCount);
+        return new JdkWriteFileCall(buffers, dequeCount, directIoThreshold);
     }
 
     @Override
     protected ReadFileCall createReadFileCall(LinkedBlockingDeque<ByteBuffer> buffers, List<RemoteFile> files, Directory localDir, Directory remoteDir, int operateThreadCount) {
-        return new JdkReadFileCall(buffers,files,localDir,remoteDir,operateThreadCount);
+        return new JdkReadFileCall(buffers, files, localDir, remoteDir, operateThreadCount, directIoThreshold);
     }
 }
@@ -5,19 +5,32 @@ import top.weixiansen574.hybridfilexfer.core.Utils;
 import top.weixiansen574.hybridfilexfer.core.bean.Directory;
 import top.weixiansen574.hybridfilexfer.core.bean.RemoteFile;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingDeque;
 
 public class JdkReadFileCall extends ReadFileCall {
     private RandomAccessFile randomAccessFile;
     private FileChannel channel;
+    //不小于此大小的文件使用直接IO读取，0为不使用
+    private final long directIoThreshold;
+    //当前文件是否以直接IO打开
+    private boolean direct;
 
     public JdkReadFileCall(LinkedBlockingDeque<ByteBuffer> buffers, List<RemoteFile> files, Directory localDir, Directory remoteDir, int operateThreadCount) {
+        this(buffers, files, localDir, remoteDir, operateThreadCount, 0);
+    }
+
+    public JdkReadFileCall(LinkedBlockingDeque<ByteBuffer> buffers, List<RemoteFile> files, Directory localDir, Directory remoteDir, int operateThreadCount, long directIoThreshold) {
         super(buffers, files, localDir, remoteDir, operateThreadCount);
+        this.directIoThreshold = directIoThreshold > 0 && DirectIO.allAligned(buffers) ? directIoThreshold : 0;
     }
 
     @Override
@@ -32,14 +45,45 @@ public class JdkReadFileCall extends ReadFileCall {
 
     @Override
     protected FileChannel openFile(String path) throws Exception {
+        direct = false;
+        if (directIoThreshold > 0 && new File(path).length() >= directIoThreshold) {
+            FileChannel directChannel = DirectIO.open(Paths.get(path), StandardOpenOption.READ);
+            //不支持时改用普通方式
+            if (directChannel != null) {
+                channel = directChannel;
+                randomAccessFile = null;
+                direct = true;
+                return channel;
+            }
+        }
         randomAccessFile = new RandomAccessFile(path, "r");
         channel = randomAccessFile.getChannel();
         return channel;
     }
 
+    @Override
+    protected void readBlock(FileChannel channel, ByteBuffer buffer) throws IOException {
+        if (!direct) {
+            super.readBlock(channel, buffer);
+            return;
+        }
+        //直接IO的读取长度必须对齐，文件末尾不足对齐长度的块按对齐长度读取，实际只会读到文件末尾
+        int length = buffer.limit();
+        buffer.limit(DirectIO.alignUp(length));
+        while (buffer.position() < length) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException();
+            }
+        }
+        buffer.limit(length);
+        buffer.position(length);
+    }
+
     @Override
     protected void closeFile() throws Exception {
         channel.close();
-        randomAccessFile.close();
+        if (randomAccessFile != null) {
+            randomAccessFile.close();
+        }
     }
 }
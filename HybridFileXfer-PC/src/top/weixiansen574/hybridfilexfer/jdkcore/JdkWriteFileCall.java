@@ -7,14 +7,25 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.LinkedBlockingDeque;
 
 public class JdkWriteFileCall extends WriteFileCall {
     private RandomAccessFile file;
     private FileChannel channel;
+    //不小于此大小的文件使用直接IO写入，0为不使用
+    private final long directIoThreshold;
+    //当前文件是否以直接IO打开
+    private boolean direct;
 
     public JdkWriteFileCall(LinkedBlockingDeque<ByteBuffer> buffers, int dequeCount) {
+        this(buffers, dequeCount, 0);
+    }
+
+    public JdkWriteFileCall(LinkedBlockingDeque<ByteBuffer> buffers, int dequeCount, long directIoThreshold) {
         super(buffers, dequeCount);
+        this.directIoThreshold = directIoThreshold > 0 && DirectIO.allAligned(buffers) ? directIoThreshold : 0;
     }
 
     @Override
@@ -34,17 +45,62 @@ public class JdkWriteFileCall extends WriteFileCall {
     }
 
     @Override
-    protected FileChannel createAndOpenFile(String path, long length) throws Exception {
+    protected FileChannel createAndOpenFile(String path, long length, boolean truncate) throws Exception {
         file = new RandomAccessFile(path, "rw");
+        if (truncate) {
+            //先截断再扩展：覆盖已存在的文件时丢弃旧内容，扩展出的区域是稀疏的空洞
+            file.setLength(0);
+        }
         file.setLength(length);
+        direct = false;
+        //再次打开的文件可能需要写0（见WriteFileCall.writeZeros），只对第一次打开的大文件使用直接IO
+        if (truncate && directIoThreshold > 0 && length >= directIoThreshold) {
+            FileChannel directChannel = DirectIO.open(Paths.get(path), StandardOpenOption.WRITE);
+            //不支持时改用普通方式
+            if (directChannel != null) {
+                file.close();
+                file = null;
+                channel = directChannel;
+                direct = true;
+                return channel;
+            }
+        }
         channel = file.getChannel();
         return channel;
     }
 
+    @Override
+    protected FileChannel createWholeFile(String path) throws Exception {
+        //打开时即截断（O_TRUNC），省去单独的一次设置长度
+        return FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    protected void writeData(FileChannel channel, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (!direct || DirectIO.isAligned(length)) {
+            super.writeData(channel, data);
+            return;
+        }
+        //只有文件的最后一块长度不对齐：按对齐长度写出（尾部多写的是缓冲区残留数据），再截断回文件真实长度
+        long position = channel.position();
+        data.limit(DirectIO.alignUp(data.limit()));
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        channel.truncate(position + length);
+        channel.position(position + length);
+        data.limit(length);
+        data.position(length);
+    }
+
     @Override
     protected void closeFile() throws Exception {
         channel.close();
-        file.close();
+        if (file != null) {
+            file.close();
+        }
     }
 
     @Override
@@ -0,0 +1,106 @@
+package top.weixiansen574.hybridfilexfer.jdkcore;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+import top.weixiansen574.hybridfilexfer.core.RequestProgress;
+
+/**
+ * 并行删除一个目录：子目录各自派生任务，目录内的文件按批派生任务并发删除，
+ * 全部完成后再删除目录本身（自底向上）。符号链接只删除链接本身，不会跟随进入。
+ * <p>
+ * 某个条目删除失败时继续删除其余条目，最终返回该目录是否已被删除。
+ */
+class ParallelDeleteTask extends RecursiveTask<Boolean> {
+    private static final long serialVersionUID = 1L;
+    //每个删除文件的任务处理的文件数
+    private static final int FILE_BATCH_SIZE = 256;
+
+    private final Path dir;
+    private final RequestProgress progress;
+
+    ParallelDeleteTask(Path dir, RequestProgress progress) {
+        this.dir = dir;
+        this.progress = progress;
+    }
+
+    @Override
+    protected Boolean compute() {
+        List<RecursiveTask<Boolean>> tasks = new ArrayList<>();
+        List<Path> files = new ArrayList<>(FILE_BATCH_SIZE);
+        boolean success = true;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    tasks.add(fork(new ParallelDeleteTask(path, progress)));
+                } else {
+                    files.add(path);
+                    if (files.size() == FILE_BATCH_SIZE) {
+                        tasks.add(fork(new DeleteFilesTask(files, progress)));
+                        files = new ArrayList<>(FILE_BATCH_SIZE);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            success = false;
+        }
+        //剩余不足一批的文件在当前线程删除
+        if (!files.isEmpty() && !new DeleteFilesTask(files, progress).compute()) {
+            success = false;
+        }
+        for (RecursiveTask<Boolean> task : tasks) {
+            if (!task.join()) {
+                success = false;
+            }
+        }
+        if (!success) {
+            return false;
+        }
+        try {
+            Files.delete(dir);
+            progress.add(1, 0);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static RecursiveTask<Boolean> fork(RecursiveTask<Boolean> task) {
+        task.fork();
+        return task;
+    }
+
+    static class DeleteFilesTask extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> files;
+        private final RequestProgress progress;
+
+        DeleteFilesTask(List<Path> files, RequestProgress progress) {
+            this.files = files;
+            this.progress = progress;
+        }
+
+        @Override
+        protected Boolean compute() {
+            boolean success = true;
+            for (Path file : files) {
+                try {
+                    long size = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).size();
+                    Files.delete(file);
+                    progress.add(1, size);
+                } catch (IOException e) {
+                    success = false;
+                }
+            }
+            return success;
+        }
+    }
+}
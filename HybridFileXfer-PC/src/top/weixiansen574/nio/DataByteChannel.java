@@ -6,11 +6,14 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.charset.StandardCharsets;
 
 public class DataByteChannel implements ByteChannel, DataInput, DataOutput {
     private final ByteChannel origin;
+    //读写各用一个临时缓冲区，控制通道可能一个线程读取的同时另一个线程写入
     private final ByteBuffer buffer = ByteBuffer.allocate(8);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(8);
 
     public DataByteChannel(ByteChannel origin) {
         this.origin = origin;
@@ -26,6 +29,27 @@ public class DataByteChannel implements ByteChannel, DataInput, DataOutput {
         return origin.write(src);
     }
 
+    /**
+     * 聚集写，帧头与数据一次系统调用写出；阻塞模式下保证全部写完
+     */
+    public long write(ByteBuffer[] srcs) throws IOException {
+        long written = 0;
+        ByteBuffer last = srcs[srcs.length - 1];
+        if (origin instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) origin;
+            do {
+                written += gathering.write(srcs);
+            } while (last.hasRemaining());
+            return written;
+        }
+        for (ByteBuffer src : srcs) {
+            while (src.hasRemaining()) {
+                written += origin.write(src);
+            }
+        }
+        return written;
+    }
+
     @Override
     public boolean isOpen() {
         return origin.isOpen();
@@ -157,18 +181,18 @@ public class DataByteChannel implements ByteChannel, DataInput, DataOutput {
 
     @Override
     public void writeByte(int v) throws IOException {
-        buffer.clear();
-        buffer.put((byte) v);
-        buffer.flip();
-        origin.write(buffer);
+        writeBuffer.clear();
+        writeBuffer.put((byte) v);
+        writeBuffer.flip();
+        origin.write(writeBuffer);
     }
 
     @Override
     public void writeShort(int v) throws IOException {
-        buffer.clear();
-        buffer.putShort((short) v);
-        buffer.flip();
-        origin.write(buffer);
+        writeBuffer.clear();
+        writeBuffer.putShort((short) v);
+        writeBuffer.flip();
+        origin.write(writeBuffer);
     }
 
     @Override
@@ -178,18 +202,18 @@ public class DataByteChannel implements ByteChannel, DataInput, DataOutput {
 
     @Override
     public void writeInt(int v) throws IOException {
-        buffer.clear();
-        buffer.putInt(v);
-        buffer.flip();
-        origin.write(buffer);
+        writeBuffer.clear();
+        writeBuffer.putInt(v);
+        writeBuffer.flip();
+        origin.write(writeBuffer);
     }
 
     @Override
     public void writeLong(long v) throws IOException {
-        buffer.clear();
-        buffer.putLong(v);
-        buffer.flip();
-        origin.write(buffer);
+        writeBuffer.clear();
+        writeBuffer.putLong(v);
+        writeBuffer.flip();
+        origin.write(writeBuffer);
     }
 
     @Override
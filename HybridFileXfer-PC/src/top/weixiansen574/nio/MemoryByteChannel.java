@@ -0,0 +1,59 @@
+package top.weixiansen574.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+/**
+ * 写入内存的通道，配合 {@link DataByteChannel} 先在内存中拼好一条完整消息，再一次性写到真正的通道上
+ */
+public class MemoryByteChannel implements ByteChannel {
+    private ByteBuffer buffer;
+    private boolean open = true;
+
+    public MemoryByteChannel(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        throw new UnsupportedOperationException("MemoryByteChannel is write-only");
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (buffer.remaining() < length) {
+            int capacity = Math.max(buffer.capacity() * 2, buffer.position() + length);
+            ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+        buffer.put(src);
+        return length;
+    }
+
+    /**
+     * 已写入的内容（只读视图，position为0）
+     */
+    public ByteBuffer content() {
+        ByteBuffer content = buffer.duplicate();
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    public int size() {
+        return buffer.position();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+}
@@ -0,0 +1,306 @@
+package top.weixiansen574.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * 以AES-GCM加密的通道，包装在原通道与 {@link DataByteChannel} 之间，对上层完全透明。
+ * <p>
+ * 每次写入（聚集写时帧头与数据一起）封装成一条记录：
+ * <pre>
+ * | 明文长度 int | 第0段密文 | 标签 16B | 第1段密文 | 标签 16B | ... |
+ * </pre>
+ * 明文按 {@link #SEGMENT_SIZE} 分段，每段单独加密、单独认证，可以交给多个线程同时处理，
+ * 一个1MB的文件块在多核上并行加解密，加密的通道不会因单核算力成为瓶颈。
+ * 随机数为 记录序号(8字节)+段号(4字节)，两端各自计数不必传输，记录被重放、调换或截断都无法通过认证；
+ * 明文长度作为附加认证数据。每个方向必须使用不同的密钥。
+ * <p>
+ * 只能用于阻塞模式的通道。读与写可以在两个线程中同时进行，同一方向不能并发。
+ */
+public class SecureByteChannel implements ByteChannel, GatheringByteChannel {
+    public static final int TAG_LENGTH = 16;
+    //分段大小，也是并行加解密的粒度
+    public static final int SEGMENT_SIZE = 128 * 1024;
+    private static final int SEGMENT_STRIDE = SEGMENT_SIZE + TAG_LENGTH;
+    //Cipher不是线程安全的，每个线程一个，切换密钥与随机数只需重新init
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final ByteChannel origin;
+    private final SecretKey sendKey;
+    private final SecretKey receiveKey;
+    private final int maxRecord;
+    //为null时在调用线程中加解密
+    private final Executor executor;
+    private final Object writeLock = new Object();
+    private final Object readLock = new Object();
+    private long sendSequence;
+    private long receiveSequence;
+    //写：长度+各段密文与标签；读：各段密文与标签。按需增长，控制通道只会用到很小的一段
+    private byte[] out = new byte[0];
+    private byte[] in = new byte[0];
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+    //已解密但上层尚未读走的明文
+    private ByteBuffer plain = ByteBuffer.allocate(0);
+
+    /**
+     * @param maxRecord 单条记录的明文上限，更长的写入拆成多条记录；收到超过此长度的记录视为协议错误
+     * @param executor  并行加解密各段的线程池，为null时不并行
+     */
+    public SecureByteChannel(ByteChannel origin, SecretKey sendKey, SecretKey receiveKey, int maxRecord, Executor executor) {
+        this.origin = origin;
+        this.sendKey = sendKey;
+        this.receiveKey = receiveKey;
+        this.maxRecord = maxRecord;
+        this.executor = executor;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            long total = 0;
+            int index = offset;
+            int end = offset + length;
+            while (true) {
+                //跳过已写完的缓冲区，剩余的全部为空时结束
+                while (index < end && !srcs[index].hasRemaining()) {
+                    index++;
+                }
+                if (index == end) {
+                    return total;
+                }
+                total += writeRecord(srcs, index, end);
+            }
+        }
+    }
+
+    private int writeRecord(ByteBuffer[] srcs, int index, int end) throws IOException {
+        long remaining = 0;
+        for (int i = index; i < end; i++) {
+            remaining += srcs[i].remaining();
+        }
+        int length = (int) Math.min(remaining, maxRecord);
+        int segments = segmentCount(length);
+        int size = 4 + length + segments * TAG_LENGTH;
+        if (out.length < size) {
+            out = new byte[size];
+        }
+        ByteBuffer record = ByteBuffer.wrap(out, 0, size);
+        record.putInt(length);
+        //明文按段复制到各段的位置，段与段之间留出标签的空间，之后原地加密
+        int copied = 0;
+        for (int i = index; i < end && copied < length; i++) {
+            ByteBuffer src = srcs[i];
+            while (src.hasRemaining() && copied < length) {
+                int inSegment = copied % SEGMENT_SIZE;
+                int count = Math.min(Math.min(src.remaining(), SEGMENT_SIZE - inSegment), length - copied);
+                record.position(4 + copied / SEGMENT_SIZE * SEGMENT_STRIDE + inSegment);
+                ByteBuffer slice = src.duplicate();
+                slice.limit(slice.position() + count);
+                record.put(slice);
+                src.position(src.position() + count);
+                copied += count;
+            }
+        }
+        run(new Job(Cipher.ENCRYPT_MODE, sendKey, sendSequence++, length, out, 4, out, 4));
+        record.clear().limit(size);
+        while (record.hasRemaining()) {
+            origin.write(record);
+        }
+        return length;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            if (!plain.hasRemaining()) {
+                if (!readRecord()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(plain.remaining(), dst.remaining());
+            ByteBuffer slice = plain.duplicate();
+            slice.limit(slice.position() + count);
+            dst.put(slice);
+            plain.position(plain.position() + count);
+            return count;
+        }
+    }
+
+    /**
+     * @return false表示对方在记录边界处关闭了通道
+     */
+    private boolean readRecord() throws IOException {
+        lengthBuffer.clear();
+        while (lengthBuffer.hasRemaining()) {
+            if (origin.read(lengthBuffer) == -1) {
+                if (lengthBuffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException();
+            }
+        }
+        int length = lengthBuffer.getInt(0);
+        if (length <= 0 || length > maxRecord) {
+            throw new IOException("Invalid record length: " + length);
+        }
+        int size = length + segmentCount(length) * TAG_LENGTH;
+        if (in.length < size) {
+            in = new byte[size];
+        }
+        ByteBuffer record = ByteBuffer.wrap(in, 0, size);
+        while (record.hasRemaining()) {
+            if (origin.read(record) == -1) {
+                throw new EOFException();
+            }
+        }
+        if (plain.capacity() < length) {
+            plain = ByteBuffer.allocate(length);
+        }
+        run(new Job(Cipher.DECRYPT_MODE, receiveKey, receiveSequence++, length, in, 0, plain.array(), 0));
+        plain.clear().limit(length);
+        return true;
+    }
+
+    private void run(Job job) throws IOException {
+        if (executor != null) {
+            //调用线程自己也取段处理，线程池忙时不会干等
+            try {
+                for (int i = 1; i < job.segments; i++) {
+                    executor.execute(job);
+                }
+            } catch (RejectedExecutionException e) {
+                //线程池已关闭，剩下的段由调用线程处理
+            }
+        }
+        job.run();
+        job.await();
+    }
+
+    private static int segmentCount(int length) {
+        return (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+    }
+
+    /**
+     * 一条记录的加密或解密，各线程从next领取段号，最后完成的一段唤醒调用线程
+     */
+    private static class Job implements Runnable {
+        final int mode;
+        final SecretKey key;
+        final long sequence;
+        final int length;
+        final int segments;
+        final byte[] input;
+        final int inputOffset;
+        final byte[] output;
+        final int outputOffset;
+        final byte[] aad;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger remaining;
+        volatile GeneralSecurityException failure;
+
+        Job(int mode, SecretKey key, long sequence, int length, byte[] input, int inputOffset, byte[] output, int outputOffset) {
+            this.mode = mode;
+            this.key = key;
+            this.sequence = sequence;
+            this.length = length;
+            this.segments = segmentCount(length);
+            this.input = input;
+            this.inputOffset = inputOffset;
+            this.output = output;
+            this.outputOffset = outputOffset;
+            this.aad = ByteBuffer.allocate(4).putInt(length).array();
+            this.remaining = new AtomicInteger(segments);
+        }
+
+        @Override
+        public void run() {
+            int segment;
+            while ((segment = next.getAndIncrement()) < segments) {
+                try {
+                    crypt(segment);
+                } catch (GeneralSecurityException e) {
+                    failure = e;
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        private void crypt(int segment) throws GeneralSecurityException {
+            int plainLength = Math.min(SEGMENT_SIZE, length - segment * SEGMENT_SIZE);
+            byte[] nonce = ByteBuffer.allocate(12).putLong(sequence).putInt(segment).array();
+            Cipher cipher = CIPHERS.get();
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(aad);
+            if (mode == Cipher.ENCRYPT_MODE) {
+                //原地加密，标签写在该段密文之后预留的位置
+                int offset = inputOffset + segment * SEGMENT_STRIDE;
+                cipher.doFinal(input, offset, plainLength, output, outputOffset + segment * SEGMENT_STRIDE);
+            } else {
+                cipher.doFinal(input, inputOffset + segment * SEGMENT_STRIDE, plainLength + TAG_LENGTH,
+                        output, outputOffset + segment * SEGMENT_SIZE);
+            }
+        }
+
+        synchronized void await() throws IOException {
+            boolean interrupted = false;
+            while (remaining.get() > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    //其他线程正在使用本通道的缓冲区，必须等它们处理完
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure instanceof AEADBadTagException) {
+                throw new IOException("Record authentication failed", failure);
+            } else if (failure != null) {
+                throw new IOException(failure);
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return origin.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        origin.close();
+    }
+}
@@ -6,11 +6,13 @@
 // ==================== 配置常量 ====================
 const CONFIG = {
   API_URL: 'http://localhost:5741/transfers',
+  EVENTS_URL: 'http://localhost:5741/events', // 实时推送(SSE)，不可用时退回定时轮询
   DB_NAME: 'FileTransferHistoryDB',
   DB_VERSION: 1,
   STORE_NAME: 'transfers',
   REFRESH_INTERVAL: 1000, // 数据刷新间隔(ms)
-  HISTORY_SAVE_INTERVAL: 3000 // 历史记录保存间隔(ms)
+  HISTORY_URL: 'http://localhost:5741/history', // 服务端历史记录
+  HISTORY_PAGE_SIZE: 200 // 每次加载的历史记录条数
 };
 
 // 文件类型分类映射表
@@ -46,6 +48,7 @@ let currentData = null; // 当前传输数据
 let refreshInterval = null; // 数据刷新定时器
 let historySaveInterval = null; // 历史记录保存定时器
 let speedInterval = null;//速度
+let eventSource = null; // 实时推送连接
 // ==================== DOM 元素缓存 ====================
 const DOM = {
   foldersContainer: document.getElementById('folders-container'),
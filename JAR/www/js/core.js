@@ -260,7 +260,8 @@ function updateFileItem(fileItem, file) {
   const fileName = file.path.split('/').pop();
   const currentProgress = parseFloat(fileItem.querySelector('.file-progress-bar').style.width);
   
-  // 获取当前显示的文件大小
+  // 获取当前显示的状态与文件大小
+  const currentStatus = fileItem.querySelector('.file-status')?.textContent.trim().split(' ')[0];
   const currentSizeText = fileItem.querySelector('.file-size').textContent;
   const [currentSizeDisplay, totalSizeDisplay] = currentSizeText.split(' / ');
   
@@ -302,8 +303,12 @@ function updateFileItem(fileItem, file) {
   if (currentStatus !== statusText.split(' ')[0] || 
       Math.abs(currentProgress - file.progress) > 1 ||
       newSizeText !== currentSizeText) {
-    // 更新状态显示
+    // 更新状态显示（已完成的文件重新传输时没有状态元素，重建整个文件项）
     const statusSpan = fileItem.querySelector('.file-status');
+    if (!statusSpan) {
+      fileItem.replaceWith(createFileItem(file));
+      return;
+    }
     statusSpan.className = `file-status status-${statusClass}`;
     statusSpan.textContent = `${statusText} (${file.progress.toFixed(2)}%)`;
     
@@ -1,74 +1,67 @@
 // ==================== 历史记录功能 ====================
 
+let historyRecords = []; // 已加载的历史记录（按完成时间从新到旧）
+let historyHasMore = false; // 服务端是否还有更早的记录
+let historyRequestId = 0; // 丢弃过期请求的响应
+let historySearchTimer = null;
+
 /**
- * 保存已完成的历史记录到IndexedDB
+ * 根据筛选条件构建历史记录查询参数
+ * @param {number} [before] - 只查询id小于该值的记录（翻页）
+ * @returns {URLSearchParams|null} 查询参数，筛选条件不可能有结果时返回null
  */
-function saveCompletedTransfers() {
-  if (!currentData?.transfers || !db) return;
-  
-  const transaction = db.transaction([CONFIG.STORE_NAME], 'readwrite');
-  const store = transaction.objectStore(CONFIG.STORE_NAME);
-  
-  currentData.transfers.forEach(transfer => {
-    transfer.files.forEach(file => {
-      if (file.progress === 100) {
-        const fileName = file.path.split('/').pop();
-        const fileExt = fileName.split('.').pop().toLowerCase();
-        
-        store.index('fileName').get(fileName).onsuccess = e => {
-          if (!e.target.result) {
-            const record = createHistoryRecord(file, transfer.folder, fileName, fileExt);
-            store.add(record).onsuccess = () => console.log('历史记录已保存:', fileName);
-          }
-        };
-      }
-    });
-  });
+function buildHistoryQuery(before) {
+  const {
+    historyType: typeFilter,
+    historyStatus: statusFilter,
+    historyFileType: fileTypeFilter,
+    historySearch: searchFilter,
+    date: dateFilter
+  } = DOM.filters;
+
+  // 服务端只记录已完成的文件
+  if (statusFilter.value === 'failed') return null;
+
+  const params = new URLSearchParams({ limit: CONFIG.HISTORY_PAGE_SIZE });
+  if (before !== undefined) params.set('before', before);
+  if (typeFilter.value !== 'all') params.set('type', typeFilter.value);
+  if (fileTypeFilter.value !== 'all') params.set('category', fileTypeFilter.value);
+  if (searchFilter.value) params.set('q', searchFilter.value);
+  if (dateFilter.value) {
+    // 按本地日期筛选
+    const [year, month, day] = dateFilter.value.split('-').map(Number);
+    const from = new Date(year, month - 1, day);
+    const to = new Date(year, month - 1, day + 1);
+    params.set('from', from.getTime());
+    params.set('to', to.getTime() - 1);
+  }
+  return params;
 }
 
 /**
- * 创建历史记录对象
- * @param {Object} file - 文件对象
- * @param {string} folderPath - 文件夹路径
- * @param {string} fileName - 文件名
- * @param {string} fileExt - 文件扩展名
- * @returns {Object} 历史记录对象
+ * 从服务端获取一页历史记录
+ * @param {number} [before] - 翻页位置
+ * @returns {Promise<{records: Array, hasMore: boolean}>}
  */
-function createHistoryRecord(file, folderPath, fileName, fileExt) {
-  const now = new Date();
-  return {
-    fileName,
-    path: file.path,
-    folderPath,
-    type: file.type,
-    size: file.currentSize,  // 确保这里已经是byte单位
-    status: 'completed',
-    startTime: now.getTime() - Math.round(file.currentSize * 10),
-    endTime: now.getTime(),
-    fileType: fileExt,
-    fileTypeCategory: getFileTypeCategory(fileExt),
-    progress: 100,
-    currentSize: file.currentSize  // 确保这里已经是byte单位
-  };
+async function fetchHistoryPage(before) {
+  const params = buildHistoryQuery(before);
+  if (!params) return { records: [], hasMore: false };
+  const response = await fetch(`${CONFIG.HISTORY_URL}?${params}`);
+  if (!response.ok) throw new Error(`HTTP error! status: ${response.status}`);
+  return response.json();
 }
 
 /**
- * 加载并渲染历史记录
+ * 加载并渲染历史记录（重新从第一页开始）
  */
 async function loadHistory() {
-  if (!db) {
-    console.error('数据库未初始化');
-    return;
-  }
-  
+  const requestId = ++historyRequestId;
   try {
-    const historyData = await getAllHistoryRecords();
-    console.log('原始历史数据:', historyData); // 调试
-    
-    const filteredData = filterHistoryData(historyData);
-    console.log('筛选后历史数据:', filteredData); // 调试
-    
-    renderHistory(filteredData);
+    const page = await fetchHistoryPage();
+    if (requestId !== historyRequestId) return;
+    historyRecords = page.records;
+    historyHasMore = page.hasMore;
+    renderHistory(historyRecords);
   } catch (error) {
     console.error('加载历史记录失败:', error);
     DOM.historyFoldersContainer.innerHTML = '<div class="empty-folder">加载历史记录失败</div>';
@@ -76,61 +69,28 @@ async function loadHistory() {
 }
 
 /**
- * 从数据库获取所有历史记录
- * @returns {Promise<Array>} 历史记录数组
+ * 加载下一页历史记录
  */
-function getAllHistoryRecords() {
-  return new Promise((resolve, reject) => {
-    const transaction = db.transaction([CONFIG.STORE_NAME], 'readonly');
-    const store = transaction.objectStore(CONFIG.STORE_NAME);
-    const request = store.getAll();
-    
-    request.onsuccess = () => resolve(request.result);
-    request.onerror = () => reject(request.error);
-  });
+async function loadMoreHistory() {
+  if (!historyHasMore || !historyRecords.length) return;
+  const requestId = ++historyRequestId;
+  try {
+    const page = await fetchHistoryPage(historyRecords[historyRecords.length - 1].id);
+    if (requestId !== historyRequestId) return;
+    historyRecords = historyRecords.concat(page.records);
+    historyHasMore = page.hasMore;
+    renderHistory(historyRecords);
+  } catch (error) {
+    console.error('加载历史记录失败:', error);
+  }
 }
 
 /**
- * 筛选历史记录数据
- * @param {Array} historyData - 原始历史数据
- * @returns {Array} 筛选后的历史数据
+ * 搜索框输入时延迟加载，避免每个字符都请求一次
  */
-function filterHistoryData(historyData) {
-  const {
-    historyType: typeFilter,
-    historyStatus: statusFilter,
-    historyFileType: fileTypeFilter,
-    historySearch: searchFilter,
-    date: dateFilter
-  } = DOM.filters;
-  
-  let filtered = [...historyData];
-  
-  if (typeFilter.value !== 'all') {
-    filtered = filtered.filter(item => item.type === typeFilter.value);
-  }
-  
-  if (statusFilter.value !== 'all') {
-    filtered = filtered.filter(item => item.status === statusFilter.value);
-  }
-  
-  if (fileTypeFilter.value !== 'all') {
-    filtered = filtered.filter(item => item.fileTypeCategory === fileTypeFilter.value);
-  }
-  
-  if (searchFilter.value) {
-    const search = searchFilter.value.toLowerCase();
-    filtered = filtered.filter(item => item.fileName.toLowerCase().includes(search));
-  }
-  
-  if (dateFilter.value) {
-    const filterDate = new Date(dateFilter.value);
-    filtered = filtered.filter(item => {
-      return new Date(item.endTime).toDateString() === filterDate.toDateString();
-    });
-  }
-  
-  return filtered.sort((a, b) => b.endTime - a.endTime);
+function loadHistoryDebounced() {
+  clearTimeout(historySearchTimer);
+  historySearchTimer = setTimeout(loadHistory, 300);
 }
 
 /**
@@ -159,6 +119,15 @@ function renderHistory(historyData) {
     // 移除默认展开第一个文件夹的逻辑
     // 所有文件夹初始状态为折叠
   });
+
+  // 还有更早的记录时显示加载按钮
+  if (historyHasMore) {
+    const loadMoreBtn = document.createElement('button');
+    loadMoreBtn.className = 'open-folder-btn';
+    loadMoreBtn.textContent = '加载更多';
+    loadMoreBtn.addEventListener('click', loadMoreHistory);
+    DOM.historyFoldersContainer.appendChild(loadMoreBtn);
+  }
 }
 
 /**
@@ -242,7 +211,7 @@ function createHistoryFolderElement(folderPath, files) {
     // 构建文件项HTML
     let fileItemHTML = `
       <div class="checkbox-container">
-        <input type="checkbox" class="file-checkbox" data-path="${file.path}">
+        <input type="checkbox" class="file-checkbox" data-path="${file.path}" data-id="${file.id}">
       </div>
       <span class="file-icon">${fileIcon}</span>
       <div class="file-info">
@@ -272,30 +241,6 @@ function createHistoryFolderElement(folderPath, files) {
   return folderElement;
 }
 
-/**
- * 清空历史记录
- */
-async function clearHistory() {
-  if (!db || !confirm('确定要清空所有历史记录吗？此操作不可恢复！')) return;
-  
-  try {
-    await new Promise((resolve, reject) => {
-      const transaction = db.transaction([CONFIG.STORE_NAME], 'readwrite');
-      const store = transaction.objectStore(CONFIG.STORE_NAME);
-      const request = store.clear();
-      
-      request.onsuccess = () => resolve();
-      request.onerror = () => reject(request.error);
-    });
-    
-    console.log('历史记录已清空');
-    DOM.historyFoldersContainer.innerHTML = '<div class="empty-folder">没有历史记录</div>';
-  } catch (error) {
-    console.error('清空历史记录失败:', error);
-    alert('清空历史记录失败！');
-  }
-}
-
 // ==================== 其他功能 ====================
 
 /**
@@ -354,14 +299,6 @@ function setupRefreshInterval() {
   refreshInterval = setInterval(fetchData, CONFIG.REFRESH_INTERVAL);
 }
 
-/**
- * 设置历史记录保存定时器
- */
-function setupHistorySaveInterval() {
-  clearInterval(historySaveInterval);
-  historySaveInterval = setInterval(saveCompletedTransfers, CONFIG.HISTORY_SAVE_INTERVAL);
-}
-
 // 添加新函数
 function openAndroidFile(filePath) {
     // 获取文件扩展名
@@ -14,9 +14,8 @@ document.addEventListener('DOMContentLoaded', () => {
       setupEventListeners();
       // 初始获取数据
       fetchData();
-      // 设置定时器
-      setupRefreshInterval();
-      setupHistorySaveInterval();
+      // 订阅实时推送，不支持时使用定时刷新
+      setupLiveUpdates();
     })
     .catch(error => console.error('数据库初始化失败:', error));
 });
@@ -48,7 +47,7 @@ function setupEventListeners() {
   DOM.filters.historyType.addEventListener('change', loadHistory);
   DOM.filters.historyStatus.addEventListener('change', loadHistory);
   DOM.filters.historyFileType.addEventListener('change', loadHistory);
-  DOM.filters.historySearch.addEventListener('input', loadHistory);
+  DOM.filters.historySearch.addEventListener('input', loadHistoryDebounced);
   DOM.filters.date.addEventListener('change', loadHistory);
   
   // 清空历史记录按钮
@@ -101,8 +100,6 @@ function toggleSelectAll() {
  * 删除选中的文件和文件夹
  */
 async function deleteSelectedFiles() {
-  if (!db) return;
-  
   // 获取所有选中的文件路径
   const selectedFiles = Array.from(document.querySelectorAll('.file-checkbox:checked'))
     .map(checkbox => checkbox.dataset.path);
@@ -134,8 +131,14 @@ async function deleteSelectedFiles() {
       console.warn('aardio.deletefile 调用失败:', error);
     }
 
-    // 从数据库删除记录
-    await deleteRecordsFromDB(selectedFiles, selectedFolders);
+    // 从服务端删除记录（选中文件夹时其下所有文件的记录一并删除）
+    const selectedIds = new Set();
+    document.querySelectorAll('.file-checkbox:checked').forEach(checkbox => selectedIds.add(checkbox.dataset.id));
+    document.querySelectorAll('.folder-checkbox:checked').forEach(checkbox => {
+      const folderElement = document.getElementById(`history-folder-${encodeFolderId(checkbox.dataset.path)}`);
+      folderElement?.querySelectorAll('.file-checkbox').forEach(fileCheckbox => selectedIds.add(fileCheckbox.dataset.id));
+    });
+    await deleteHistoryRecords(Array.from(selectedIds));
     
     // 重新加载历史记录
     loadHistory();
@@ -151,49 +154,16 @@ async function deleteSelectedFiles() {
 }
 
 /**
- * 从数据库删除选中的记录
- * @param {Array} filePaths - 文件路径数组
- * @param {Array} folderPaths - 文件夹路径数组
+ * 从服务端历史记录中删除
+ * @param {Array} ids - 记录id数组
  */
-function deleteRecordsFromDB(filePaths, folderPaths) {
-  return new Promise((resolve, reject) => {
-    const transaction = db.transaction([CONFIG.STORE_NAME], 'readwrite');
-    const store = transaction.objectStore(CONFIG.STORE_NAME);
-    
-    // 删除选中的文件 - 改为直接使用主键查询
-    filePaths.forEach(path => {
-      const fileName = path.split('/').pop();
-      const request = store.openCursor();
-      
-      request.onsuccess = e => {
-        const cursor = e.target.result;
-        if (cursor) {
-          if (cursor.value.fileName === fileName) {
-            store.delete(cursor.primaryKey);
-          }
-          cursor.continue();
-        }
-      };
-    });
-    
-    // 删除选中的文件夹下的所有文件
-    folderPaths.forEach(folderPath => {
-      const request = store.openCursor();
-      
-      request.onsuccess = e => {
-        const cursor = e.target.result;
-        if (cursor) {
-          if (cursor.value.folderPath === folderPath) {
-            store.delete(cursor.primaryKey);
-          }
-          cursor.continue();
-        }
-      };
-    });
-    
-    transaction.oncomplete = () => resolve();
-    transaction.onerror = () => reject(transaction.error);
+async function deleteHistoryRecords(ids) {
+  if (!ids.length) return;
+  const response = await fetch(`${CONFIG.HISTORY_URL}/delete`, {
+    method: 'POST',
+    body: ids.join(',')
   });
+  if (!response.ok) throw new Error(`HTTP error! status: ${response.status}`);
 }
 
 // 在文件末尾添加主题相关函数
@@ -0,0 +1,86 @@
+// ==================== 实时推送 ====================
+
+let pendingDeltas = new Map(); // 等待渲染的文件变化，按路径合并
+let renderScheduled = false;
+
+/**
+ * 订阅服务端推送(SSE)，连接断开期间退回定时轮询
+ */
+function setupLiveUpdates() {
+  if (!window.EventSource) {
+    setupRefreshInterval();
+    return;
+  }
+
+  eventSource = new EventSource(CONFIG.EVENTS_URL);
+
+  eventSource.onopen = () => {
+    // 推送已连接，停止轮询
+    clearInterval(refreshInterval);
+    refreshInterval = null;
+  };
+
+  eventSource.onerror = () => {
+    // EventSource 会自动重连，重连成功前先用轮询顶上
+    if (!refreshInterval) setupRefreshInterval();
+  };
+
+  // 连接（或重连）时服务端先发送完整快照
+  eventSource.addEventListener('snapshot', e => {
+    currentData = JSON.parse(e.data);
+    processData(currentData);
+    updateLastUpdated();
+  });
+
+  ['file-added', 'file-progress', 'file-completed'].forEach(name => {
+    eventSource.addEventListener(name, e => queueFileDelta(JSON.parse(e.data)));
+  });
+}
+
+/**
+ * 合并文件变化，每帧最多渲染一次
+ * @param {Object} file - 文件状态（包含所在文件夹）
+ */
+function queueFileDelta(file) {
+  pendingDeltas.set(file.path, file);
+  if (renderScheduled) return;
+  renderScheduled = true;
+  requestAnimationFrame(flushFileDeltas);
+}
+
+/**
+ * 将积压的变化合入 currentData 并增量渲染
+ */
+function flushFileDeltas() {
+  renderScheduled = false;
+  const deltas = pendingDeltas;
+  pendingDeltas = new Map();
+
+  if (!currentData?.transfers) currentData = { transfers: [] };
+  const changedFolders = new Map();
+
+  deltas.forEach(file => {
+    const { folder, ...fileInfo } = file;
+    // 合入当前数据，供历史记录保存使用
+    let transfer = currentData.transfers.find(t => t.folder === folder);
+    if (!transfer) {
+      transfer = { folder, files: [] };
+      currentData.transfers.unshift(transfer);
+    }
+    const index = transfer.files.findIndex(f => f.path === fileInfo.path);
+    if (index >= 0) {
+      transfer.files[index] = fileInfo;
+    } else {
+      transfer.files.unshift(fileInfo);
+    }
+
+    if (!changedFolders.has(folder)) changedFolders.set(folder, []);
+    changedFolders.get(folder).push(fileInfo);
+  });
+
+  // 只渲染发生变化的文件
+  processData({
+    transfers: Array.from(changedFolders, ([folder, files]) => ({ folder, files }))
+  });
+  updateLastUpdated();
+}